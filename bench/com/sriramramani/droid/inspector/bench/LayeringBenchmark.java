@@ -0,0 +1,198 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.swt.graphics.Rectangle;
+
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.XMLParser;
+
+/**
+ * Times working out the depths with the sibling index against comparing every node with all of its
+ * previous siblings, as before the index, on random synthetic hierarchies with some of the nodes
+ * hidden. Checks that both give every node the same depth, after the full layout and after
+ * showing and hiding nodes and laying out only the changes. The pairwise layering runs on a copy
+ * of the tree with the max bounds and visibility taken out of the nodes before timing, and keeps
+ * its depths there.
+ *
+ * Usage: LayeringBenchmark [comma separated node counts] [trees per count]
+ */
+public class LayeringBenchmark {
+    // Nodes shown or hidden between the layouts of the changes.
+    private static final int TOGGLES = 20;
+
+    public static void main(String[] args) throws Exception {
+        final String counts = (args.length > 0 ? args[0] : "1000,5000,20000");
+        final int trees = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+
+        System.out.println("nodes,trees,indexed_ms,pairwise_ms,speedup");
+        for (String count : counts.split(",")) {
+            final int nodes = Integer.parseInt(count.trim());
+            final Random random = new Random(nodes);
+            long indexedNanos = 0;
+            long pairwiseNanos = 0;
+
+            for (int tree = 0; tree < trees; tree++) {
+                SyntheticDump generator = new SyntheticDump(random.nextLong());
+                generator.nodes = nodes;
+                generator.fanOut = 2 + random.nextInt(30);
+                generator.overlap = random.nextFloat();
+                generator.images = 0.0f;
+
+                final Node root = new XMLParser().parse(new ByteArrayInputStream(generator.toByteArray()));
+                final List<Node> all = new ArrayList<Node>();
+                collect(root, all);
+
+                // Some of the nodes hidden by the user.
+                for (Node node : all) {
+                    if (random.nextInt(10) == 0) {
+                        node.show(false);
+                    }
+                }
+                root.calculateMaxBounds();
+                Layer layer = new Layer(root);
+
+                long start = System.nanoTime();
+                layerPairwise(layer);
+                pairwiseNanos += System.nanoTime() - start;
+                final int[] expected = getDepths(layer);
+
+                start = System.nanoTime();
+                root.calculateDepth();
+                indexedNanos += System.nanoTime() - start;
+                check(expected, getDepths(all), nodes, tree, "layout");
+
+                for (int i = 0; i < TOGGLES; i++) {
+                    final Node node = all.get(random.nextInt(all.size()));
+                    node.show(!node.isShowing());
+                }
+                root.updateLayout();
+                final int[] updated = getDepths(all);
+
+                root.calculateMaxBounds();
+                layer = new Layer(root);
+                layerPairwise(layer);
+                check(getDepths(layer), updated, nodes, tree, "update");
+            }
+
+            System.out.println(String.format("%d,%d,%.2f,%.2f,%.1f",
+                    nodes, trees, indexedNanos / 1.0e6, pairwiseNanos / 1.0e6,
+                    (double) pairwiseNanos / Math.max(1, indexedNanos)));
+        }
+    }
+
+    private static void check(int[] expected, int[] actual, int nodes, int tree, String pass) {
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                throw new IllegalStateException("The depths differ after the " + pass + " of tree " + tree +
+                                                " of " + nodes + " nodes, at node " + i);
+            }
+        }
+    }
+
+    private static void collect(Node node, List<Node> all) {
+        all.add(node);
+        for (Node child : node.children) {
+            collect(child, all);
+        }
+    }
+
+    private static int[] getDepths(List<Node> all) {
+        final int[] depths = new int[all.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = all.get(i).getDepth();
+        }
+        return depths;
+    }
+
+    private static int[] getDepths(Layer root) {
+        final List<Layer> all = new ArrayList<Layer>();
+        collect(root, all);
+        final int[] depths = new int[all.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = all.get(i).depth;
+        }
+        return depths;
+    }
+
+    private static void collect(Layer layer, List<Layer> all) {
+        all.add(layer);
+        for (Layer child : layer.children) {
+            collect(child, all);
+        }
+    }
+
+    // The depths as worked out before the index: every node against all of its previous siblings.
+    private static void layerPairwise(Layer node) {
+        for (Layer child : node.children) {
+            layerPairwise(child);
+        }
+
+        node.depth = 1;
+        if (node.parent == null || !node.wouldShow) {
+            return;
+        }
+
+        for (Layer sibling : node.parent.children) {
+            if (sibling == node) {
+                break;
+            }
+
+            if (sibling.wouldShow && node.maxBounds.intersects(sibling.maxBounds)) {
+                node.depth = Math.max(node.depth, getMaxDepth(sibling) + 1);
+            }
+        }
+    }
+
+    private static int getMaxDepth(Layer node) {
+        int maxDepth = 0;
+        final List<Rectangle> areas = new ArrayList<Rectangle>();
+        for (Layer child : node.children) {
+            if (!child.wouldShow) {
+                continue;
+            }
+
+            final int childDepth = getMaxDepth(child);
+            for (Rectangle area : areas) {
+                if (area.intersects(child.maxBounds)) {
+                    maxDepth = Math.max(maxDepth, childDepth);
+                }
+            }
+
+            areas.add(child.maxBounds);
+            maxDepth = Math.max(maxDepth, childDepth);
+        }
+
+        return maxDepth + node.depth;
+    }
+
+    // A node as the pairwise layering sees it, with its depth kept here rather than in the store.
+    private static class Layer {
+        final Layer parent;
+        final List<Layer> children;
+        final Rectangle maxBounds;
+        final boolean wouldShow;
+        int depth;
+
+        Layer(Node node) {
+            this(node, null);
+        }
+
+        private Layer(Node node, Layer parent) {
+            this.parent = parent;
+            maxBounds = node.getMaxBounds();
+            wouldShow = node.isShowing() && node.isVisible();
+            children = new ArrayList<Layer>(node.children.size());
+            for (Node child : node.children) {
+                children.add(new Layer(child, this));
+            }
+        }
+    }
+}
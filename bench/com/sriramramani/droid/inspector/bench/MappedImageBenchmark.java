@@ -0,0 +1,118 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import com.sriramramani.droid.inspector.model.ImageStore;
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.XMLParser;
+
+/**
+ * Opens dumps with more and more image data, read as a stream and mapped, and prints
+ * the time, the memory allocated and the heap still in use with the tree open.
+ *
+ * Usage: MappedImageBenchmark [largest dump size in MB]
+ */
+public class MappedImageBenchmark {
+    private static final int NODES = 900;
+
+    public static void main(String[] args) throws Exception {
+        final int maxMb = (args.length > 0 ? Integer.parseInt(args[0]) : 64);
+
+        System.out.println("dump_mb,reader,millis,allocated_mb,retained_mb");
+        for (int sizeMb = 4; sizeMb <= maxMb; sizeMb *= 2) {
+            SyntheticDump generator = new SyntheticDump(sizeMb);
+            generator.nodes = NODES;
+            generator.images = 0.9f;
+            generator.fitImagesToSize(sizeMb * 1024L * 1024L);
+
+            final File file = File.createTempFile("mapped", ".dix");
+            file.deleteOnExit();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            try {
+                generator.write(out);
+            } finally {
+                out.close();
+            }
+
+            run(file, false);
+            run(file, true);
+            file.delete();
+        }
+    }
+
+    private static void run(File file, boolean isMapped) throws Exception {
+        // A store of its own, so earlier runs don't make the images free.
+        final File directory = File.createTempFile("images", "");
+        directory.delete();
+        ImageStore.setDefault(new ImageStore(directory));
+
+        final long heapBefore = getUsedHeap();
+        final long bytesBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+
+        final Node root;
+        if (isMapped) {
+            root = new XMLParser().parse(file);
+        } else {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            try {
+                root = new XMLParser().parse(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        final long nanos = System.nanoTime() - start;
+        final long bytes = getAllocatedBytes() - bytesBefore;
+        final long retained = getUsedHeap() - heapBefore;
+
+        System.out.println(String.format("%.1f,%s,%.1f,%s,%.1f",
+                file.length() / 1048576.0, (isMapped ? "mapped" : "stream"), nanos / 1.0e6,
+                (bytes >= 0 ? String.format("%.1f", bytes / 1048576.0) : "n/a"), retained / 1048576.0));
+
+        // Keeps the tree alive until the heap is measured.
+        if (root.children == null) {
+            throw new IllegalStateException();
+        }
+
+        // The images are written in the background.
+        ImageStore.getDefault().flush();
+        for (File image : directory.listFiles()) {
+            image.delete();
+        }
+        directory.delete();
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the VM can't tell.
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return ((Long) method.invoke(bean, Thread.currentThread().getId())).longValue();
+        } catch (Exception e) {
+            // Not a HotSpot VM.
+            return -1;
+        }
+    }
+}
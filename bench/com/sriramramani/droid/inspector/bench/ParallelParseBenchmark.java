@@ -0,0 +1,76 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import com.sriramramani.droid.inspector.model.ParallelParser;
+import com.sriramramani.droid.inspector.model.XMLParser;
+
+/**
+ * Parses a big synthetic dump from disk on one thread, and in parallel on 1 to 8 threads,
+ * and prints the throughput of each.
+ *
+ * Usage: ParallelParseBenchmark [dump size in MB]
+ */
+public class ParallelParseBenchmark {
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        final int sizeMb = (args.length > 0 ? Integer.parseInt(args[0]) : 64);
+
+        SyntheticDump generator = new SyntheticDump(sizeMb);
+        generator.nodes = generator.nodesForSize(sizeMb * 1024L * 1024L);
+
+        final File file = File.createTempFile("parallel", ".dix");
+        file.deleteOnExit();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            generator.write(out);
+        } finally {
+            out.close();
+        }
+
+        System.out.println("# " + Runtime.getRuntime().availableProcessors() + " cores, " + file.length() + " bytes");
+        System.out.println("parser,threads,millis,mb_per_s,speedup");
+
+        final double sequential = best(file, 0);
+        print("sequential", 1, sequential, file, sequential);
+        for (int threads : THREADS) {
+            print("parallel", threads, best(file, threads), file, sequential);
+        }
+    }
+
+    // Best time of a few runs after a warm up, with 0 threads for the sequential parser.
+    private static double best(File file, int threads) throws Exception {
+        parse(file, threads);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            final long start = System.nanoTime();
+            parse(file, threads);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best / 1.0e6;
+    }
+
+    private static void parse(File file, int threads) throws Exception {
+        if (threads == 0) {
+            new XMLParser().parse(file);
+        } else {
+            new ParallelParser(threads).parse(file);
+        }
+    }
+
+    private static void print(String parser, int threads, double millis, File file, double sequential) {
+        System.out.println(String.format("%s,%d,%.1f,%.1f,%.2f",
+                parser, threads, millis, file.length() / 1048576.0 / (millis / 1000), sequential / millis));
+    }
+}
@@ -0,0 +1,118 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import com.sriramramani.droid.inspector.model.LegacyXMLParser;
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.NodeStore;
+import com.sriramramani.droid.inspector.model.XMLParser;
+
+/**
+ * Parses synthetic dumps over and over, and prints the time, the memory allocated and
+ * the heap kept by the trees per node, as parsed and once the canvas flattens them into
+ * a store of their own. The layout of the nodes is in their store either way.
+ * The time and the memory allocated are also printed for LegacyXMLParser, the parser before
+ * AttributeDecoder, to compare the decoding against.
+ *
+ * Usage: ParseBenchmark [nodes in the dump]
+ */
+public class ParseBenchmark {
+    private static final int RUNS = 5;
+
+    private static final float[] IMAGES = { 0.0f, 0.3f };
+
+    public static void main(String[] args) throws Exception {
+        final int nodes = (args.length > 0 ? Integer.parseInt(args[0]) : 30000);
+
+        System.out.println("nodes,images,dump_bytes,millis,legacy_ns_per_node,ns_per_node," +
+                           "legacy_bytes_per_node,bytes_per_node,retained_bytes_per_node,flattened_bytes_per_node");
+        for (float images : IMAGES) {
+            SyntheticDump generator = new SyntheticDump(images == 0.0f ? 1 : 2);
+            generator.nodes = nodes;
+            generator.images = images;
+            final byte[] dump = generator.toByteArray();
+
+            final long[] legacy = time(dump, true);
+            final long[] current = time(dump, false);
+
+            // Keep the tree of a run, to see what it holds on to.
+            final long heapBefore = getUsedHeap();
+            final Node root = parse(dump);
+            final long retained = getUsedHeap() - heapBefore;
+
+            // The store of the parser is let go, as the nodes move over.
+            final NodeStore store = new NodeStore(root);
+            final long flattened = getUsedHeap() - heapBefore;
+
+            System.out.println(String.format("%d,%.1f,%d,%.1f,%.0f,%.0f,%s,%s,%d,%d",
+                    nodes, images, dump.length, current[0] / 1.0e6,
+                    (double) legacy[0] / nodes, (double) current[0] / nodes,
+                    perNode(legacy[1], nodes), perNode(current[1], nodes),
+                    retained / nodes, flattened / store.size()));
+
+            // Keeps the tree and the store alive until the heap is measured.
+            if (root.children == null || store.getNode(0) != root) {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    // The best time and allocation of the runs, with the legacy parser or the current one.
+    private static long[] time(byte[] dump, boolean legacy) throws Exception {
+        // Warm up, then keep the best run.
+        parse(dump, legacy);
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            final long bytesBefore = getAllocatedBytes();
+            final long start = System.nanoTime();
+            parse(dump, legacy);
+            final long nanos = System.nanoTime() - start;
+            final long bytes = getAllocatedBytes() - bytesBefore;
+
+            bestNanos = Math.min(bestNanos, nanos);
+            bestBytes = Math.min(bestBytes, bytes);
+        }
+        return new long[] { bestNanos, bestBytes };
+    }
+
+    private static String perNode(long bytes, int nodes) {
+        return (bytes >= 0 ? Long.toString(bytes / nodes) : "n/a");
+    }
+
+    private static Node parse(byte[] dump) throws Exception {
+        return parse(dump, false);
+    }
+
+    private static Node parse(byte[] dump, boolean legacy) throws Exception {
+        final ByteArrayInputStream in = new ByteArrayInputStream(dump);
+        return (legacy ? new LegacyXMLParser().parse(in) : new XMLParser().parse(in));
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the VM can't tell.
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return ((Long) method.invoke(bean, Thread.currentThread().getId())).longValue();
+        } catch (Exception e) {
+            // Not a HotSpot VM.
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.eclipse.swt.graphics.Rectangle;
+
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.NodeStore;
+import com.sriramramani.droid.inspector.model.SpatialIndex;
+import com.sriramramani.droid.inspector.model.XMLParser;
+
+/**
+ * Times the point, area and nearest queries of the spatial index against scanning every node,
+ * on synthetic hierarchies, checking that both find the same nodes.
+ *
+ * Usage: SpatialIndexBenchmark [comma separated node counts] [queries]
+ */
+public class SpatialIndexBenchmark {
+    private static final int RUNS = 5;
+
+    // Nodes found by a nearest query.
+    private static final int NEAREST = 8;
+
+    public static void main(String[] args) throws Exception {
+        final String counts = (args.length > 0 ? args[0] : "1000,10000,100000");
+        final int queries = (args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+
+        System.out.println("nodes,query,build_ms,index_us_per_query,scan_us_per_query,speedup");
+        for (String count : counts.split(",")) {
+            SyntheticDump generator = new SyntheticDump(1);
+            generator.nodes = Integer.parseInt(count.trim());
+            generator.images = 0.0f;
+
+            final Node root = new XMLParser().parse(new ByteArrayInputStream(generator.toByteArray()));
+            final NodeStore store = new NodeStore(root);
+
+            // Warm up, then keep the best build.
+            new SpatialIndex(store);
+            long bestBuild = Long.MAX_VALUE;
+            SpatialIndex index = null;
+            for (int i = 0; i < RUNS; i++) {
+                final long start = System.nanoTime();
+                index = new SpatialIndex(store);
+                bestBuild = Math.min(bestBuild, System.nanoTime() - start);
+            }
+
+            final int[][] points = createPoints(store, queries);
+            final Rectangle[] areas = createAreas(store, points);
+
+            for (String query : new String[] { "point", "area", "nearest" }) {
+                check(query, index, store, points, areas);
+
+                long indexNanos = Long.MAX_VALUE;
+                long scanNanos = Long.MAX_VALUE;
+                for (int i = 0; i < RUNS; i++) {
+                    long start = System.nanoTime();
+                    run(query, index, null, points, areas);
+                    indexNanos = Math.min(indexNanos, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    run(query, null, store, points, areas);
+                    scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+                }
+
+                System.out.println(String.format("%d,%s,%.2f,%.2f,%.2f,%.1f",
+                        store.size(), query, bestBuild / 1.0e6,
+                        indexNanos / 1.0e3 / queries, scanNanos / 1.0e3 / queries,
+                        (double) scanNanos / indexNanos));
+            }
+        }
+    }
+
+    private static int[][] createPoints(NodeStore store, int count) {
+        final Random random = new Random(count);
+        final int[][] points = new int[count][];
+        for (int i = 0; i < count; i++) {
+            points[i] = new int[] { random.nextInt(Math.max(1, store.getWidth(0))),
+                                    random.nextInt(Math.max(1, store.getHeight(0))) };
+        }
+        return points;
+    }
+
+    // An area a tenth of the root across at each point.
+    private static Rectangle[] createAreas(NodeStore store, int[][] points) {
+        final Rectangle[] areas = new Rectangle[points.length];
+        for (int i = 0; i < points.length; i++) {
+            areas[i] = new Rectangle(points[i][0], points[i][1], store.getWidth(0) / 10 + 1, store.getHeight(0) / 10 + 1);
+        }
+        return areas;
+    }
+
+    // Runs the queries on the index, or by scanning the store if there is no index.
+    private static long run(String query, SpatialIndex index, NodeStore store, int[][] points, Rectangle[] areas) {
+        long found = 0;
+        for (int i = 0; i < points.length; i++) {
+            found += find(query, index, store, points[i], areas[i]).length;
+        }
+
+        if (found < 0) {
+            throw new IllegalStateException();
+        }
+        return found;
+    }
+
+    private static void check(String query, SpatialIndex index, NodeStore store, int[][] points, Rectangle[] areas) {
+        for (int i = 0; i < points.length; i++) {
+            if (!Arrays.equals(find(query, index, null, points[i], areas[i]), find(query, null, store, points[i], areas[i]))) {
+                throw new IllegalStateException("The index and the scan differ on " + query + " query " + i);
+            }
+        }
+    }
+
+    private static int[] find(String query, SpatialIndex index, NodeStore store, int[] point, Rectangle area) {
+        if ("point".equals(query)) {
+            return (index != null ? index.findAt(point[0], point[1]) : scanAt(store, point[0], point[1]));
+        } else if ("area".equals(query)) {
+            return (index != null ? index.findIn(area) : scanIn(store, area));
+        } else {
+            return (index != null ? index.findNearest(point[0], point[1], NEAREST) : scanNearest(store, point[0], point[1], NEAREST));
+        }
+    }
+
+    private static int[] scanAt(NodeStore store, int x, int y) {
+        int[] found = new int[store.size()];
+        int size = 0;
+        for (int i = 0; i < store.size(); i++) {
+            if (x >= getLeft(store, i) && x < getRight(store, i) && y >= getTop(store, i) && y < getBottom(store, i)) {
+                found[size++] = i;
+            }
+        }
+        return Arrays.copyOf(found, size);
+    }
+
+    private static int[] scanIn(NodeStore store, Rectangle area) {
+        int[] found = new int[store.size()];
+        int size = 0;
+        for (int i = 0; i < store.size(); i++) {
+            if (area.x < getRight(store, i) && area.y < getBottom(store, i) &&
+                area.x + area.width > getLeft(store, i) && area.y + area.height > getTop(store, i)) {
+                found[size++] = i;
+            }
+        }
+        return Arrays.copyOf(found, size);
+    }
+
+    // Keeps the nearest in a short sorted list, as the indices come in order.
+    private static int[] scanNearest(NodeStore store, int x, int y, int count) {
+        final long[] distances = new long[count];
+        final int[] found = new int[count];
+        int size = 0;
+        for (int i = 0; i < store.size(); i++) {
+            final long dx = Math.max(0, Math.max((long) getLeft(store, i) - x, (long) x - getRight(store, i)));
+            final long dy = Math.max(0, Math.max((long) getTop(store, i) - y, (long) y - getBottom(store, i)));
+            final long distance = dx * dx + dy * dy;
+            if (size == count && distance >= distances[count - 1]) {
+                continue;
+            }
+
+            int slot = (size < count ? size++ : count - 1);
+            while (slot > 0 && distances[slot - 1] > distance) {
+                distances[slot] = distances[slot - 1];
+                found[slot] = found[slot - 1];
+                slot--;
+            }
+            distances[slot] = distance;
+            found[slot] = i;
+        }
+        return Arrays.copyOf(found, size);
+    }
+
+    private static int getLeft(NodeStore store, int i) {
+        return Math.min(store.getDeviceLeft(i), store.getDeviceLeft(i) + store.getWidth(i));
+    }
+
+    private static int getRight(NodeStore store, int i) {
+        return Math.max(store.getDeviceLeft(i), store.getDeviceLeft(i) + store.getWidth(i));
+    }
+
+    private static int getTop(NodeStore store, int i) {
+        return Math.min(store.getDeviceTop(i), store.getDeviceTop(i) + store.getHeight(i));
+    }
+
+    private static int getBottom(NodeStore store, int i) {
+        return Math.max(store.getDeviceTop(i), store.getDeviceTop(i) + store.getHeight(i));
+    }
+}
@@ -0,0 +1,306 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sriramramani.droid.inspector.model.DecodedImage;
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.Node.ContentType;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+import com.sriramramani.droid.inspector.model.XMLParser;
+
+/**
+ * Times the stages of opening a snapshot on synthetic hierarchies, to tell whether a change
+ * made big snapshots slower. Needs no display, so it can run on a build machine:
+ *
+ * <pre>
+ * java -cp bin:libs/commons-codec-1.8.jar:libs/PNGDecoder.jar:&lt;swt and eclipse runtime jars&gt; \
+ *     com.sriramramani.droid.inspector.bench.StageBenchmark nodes=1000,10000 format=csv out=stages.csv
+ * </pre>
+ *
+ * Every parameter takes a comma separated list, and every combination is run:
+ * <ul>
+ * <li>nodes: views in the hierarchy.</li>
+ * <li>fanOut: most children of a view.</li>
+ * <li>overlap: chance of a view overlapping its previous sibling, in [0..1].</li>
+ * <li>images: chance of a view having a background or a content image, in [0..1].</li>
+ * <li>imageCount: distinct images.</li>
+ * <li>imageSize: width and height of the images.</li>
+ * </ul>
+ * Also: warmup and iterations per stage, format (json or csv) and out (a file, or the console).
+ *
+ * The stages are the parse of the dump from a file, Node.calculateMaxBounds(), Node.calculateDepth(),
+ * and the base64 and PNG decode of every image drawn, which is what binding the textures costs
+ * less the upload.
+ */
+public class StageBenchmark {
+    private static final String[] STAGES = { "parse", "maxBounds", "depth", "decode" };
+
+    private static final String[] PARAMETERS = { "nodes", "fanOut", "overlap", "images", "imageCount", "imageSize" };
+
+    private final Map<String, String> mOptions = new LinkedHashMap<String, String>();
+    private final List<Result> mResults = new ArrayList<Result>();
+
+    private int mWarmup;
+    private int mIterations;
+
+    private static final class Result {
+        String stage;
+        Map<String, String> parameters;
+        int iterations;
+        double mean;
+        double error;
+        double min;
+        double max;
+        double[] runs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        StageBenchmark benchmark = new StageBenchmark();
+        benchmark.mOptions.put("nodes", "1000,10000,50000");
+        benchmark.mOptions.put("fanOut", "8");
+        benchmark.mOptions.put("overlap", "0.3");
+        benchmark.mOptions.put("images", "0.3");
+        benchmark.mOptions.put("imageCount", "16");
+        benchmark.mOptions.put("imageSize", "32");
+        benchmark.mOptions.put("warmup", "3");
+        benchmark.mOptions.put("iterations", "5");
+        benchmark.mOptions.put("format", "json");
+
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            benchmark.mOptions.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        benchmark.run();
+    }
+
+    private void run() throws IOException {
+        mWarmup = Integer.parseInt(mOptions.get("warmup"));
+        mIterations = Math.max(1, Integer.parseInt(mOptions.get("iterations")));
+
+        runAll(0, new LinkedHashMap<String, String>());
+
+        final String out = mOptions.get("out");
+        if (out == null) {
+            print(System.out);
+            return;
+        }
+
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(out));
+        try {
+            PrintStream printer = new PrintStream(stream, false, "UTF-8");
+            print(printer);
+            printer.flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    // Runs every combination of the parameters from the given one on.
+    private void runAll(int parameter, Map<String, String> values) throws IOException {
+        if (parameter == PARAMETERS.length) {
+            runStages(new LinkedHashMap<String, String>(values));
+            return;
+        }
+
+        final String name = PARAMETERS[parameter];
+        for (String value : mOptions.get(name).split(",")) {
+            values.put(name, value.trim());
+            runAll(parameter + 1, values);
+        }
+    }
+
+    private void runStages(Map<String, String> parameters) throws IOException {
+        SyntheticDump generator = new SyntheticDump(1);
+        generator.nodes = Integer.parseInt(parameters.get("nodes"));
+        generator.fanOut = Integer.parseInt(parameters.get("fanOut"));
+        generator.overlap = Float.parseFloat(parameters.get("overlap"));
+        generator.images = Float.parseFloat(parameters.get("images"));
+        generator.imageCount = Integer.parseInt(parameters.get("imageCount"));
+        generator.imageSize = Integer.parseInt(parameters.get("imageSize"));
+
+        final File file = File.createTempFile("stages", ".dix");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            try {
+                generator.write(out);
+            } finally {
+                out.close();
+            }
+
+            final Node root = new XMLParser().parse(file);
+            final List<Drawable> images = new ArrayList<Drawable>();
+            collectImages(root, images);
+
+            for (String stage : STAGES) {
+                mResults.add(time(stage, parameters, file, root, images));
+            }
+
+            System.err.println("Done: " + parameters);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private Result time(String stage, Map<String, String> parameters, File file, Node root, List<Drawable> images) throws IOException {
+        for (int i = 0; i < mWarmup; i++) {
+            runStage(stage, file, root, images);
+        }
+
+        final double[] millis = new double[mIterations];
+        for (int i = 0; i < mIterations; i++) {
+            final long start = System.nanoTime();
+            runStage(stage, file, root, images);
+            millis[i] = (System.nanoTime() - start) / 1.0e6;
+        }
+
+        Result result = new Result();
+        result.stage = stage;
+        result.parameters = parameters;
+        result.iterations = mIterations;
+        result.runs = millis;
+        result.min = Double.MAX_VALUE;
+        result.max = 0;
+
+        double sum = 0;
+        for (double value : millis) {
+            sum += value;
+            result.min = Math.min(result.min, value);
+            result.max = Math.max(result.max, value);
+        }
+        result.mean = sum / mIterations;
+
+        // Half width of a 99.9% confidence interval, taking the runs as normally distributed.
+        double squares = 0;
+        for (double value : millis) {
+            squares += (value - result.mean) * (value - result.mean);
+        }
+        result.error = (mIterations > 1 ? 3.29 * Math.sqrt(squares / (mIterations - 1)) / Math.sqrt(mIterations) : Double.NaN);
+        return result;
+    }
+
+    // The result of each stage is checked, so that the work isn't optimized away.
+    private static void runStage(String stage, File file, Node root, List<Drawable> images) throws IOException {
+        if ("parse".equals(stage)) {
+            if (new XMLParser().parse(file) == null) {
+                throw new IllegalStateException();
+            }
+        } else if ("maxBounds".equals(stage)) {
+            root.calculateMaxBounds();
+            if (root.getMaxBounds().width < 0) {
+                throw new IllegalStateException();
+            }
+        } else if ("depth".equals(stage)) {
+            root.calculateDepth();
+        } else {
+            long pixels = 0;
+            for (Drawable drawable : images) {
+                pixels += DecodedImage.decode(drawable.getBitmap()).pixels.remaining();
+            }
+            if (pixels < 0) {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private static void collectImages(Node node, List<Drawable> images) {
+        if (node.getBackground().type == ContentType.IMAGE) {
+            images.add(node.getBackground());
+        }
+
+        if (node.getContent().type == ContentType.IMAGE) {
+            images.add(node.getContent());
+        }
+
+        for (Node child : node.children) {
+            collectImages(child, images);
+        }
+    }
+
+    private void print(PrintStream out) {
+        if ("csv".equals(mOptions.get("format"))) {
+            printCsv(out);
+        } else {
+            printJson(out);
+        }
+    }
+
+    private void printCsv(PrintStream out) {
+        StringBuilder header = new StringBuilder("stage");
+        for (String name : PARAMETERS) {
+            header.append(',').append(name);
+        }
+        header.append(",iterations,mean_ms,error_ms,min_ms,max_ms");
+        out.println(header);
+
+        for (Result result : mResults) {
+            StringBuilder line = new StringBuilder(result.stage);
+            for (String name : PARAMETERS) {
+                line.append(',').append(result.parameters.get(name));
+            }
+            line.append(',').append(result.iterations);
+            line.append(',').append(format(result.mean));
+            line.append(',').append(format(result.error));
+            line.append(',').append(format(result.min));
+            line.append(',').append(format(result.max));
+            out.println(line);
+        }
+    }
+
+    // Laid out like the results of JMH, for the tools that read those.
+    private void printJson(PrintStream out) {
+        out.println("[");
+        for (int i = 0; i < mResults.size(); i++) {
+            final Result result = mResults.get(i);
+            out.println("    {");
+            out.println("        \"benchmark\" : \"" + StageBenchmark.class.getName() + "." + result.stage + "\",");
+            out.println("        \"mode\" : \"avgt\",");
+            out.println("        \"warmupIterations\" : " + mWarmup + ",");
+            out.println("        \"measurementIterations\" : " + result.iterations + ",");
+
+            out.println("        \"params\" : {");
+            for (int j = 0; j < PARAMETERS.length; j++) {
+                out.println("            \"" + PARAMETERS[j] + "\" : \"" + result.parameters.get(PARAMETERS[j]) + "\"" +
+                            (j < PARAMETERS.length - 1 ? "," : ""));
+            }
+            out.println("        },");
+
+            out.println("        \"primaryMetric\" : {");
+            final double error = (Double.isNaN(result.error) ? 0 : result.error);
+            out.println("            \"score\" : " + format(result.mean) + ",");
+            out.println("            \"scoreError\" : " + (Double.isNaN(result.error) ? "\"NaN\"" : format(result.error)) + ",");
+            out.println("            \"scoreConfidence\" : [ " + format(result.mean - error) + ", " + format(result.mean + error) + " ],");
+            out.println("            \"scoreUnit\" : \"ms/op\",");
+
+            StringBuilder runs = new StringBuilder();
+            for (int j = 0; j < result.runs.length; j++) {
+                runs.append(j > 0 ? ", " : "").append(format(result.runs[j]));
+            }
+            out.println("            \"rawData\" : [ [ " + runs + " ] ]");
+            out.println("        }");
+            out.println("    }" + (i < mResults.size() - 1 ? "," : ""));
+        }
+        out.println("]");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+}
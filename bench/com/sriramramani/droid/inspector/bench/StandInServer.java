@@ -0,0 +1,385 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Serves a fixed view dump the way the on-device server does, over a local socket.
+ * The link speed can be capped to mimic adb over USB.
+ */
+public class StandInServer implements Runnable {
+    private static final String BASE64_IDENTIFIER = "data:image/png;base64,";
+
+    private final ServerSocket mSocket;
+    private final byte[] mDump;
+    private final long mBytesPerSecond;
+    private final boolean mSupportsCompression;
+
+    private boolean mSupportsSessions = false;
+    private boolean mSupportsImageHashes = false;
+    private boolean mSupportsSubtree = false;
+
+    // The dump with images replaced by their hashes, and the images by hash. Made on first use.
+    private byte[] mHashedDump;
+    private Map<String, byte[]> mImages;
+
+    private volatile boolean mRunning = true;
+
+    /**
+     * @param dump The plain dump to serve.
+     * @param bytesPerSecond Link speed, or 0 for no cap.
+     * @param supportsCompression Whether to answer the capabilities handshake.
+     */
+    public StandInServer(byte[] dump, long bytesPerSecond, boolean supportsCompression) throws IOException {
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mDump = dump;
+        mBytesPerSecond = bytesPerSecond;
+        mSupportsCompression = supportsCompression;
+    }
+
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    /**
+     * Whether to answer the session command, and serve framed dumps on one connection.
+     */
+    public void setSupportsSessions(boolean supportsSessions) {
+        mSupportsSessions = supportsSessions;
+    }
+
+    /**
+     * Whether to send image hashes in place of images, and images on request.
+     */
+    public void setSupportsImageHashes(boolean supportsImageHashes) {
+        mSupportsImageHashes = supportsImageHashes;
+    }
+
+    /**
+     * Whether to send a single subtree on request.
+     */
+    public void setSupportsSubtree(boolean supportsSubtree) {
+        mSupportsSubtree = supportsSubtree;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "StandInServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws IOException {
+        mRunning = false;
+        mSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            try {
+                Socket socket = mSocket.accept();
+                try {
+                    serve(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Either stopped, or the client went away.
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final String command = readLine(in);
+        if (command == null) {
+            return;
+        }
+
+        OutputStream out = new ThrottledOutputStream(socket.getOutputStream(), mBytesPerSecond);
+        if (command.equals("capabilities")) {
+            if (mSupportsCompression || mSupportsImageHashes || mSupportsSubtree) {
+                final String capabilities = (mSupportsCompression ? "gzip deflate " : "") +
+                                            (mSupportsImageHashes ? "hashes " : "") +
+                                            (mSupportsSubtree ? "subtree" : "");
+                out.write((capabilities.trim() + "\n").getBytes("US-ASCII"));
+            }
+            // Old servers just hang up on unknown commands.
+        } else if (command.equals("session")) {
+            if (mSupportsSessions) {
+                out.write("ok\n".getBytes("US-ASCII"));
+                out.flush();
+                serveSession(in, out);
+            }
+        } else {
+            writeDump(command, out);
+        }
+        out.flush();
+        socket.shutdownOutput();
+    }
+
+    private void serveSession(InputStream in, OutputStream out) throws IOException {
+        String command;
+        while (mRunning && (command = readLine(in)) != null) {
+            if (command.equals("ping")) {
+                out.write("pong\n".getBytes("US-ASCII"));
+            } else {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(mDump.length + 64);
+                writeDump(command, frame);
+                out.write((frame.size() + "\n").getBytes("US-ASCII"));
+                frame.writeTo(out);
+            }
+            out.flush();
+        }
+    }
+
+    private void writeDump(String command, OutputStream out) throws IOException {
+        if (command.startsWith("images ")) {
+            writeImages(command.substring("images ".length()).split(" "), out);
+            return;
+        }
+
+        String target = null;
+        final int subtree = command.indexOf(" subtree ");
+        if (subtree != -1) {
+            target = command.substring(subtree + " subtree ".length());
+            command = command.substring(0, subtree);
+        }
+
+        byte[] dump = mDump;
+        if (command.endsWith(" hashes")) {
+            dump = getHashedDump();
+            command = command.substring(0, command.length() - " hashes".length());
+        }
+
+        if (target != null) {
+            final int[] path = findPath(dump, target);
+            if (path == null) {
+                out.write(("error No view at " + target + "\n").getBytes("US-ASCII"));
+                return;
+            }
+
+            out.write(("path " + toPathString(path) + "\n").getBytes("US-ASCII"));
+            dump = cutSubtree(dump, path);
+        }
+
+        if (command.equals("print")) {
+            out.write(dump);
+        } else if (command.equals("print gzip")) {
+            GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+            gzip.write(dump);
+            gzip.finish();
+        } else if (command.equals("print deflate")) {
+            DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), 64 * 1024);
+            deflate.write(dump);
+            deflate.finish();
+        }
+    }
+
+    /**
+     * Returns the path of the view with the target, "id:<id>" or "path:0/1/2", or null if there is none.
+     * Relies on every tag being on a line of its own, as in the dumps from the device.
+     */
+    private static int[] findPath(byte[] dump, String target) throws IOException {
+        int[] wanted = null;
+        String id = null;
+        if (target.startsWith("path:")) {
+            final String path = target.substring("path:".length());
+            final String[] parts = (path.length() == 0 ? new String[0] : path.split("/"));
+            wanted = new int[parts.length];
+            try {
+                for (int i = 0; i < parts.length; i++) {
+                    wanted[i] = Integer.parseInt(parts[i]);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else if (target.startsWith("id:")) {
+            id = " id=\"" + target.substring("id:".length()) + "\"";
+        } else {
+            return null;
+        }
+
+        // Indices of the open views in their parents, and the number of children seen of each.
+        final int[] chain = new int[256];
+        final int[] counts = new int[256];
+        int depth = -1;
+        for (String line : new String(dump, "UTF-8").split("\n")) {
+            if (line.startsWith("<view")) {
+                depth++;
+                chain[depth] = (depth > 0 ? counts[depth - 1]++ : 0);
+                counts[depth] = 0;
+
+                final int[] path = new int[depth];
+                System.arraycopy(chain, 1, path, 0, depth);
+                if ((wanted != null && Arrays.equals(wanted, path)) || (id != null && line.contains(id))) {
+                    return path;
+                }
+            } else if (line.startsWith("</view>")) {
+                depth--;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Keeps the view at the path in full, and its ancestors with just the child on the way.
+     */
+    private static byte[] cutSubtree(byte[] dump, int[] path) throws IOException {
+        final StringBuilder cut = new StringBuilder(dump.length / 4);
+        final boolean[] kept = new boolean[256];
+        final int[] counts = new int[256];
+        int depth = -1;
+        for (String line : new String(dump, "UTF-8").split("\n")) {
+            if (line.startsWith("<view")) {
+                depth++;
+                final int index = (depth > 0 ? counts[depth - 1]++ : 0);
+                counts[depth] = 0;
+
+                final boolean parentKept = (depth == 0 || kept[depth - 1]);
+                kept[depth] = parentKept && (depth == 0 || depth > path.length || index == path[depth - 1]);
+                if (kept[depth]) {
+                    cut.append(line).append('\n');
+                }
+            } else if (line.startsWith("</view>")) {
+                if (kept[depth]) {
+                    cut.append(line).append('\n');
+                }
+                depth--;
+            } else if (depth < 0) {
+                cut.append(line).append('\n');
+            }
+        }
+
+        return cut.toString().getBytes("UTF-8");
+    }
+
+    private static String toPathString(int[] path) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < path.length; i++) {
+            if (i > 0) {
+                builder.append('/');
+            }
+            builder.append(path[i]);
+        }
+        return builder.toString();
+    }
+
+    private void writeImages(String[] keys, OutputStream out) throws IOException {
+        getHashedDump();
+        for (String key : keys) {
+            final byte[] png = mImages.get(key);
+            if (png == null) {
+                out.write("-1\n".getBytes("US-ASCII"));
+            } else {
+                out.write((png.length + "\n").getBytes("US-ASCII"));
+                out.write(png);
+            }
+        }
+    }
+
+    private synchronized byte[] getHashedDump() throws IOException {
+        if (mHashedDump != null) {
+            return mHashedDump;
+        }
+
+        mImages = new HashMap<String, byte[]>();
+        final String dump = new String(mDump, "UTF-8");
+        final StringBuilder hashed = new StringBuilder(dump.length() / 4);
+        int last = 0;
+        int start;
+        while ((start = dump.indexOf(BASE64_IDENTIFIER, last)) != -1) {
+            final int end = dump.indexOf('"', start);
+            final byte[] png = Base64.decodeBase64(dump.substring(start + BASE64_IDENTIFIER.length(), end));
+            final String key = DigestUtils.sha1Hex(png);
+            mImages.put(key, png);
+
+            hashed.append(dump, last, start).append("sha1:").append(key);
+            last = end;
+        }
+        hashed.append(dump, last, dump.length());
+
+        mHashedDump = hashed.toString().getBytes("UTF-8");
+        return mHashedDump;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int value;
+        while ((value = in.read()) != -1 && value != '\n') {
+            line.append((char) value);
+        }
+        return (value == -1 && line.length() == 0 ? null : line.toString().trim());
+    }
+
+    private static final class ThrottledOutputStream extends OutputStream {
+        private static final int CHUNK = 16 * 1024;
+
+        private final OutputStream mOut;
+        private final long mBytesPerSecond;
+        private final long mStart = System.nanoTime();
+        private long mWritten = 0;
+
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+            mOut = out;
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[] { (byte) value }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int count = Math.min(length, CHUNK);
+                mOut.write(buffer, offset, count);
+                mWritten += count;
+                offset += count;
+                length -= count;
+                throttle();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        private void throttle() {
+            if (mBytesPerSecond <= 0) {
+                return;
+            }
+
+            final long due = mWritten * 1000000000L / mBytesPerSecond;
+            final long ahead = due - (System.nanoTime() - mStart);
+            if (ahead > 1000000L) {
+                try {
+                    Thread.sleep(ahead / 1000000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
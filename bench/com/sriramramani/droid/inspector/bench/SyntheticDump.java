@@ -0,0 +1,192 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Generates view dumps in the format sent by the device, for benchmarks.
+ */
+public class SyntheticDump {
+    private static final String BASE64_IDENTIFIER = "data:image/png;base64,";
+
+    // Node count of the hierarchy.
+    public int nodes = 1000;
+
+    // Maximum number of children of a node.
+    public int fanOut = 8;
+
+    // Chance of a child overlapping the previous sibling, in [0..1].
+    public float overlap = 0.3f;
+
+    // Chance of a node having a background or a content image, in [0..1].
+    public float images = 0.3f;
+
+    // Width and height of the generated images.
+    public int imageSize = 16;
+
+    // Distinct images, shared by the nodes like icons repeated across a screen.
+    public int imageCount = 16;
+
+    private final Random mRandom;
+    private String[] mImages;
+    private int mCount;
+
+    public SyntheticDump(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Returns a node count that makes the dump roughly the given size.
+     */
+    public int nodesForSize(long bytes) {
+        byte[] sample = toByteArray();
+        return (int) Math.max(1, (long) nodes * bytes / sample.length);
+    }
+
+    /**
+     * Grows or shrinks the images to make the dump roughly the given size, keeping the node count.
+     */
+    public void fitImagesToSize(long bytes) {
+        // Image bytes grow with the area, but the rest of the dump doesn't.
+        for (int i = 0; i < 3; i++) {
+            byte[] sample = toByteArray();
+            imageSize = (int) Math.max(1, imageSize * Math.sqrt((double) bytes / sample.length));
+        }
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public void write(OutputStream out) throws IOException {
+        mImages = new String[Math.max(1, imageCount)];
+        for (int i = 0; i < mImages.length; i++) {
+            mImages[i] = BASE64_IDENTIFIER + Base64.encodeBase64String(createPng(imageSize, i));
+        }
+
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        mCount = 0;
+        writeNode(writer, 0, 0, 1080, 1920, 0);
+        writer.flush();
+    }
+
+    private void writeNode(Writer writer, int x, int y, int width, int height, int level) throws IOException {
+        mCount++;
+        writer.write("<view name=\"android.widget.View");
+        writer.write(Integer.toString(mCount % 50));
+        writer.write("\" id=\"id/view_");
+        writer.write(Integer.toString(mCount));
+        writer.write("\" bounds=\"[" + x + "," + y + "][" + width + "," + height + "]\"");
+        writer.write(" padding=\"[4,4][4,4]\" margin=\"[0,0][0,0]\" visibility=\"1\"");
+
+        if (mRandom.nextFloat() < images) {
+            writer.write(" background=\"" + mImages[mRandom.nextInt(mImages.length)] + "\"");
+        } else if (mRandom.nextBoolean()) {
+            writer.write(" background=\"#ff" + Integer.toHexString(0x100000 + mRandom.nextInt(0xefffff)) + "\"");
+        }
+
+        if (mRandom.nextFloat() < images) {
+            writer.write(" content=\"" + mImages[mRandom.nextInt(mImages.length)] + "\"");
+        }
+
+        writer.write(" drawable-padding=\"[0,0][0,0]\" scroll-x=\"0.0\" scroll-y=\"0.0\">\n");
+
+        final int remaining = nodes - mCount;
+        if (remaining > 0) {
+            // Deep enough to look like a real layout, wide enough to reach the node count.
+            final int children = (level < 3 ? fanOut : 1 + mRandom.nextInt(fanOut));
+            final int rowHeight = Math.max(1, height / Math.max(1, children));
+            for (int i = 0; i < children && mCount < nodes; i++) {
+                // Either overlap the previous row, or stack below it.
+                final int top = (mRandom.nextFloat() < overlap ? Math.max(0, i - 1) : i) * rowHeight;
+                final int share = Math.max(1, (nodes - mCount) / Math.max(1, children - i));
+                if (share == 1 || level > 24) {
+                    writeLeaf(writer, 0, top, width, rowHeight);
+                } else {
+                    writeNode(writer, 0, top, width, rowHeight, level + 1);
+                }
+            }
+        }
+
+        writer.write("</view>\n");
+    }
+
+    private void writeLeaf(Writer writer, int x, int y, int width, int height) throws IOException {
+        mCount++;
+        writer.write("<view name=\"android.widget.TextView\" id=\"id/text_" + mCount + "\"");
+        writer.write(" bounds=\"[" + x + "," + y + "][" + width + "," + height + "]\"");
+        writer.write(" padding=\"[0,0][0,0]\" visibility=\"1\"");
+        if (mRandom.nextFloat() < images) {
+            writer.write(" content=\"" + mImages[mRandom.nextInt(mImages.length)] + "\"");
+        }
+        writer.write(" scroll-x=\"0.0\" scroll-y=\"0.0\">\n</view>\n");
+    }
+
+    /**
+     * Creates a tiny valid RGBA PNG.
+     */
+    static byte[] createPng(int size, int seed) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(size);
+            headerData.writeInt(size);
+            headerData.write(new byte[] { 8, 6, 0, 0, 0 });
+            writeChunk(data, "IHDR", header.toByteArray());
+
+            // A gradient with some noise, that compresses like a real image.
+            Random noise = new Random(seed);
+            ByteArrayOutputStream pixels = new ByteArrayOutputStream();
+            DeflaterOutputStream deflater = new DeflaterOutputStream(pixels);
+            for (int y = 0; y < size; y++) {
+                deflater.write(0);
+                for (int x = 0; x < size * 4; x++) {
+                    deflater.write(((x * 7 + y * 3 + seed * 31) & 0xf0) | noise.nextInt(16));
+                }
+            }
+            deflater.close();
+            writeChunk(data, "IDAT", pixels.toByteArray());
+            writeChunk(data, "IEND", new byte[0]);
+
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes("US-ASCII");
+        out.writeInt(data.length);
+        out.write(name);
+        out.write(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
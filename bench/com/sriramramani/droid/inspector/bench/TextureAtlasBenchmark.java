@@ -0,0 +1,120 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sriramramani.droid.inspector.model.AtlasLayout;
+import com.sriramramani.droid.inspector.model.DecodedImage;
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.Node.ContentType;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+import com.sriramramani.droid.inspector.model.NodeStore;
+import com.sriramramani.droid.inspector.model.XMLParser;
+
+/**
+ * Counts the texture binds a frame, and the texture memory, of the images of synthetic hierarchies:
+ * with a texture for each drawable, bound for each face, as before the atlas, and with the images
+ * packed into the pages of the atlas, bound once a run of faces on the same texture.
+ *
+ * Usage: TextureAtlasBenchmark [comma separated node counts] [comma separated image sizes] [distinct images]
+ */
+public class TextureAtlasBenchmark {
+    // Where an image is: the page from 1 up, or a texture of its own from -1 down.
+    private static final class Placed {
+        final int texture;
+        final long bytes;
+
+        Placed(int texture, long bytes) {
+            this.texture = texture;
+            this.bytes = bytes;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final String counts = (args.length > 0 ? args[0] : "1000,5000");
+        final String sizes = (args.length > 1 ? args[1] : "16,48,128,320");
+        final int distinct = (args.length > 2 ? Integer.parseInt(args[2]) : 64);
+
+        System.out.println("nodes,image_size,textures_before,binds_before,mb_before," +
+                           "pages,standalone,binds_after,mb_after");
+        for (String count : counts.split(",")) {
+            for (String size : sizes.split(",")) {
+                SyntheticDump generator = new SyntheticDump(1);
+                generator.nodes = Integer.parseInt(count.trim());
+                generator.imageSize = Integer.parseInt(size.trim());
+                generator.imageCount = distinct;
+
+                final Node root = new XMLParser().parse(new ByteArrayInputStream(generator.toByteArray()));
+                run(new NodeStore(root), generator.imageSize);
+            }
+        }
+    }
+
+    private static void run(NodeStore store, int imageSize) throws Exception {
+        final AtlasLayout layout = new AtlasLayout(AtlasLayout.PAGE_SIZE, AtlasLayout.MAX_PACKED_SIZE);
+        final Map<String, Placed> placed = new HashMap<String, Placed>();
+        long bytesBefore = 0;
+        long standaloneBytes = 0;
+        int standalone = 0;
+        int faces = 0;
+
+        // Binds after: a run only ends on a change of texture, and faces with a color keep a page bound.
+        int bindsAfter = 0;
+        int bound = 0;
+
+        for (int i = 0; i < store.size(); i++) {
+            if (!store.isDrawn(i)) {
+                continue;
+            }
+
+            final Node node = store.getNode(i);
+            for (Drawable drawable : new Drawable[] { node.getBackground(), node.getContent() }) {
+                if (drawable.type == ContentType.COLOR) {
+                    if (bound < 0) {
+                        bound = 0;
+                    }
+                    continue;
+                }
+
+                final byte[] bitmap = (drawable.type == ContentType.IMAGE ? drawable.getBitmap() : null);
+                if (bitmap == null) {
+                    continue;
+                }
+
+                Placed image = placed.get(drawable.imageKey);
+                if (image == null) {
+                    final DecodedImage decoded = DecodedImage.decode(bitmap);
+                    final long bytes = 4L * decoded.width * decoded.height;
+                    final int[] place = layout.place(decoded.width, decoded.height);
+                    if (place == null) {
+                        image = new Placed(-(++standalone), bytes);
+                        standaloneBytes += bytes;
+                    } else {
+                        image = new Placed(place[0] + 1, bytes);
+                    }
+                    placed.put(drawable.imageKey, image);
+                }
+
+                faces++;
+                bytesBefore += image.bytes;
+                if (image.texture != bound) {
+                    bindsAfter++;
+                    bound = image.texture;
+                }
+            }
+        }
+
+        final long pageBytes = 4L * layout.getPageSize() * layout.getPageSize();
+        final long bytesAfter = layout.getPageCount() * pageBytes + standaloneBytes;
+
+        // Before, every face had its own texture, bound to draw it.
+        System.out.println(String.format("%d,%d,%d,%d,%.2f,%d,%d,%d,%.2f",
+                store.size(), imageSize, faces, faces, bytesBefore / 1048576.0,
+                layout.getPageCount(), standalone, bindsAfter, bytesAfter / 1048576.0));
+    }
+}
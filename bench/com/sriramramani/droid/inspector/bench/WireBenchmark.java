@@ -0,0 +1,56 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.bench;
+
+import com.sriramramani.droid.inspector.client.DroidClient;
+import com.sriramramani.droid.inspector.client.DroidClient.Encoding;
+import com.sriramramani.droid.inspector.client.TransferStats;
+
+/**
+ * Captures 1, 10 and 50 MB dumps from a stand-in server in every encoding,
+ * and prints the time taken and the bytes on the wire.
+ *
+ * Usage: WireBenchmark [link-speed-in-MB/s, 0 for uncapped]
+ */
+public class WireBenchmark {
+    private static final int[] SIZES_MB = { 1, 10, 50 };
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        final long linkSpeed = (args.length > 0 ? Long.parseLong(args[0]) : 20) * 1024 * 1024;
+
+        System.out.println("size_mb,encoding,wire_bytes,millis");
+        for (int size : SIZES_MB) {
+            SyntheticDump generator = new SyntheticDump(size);
+            generator.nodes = generator.nodesForSize(size * 1024L * 1024L);
+            final byte[] dump = generator.toByteArray();
+
+            StandInServer server = new StandInServer(dump, linkSpeed, true);
+            server.start();
+            try {
+                for (Encoding encoding : Encoding.values()) {
+                    DroidClient client = new DroidClient(server.getPort());
+                    client.setEncoding(encoding);
+
+                    // Warm up once, then keep the best run.
+                    client.captureHierarchy(null);
+                    TransferStats best = null;
+                    for (int i = 0; i < RUNS; i++) {
+                        client.captureHierarchy(null);
+                        TransferStats stats = client.getLastTransfer();
+                        if (best == null || stats.nanos < best.nanos) {
+                            best = stats;
+                        }
+                    }
+
+                    System.out.println(String.format("%d,%s,%d,%.1f",
+                            size, encoding.name().toLowerCase(), best.bytes, best.nanos / 1.0e6));
+                }
+            } finally {
+                server.stop();
+            }
+        }
+    }
+}
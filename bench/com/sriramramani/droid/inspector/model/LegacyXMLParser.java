@@ -0,0 +1,212 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sriramramani.droid.inspector.model.Node.ContentType;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+
+/**
+ * The decoding as it was before AttributeDecoder: every attribute it knows is looked up by name,
+ * and bounds and colors are matched with regular expressions. Kept for ParseBenchmark to compare
+ * against. It reads with the same pull parser as XMLParser, so that only the decoding differs.
+ */
+public final class LegacyXMLParser {
+    private static final Pattern BOUNDS_PATTERN = Pattern.compile("\\[(-?\\d+),(-?\\d+)\\]\\[(-?\\d+),(-?\\d+)\\]");
+
+    // Color drawable pattern as #AARRGGBB
+    private static final Pattern COLOR_DRAWABLE = Pattern.compile("#(\\w{2})(\\w{2})(\\w{2})(\\w{2})");
+
+    // Whether each open element is a view.
+    private final BitSet mIsView = new BitSet();
+    private int mDepth = 0;
+
+    private final NodeStore mStore = new NodeStore();
+    private Node mRoot = null;
+    private Node mCurrent = null;
+
+    public Node parse(InputStream in) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        startElement(reader);
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (mDepth > 0 && mIsView.get(--mDepth) && mCurrent != null) {
+                            mCurrent = mCurrent.parent;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse the view dump.", e);
+        }
+
+        if (mRoot == null) {
+            throw new IOException("The view dump has no views.");
+        }
+
+        mRoot.calculateMaxBounds();
+        mRoot.calculateDepth();
+        return mRoot;
+    }
+
+    private void startElement(XMLStreamReader attributes) {
+        final boolean isView = (getIndex(attributes, "name") >= 0);
+        mIsView.set(mDepth++, isView);
+        if (!isView) {
+            return;
+        }
+
+        Node node = new Node(mStore);
+        node.name = getValue(attributes, "name");
+        node.id = getValue(attributes, "id");
+
+        // Set the parent.
+        node.parent = mCurrent;
+
+        String bounds = getValue(attributes, "bounds");
+        int[] rectBounds = new int[4];
+        getBounds(rectBounds, bounds);
+        node.setBounds(rectBounds[0], rectBounds[1], rectBounds[2], rectBounds[3]);
+
+        if (node.parent != null) {
+            node.setDevicePosition(node.parent.getDeviceLeft() + node.getX(), node.parent.getDeviceTop() + node.getY());
+        }
+
+        String padding = getValue(attributes, "padding");
+        node.setPadding(getBounds(new int[4], padding));
+
+        String margin = getValue(attributes, "margin");
+        if (margin != null) {
+            node.setMargin(getBounds(new int[4], margin));
+        }
+
+        int visibility = Integer.parseInt(getValue(attributes, "visibility"));
+        if (visibility == 1)
+            node.setVisibility(Node.Visibility.VISIBLE);
+        else if (visibility == -1)
+            node.setVisibility(Node.Visibility.INVISIBLE);
+        else
+            node.setVisibility(Node.Visibility.GONE);
+
+        if (getIndex(attributes, "background") > 0) {
+            setBackground(node, getValue(attributes, "background"));
+        } else {
+            node.setBackground(null);
+        }
+
+        if (getIndex(attributes, "content") > 0) {
+            node.setContent(getValue(attributes, "content"));
+        } else {
+            node.setContent(null);
+        }
+
+        if (getIndex(attributes, "drawable-padding") > 0) {
+            String drawablePadding = getValue(attributes, "drawable-padding");
+            if (drawablePadding != null) {
+                node.setDrawablePadding(getBounds(new int[4], drawablePadding));
+            }
+        }
+
+        node.scrollX = Float.parseFloat(getValue(attributes, "scroll-x"));
+        node.scrollY = Float.parseFloat(getValue(attributes, "scroll-y"));
+
+        if (getIndex(attributes, "scale-x") > 0) {
+            node.scaleX = Float.parseFloat(getValue(attributes, "scale-x"));
+        }
+
+        if (getIndex(attributes, "scale-y") > 0) {
+            node.scaleY = Float.parseFloat(getValue(attributes, "scale-y"));
+        }
+
+        if (getIndex(attributes, "rotation-x") > 0) {
+            node.rotationX = Float.parseFloat(getValue(attributes, "rotation-x"));
+        }
+
+        if (getIndex(attributes, "rotation-y") > 0) {
+            node.rotationY = Float.parseFloat(getValue(attributes, "rotation-y"));
+        }
+
+        if (getIndex(attributes, "translation-x") > 0) {
+            node.translationX = Float.parseFloat(getValue(attributes, "translation-x"));
+        }
+
+        if (getIndex(attributes, "translation-y") > 0) {
+            node.translationY = Float.parseFloat(getValue(attributes, "translation-y"));
+        }
+
+        if (mCurrent != null) {
+            mCurrent.addChild(node);
+        } else if (mRoot == null) {
+            mRoot = node;
+        }
+
+        mCurrent = node;
+    }
+
+    // Attributes.getIndex() of the SAX parser: a scan of the names.
+    private static int getIndex(XMLStreamReader attributes, String name) {
+        final int count = attributes.getAttributeCount();
+        for (int i = 0; i < count; i++) {
+            if (name.equals(attributes.getAttributeLocalName(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String getValue(XMLStreamReader attributes, String name) {
+        final int index = getIndex(attributes, name);
+        return (index >= 0 ? attributes.getAttributeValue(index) : null);
+    }
+
+    // Node.setBackground() as it was, with the color matched by COLOR_DRAWABLE.
+    private static void setBackground(Node node, String data) {
+        Matcher matcher = COLOR_DRAWABLE.matcher(data);
+        if (!matcher.matches()) {
+            node.setBackground(data);
+            return;
+        }
+
+        Drawable background = new Drawable();
+        background.type = ContentType.COLOR;
+        background.color = new Node.Color();
+        background.color.alpha = (float) Integer.parseInt(matcher.group(1), 16) / 255;
+        background.color.red = (float) Integer.parseInt(matcher.group(2), 16) / 255;
+        background.color.green = (float) Integer.parseInt(matcher.group(3), 16) / 255;
+        background.color.blue = (float) Integer.parseInt(matcher.group(4), 16) / 255;
+        node.setBackgroundDrawable(background);
+    }
+
+    private static int[] getBounds(int[] bounds, String attribute) {
+        Matcher matcher = BOUNDS_PATTERN.matcher(attribute);
+        if (matcher.matches()) {
+            bounds[0] = Integer.parseInt(matcher.group(1));
+            bounds[1] = Integer.parseInt(matcher.group(2));
+            bounds[2] = Integer.parseInt(matcher.group(3));
+            bounds[3] = Integer.parseInt(matcher.group(4));
+        }
+        return bounds;
+    }
+}
@@ -8,6 +8,9 @@ import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import com.sriramramani.droid.inspector.model.ImageStore;
+import com.sriramramani.droid.inspector.model.SnapshotIndex;
+
 /**
  * The activator class controls the plug-in life cycle
  */
@@ -32,6 +35,10 @@ public class DroidInspectorPlugin extends AbstractUIPlugin {
     public void start(BundleContext context) throws Exception {
         super.start(context);
         plugin = this;
+
+        // Keep the images of the captures across runs, instead of in the temp directory.
+        ImageStore.setDefault(new ImageStore(getStateLocation().append("images").toFile()));
+        SnapshotIndex.setDefault(new SnapshotIndex(getStateLocation().append("index").toFile()));
     }
 
     /*
@@ -39,6 +46,9 @@ public class DroidInspectorPlugin extends AbstractUIPlugin {
      * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
      */
     public void stop(BundleContext context) throws Exception {
+        // Finish writing the images of the captures.
+        ImageStore.getDefault().flush();
+
         plugin = null;
         super.stop(context);
     }
@@ -6,9 +6,10 @@ package com.sriramramani.droid.inspector.actions;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import org.eclipse.core.filesystem.EFS;
-import org.eclipse.core.filesystem.IFileStore;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.NullProgressMonitor;
@@ -19,24 +20,37 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPage;
 import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.PartInitException;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.WorkbenchException;
-import org.eclipse.ui.ide.IDE;
 
 import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.Client;
-import com.android.ddmlib.IDevice;
 import com.android.ddmlib.TimeoutException;
 import com.android.ide.eclipse.ddms.IClientAction;
 import com.sriramramani.droid.inspector.DroidInspectorPlugin;
 import com.sriramramani.droid.inspector.client.DroidClient;
+import com.sriramramani.droid.inspector.client.DroidSession;
+import com.sriramramani.droid.inspector.client.ImageFetcher;
+import com.sriramramani.droid.inspector.client.TransferStats;
+import com.sriramramani.droid.inspector.editors.DroidInspectorEditor;
+import com.sriramramani.droid.inspector.editors.SnapshotEditorInput;
+import com.sriramramani.droid.inspector.model.BinarySnapshot;
+import com.sriramramani.droid.inspector.model.Node;
 
 public class DroidInspectorAction extends Action implements IClientAction {
-    private static final int DEFAULT_SERVER_PORT = 4545;
+    // Set this system property to also save every capture.
+    // "dixb" saves a binary snapshot, "true" or "dix" saves the view dump as is.
+    private static final String PROPERTY_SAVE_DUMP = "com.sriramramani.droid.inspector.saveDump"; //$NON-NLS-1$
+
+    // Set this system property to "false" to wait for all the images before showing a capture.
+    // By default, the hierarchy is shown first, and the images fill in as they arrive.
+    private static final String PROPERTY_LAZY_IMAGES = "com.sriramramani.droid.inspector.lazyImages"; //$NON-NLS-1$
+
     private Client mClient;
 
     public DroidInspectorAction() {
@@ -68,30 +82,55 @@ public class DroidInspectorAction extends Action implements IClientAction {
 
         @Override
         protected IStatus run(IProgressMonitor monitor) {
-            DroidClient client = new DroidClient();
-
             if (monitor == null) {
                 monitor = new NullProgressMonitor();
             }
 
             monitor.beginTask("Collecting view dump.", 100);
-            final IDevice device = mClient.getDevice();
+            final Client client = mClient;
+            if (client == null) {
+                return Status.OK_STATUS;
+            }
+
+            // Kept open across captures.
+            final DroidSession session = Sessions.get(client.getDevice());
+
             try {
-                device.createForward(DroidClient.DEFAULT_LOCAL_PORT, DEFAULT_SERVER_PORT);
                 monitor.worked(20);
 
-                File file = File.createTempFile("dix_", ".dix");
-                client.printData(file);
-                monitor.worked(80);
+                // The dump is parsed as it arrives, saving it is optional.
+                final boolean saveBinary = isSavingBinary();
+                File file = createSaveFile("dix_");
+
+                // A saved capture needs all its images, so only the unsaved ones can be lazy.
+                final boolean isLazy = (file == null) && !"false".equals(System.getProperty(PROPERTY_LAZY_IMAGES));
+
+                Node root = (isLazy ? session.captureSkeleton() : session.capture(saveBinary ? null : file));
+                monitor.worked(70);
+                logTransfer(session.getLastTransfer());
+
+                if (saveBinary) {
+                    BinarySnapshot.write(root, file);
+                }
+                monitor.worked(10);
+
+                final SnapshotEditorInput input = new SnapshotEditorInput(root, file);
+                input.setSession(session);
+                if (isLazy) {
+                    final List<String> missing = DroidClient.findMissingImages(root);
+                    if (!missing.isEmpty()) {
+                        input.setImageFetcher(new ImageFetcher(session, missing));
+                    }
+                }
 
-                openFile(file);
+                openSnapshots(Collections.singletonList(input));
 
             } catch (TimeoutException e) {
                 showError("Timeout Error", "Seems like the window is out of focus. Waited 15 seconds to collect the view dump, but in vain.");
             } catch (AdbCommandRejectedException e) {
                 showError("ADB Error", "ADB is unable to create port forwarding. Ensure ADBHOST is enabled in preferences");
             } catch (IOException e) {
-                showError("File Error", "Unable to write file onto disk. Super encrypted file sytem huh?");
+                showError("Capture Error", "Unable to read the view dump from the device, or to write it onto disk.");
             } finally {
                 monitor.done();
             }
@@ -101,23 +140,55 @@ public class DroidInspectorAction extends Action implements IClientAction {
 
     @Override
     public void selectedClientChanged(Client client) {
+        final Client previous = mClient;
         if (client != null) {
             setEnabled(true);
             mClient = client;
         } else {
             setEnabled(false);
-            if (mClient != null) {
-                try {
-                    final IDevice device = mClient.getDevice();
-                    if (device != null) {
-                        device.removeForward(DroidClient.DEFAULT_LOCAL_PORT, DEFAULT_SERVER_PORT);
-                    }
-                } catch (Exception e) {
-                    // Don't care if forward can't be removed.
-                }
-            }
             mClient = null;
         }
+
+        // Let go of the connection to the device no longer selected. Editors of its captures reconnect.
+        if (previous != null && (client == null || previous.getDevice() != client.getDevice())) {
+            Sessions.close(previous.getDevice());
+        }
+    }
+
+    /**
+     * Whether captures are to be saved as binary snapshots, instead of the view dump as is.
+     */
+    static boolean isSavingBinary() {
+        return BinarySnapshot.EXTENSION.equals(System.getProperty(PROPERTY_SAVE_DUMP));
+    }
+
+    /**
+     * Creates the file to save a capture into, or returns null if captures aren't saved.
+     */
+    static File createSaveFile(String prefix) throws IOException {
+        final String save = System.getProperty(PROPERTY_SAVE_DUMP);
+        if (BinarySnapshot.EXTENSION.equals(save)) {
+            return File.createTempFile(prefix, "." + BinarySnapshot.EXTENSION);
+        } else if ("true".equals(save) || "dix".equals(save)) {
+            return File.createTempFile(prefix, ".dix");
+        }
+
+        return null;
+    }
+
+    private void logTransfer(TransferStats stats) {
+        if (stats != null) {
+            log("View dump: " + stats);
+        }
+    }
+
+    static void log(String message) {
+        final DroidInspectorPlugin plugin = DroidInspectorPlugin.getDefault();
+        if (plugin == null) {
+            return;
+        }
+
+        plugin.getLog().log(new Status(IStatus.INFO, DroidInspectorPlugin.PLUGIN_ID, message));
     }
 
     private void showError(String title, String message) {
@@ -127,10 +198,23 @@ public class DroidInspectorAction extends Action implements IClientAction {
         box.open();
     }
 
-    private void openFile(File file) {
-        final IFileStore fileStore =  EFS.getLocalFileSystem().getStore(file.toURI());
-        if (!fileStore.fetchInfo().exists()) {
-            return;
+    /**
+     * Opens the hierarchy in a new editor, and returns the editor if it could be opened.
+     */
+    static DroidInspectorEditor openSnapshot(Node root, File file) {
+        final List<SnapshotEditorInput> inputs = new ArrayList<SnapshotEditorInput>(1);
+        inputs.add(new SnapshotEditorInput(root, file));
+        return openSnapshots(inputs).get(0);
+    }
+
+    /**
+     * Opens the hierarchies in new editors, all at once.
+     * The editors are returned in the same order, with null for the ones that couldn't be opened.
+     */
+    static List<DroidInspectorEditor> openSnapshots(final List<SnapshotEditorInput> inputs) {
+        final List<DroidInspectorEditor> editors = new ArrayList<DroidInspectorEditor>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            editors.add(null);
         }
 
         final IWorkbench workbench = PlatformUI.getWorkbench();
@@ -153,12 +237,19 @@ public class DroidInspectorAction extends Action implements IClientAction {
                 } catch (WorkbenchException e) {
                 }
 
-                try {
-                    IDE.openEditorOnFileStore(page, fileStore);
-                } catch (PartInitException e) {
-                    return;
+                for (int i = 0; i < inputs.size(); i++) {
+                    try {
+                        IEditorPart part = page.openEditor(inputs.get(i), DroidInspectorEditor.ID);
+                        if (part instanceof DroidInspectorEditor) {
+                            editors.set(i, (DroidInspectorEditor) part);
+                        }
+                    } catch (PartInitException e) {
+                        continue;
+                    }
                 }
             }
         });
+
+        return editors;
     }
 }
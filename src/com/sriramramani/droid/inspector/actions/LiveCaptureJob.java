@@ -0,0 +1,232 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.actions;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.PlatformUI;
+
+import com.sriramramani.droid.inspector.DroidInspectorPlugin;
+import com.sriramramani.droid.inspector.client.DroidSession;
+import com.sriramramani.droid.inspector.editors.DroidInspectorEditor;
+import com.sriramramani.droid.inspector.model.Node;
+
+/**
+ * Captures the hierarchy continuously, and updates a single editor with every frame.
+ *
+ * A new dump is requested only after the previous one has been read off the session,
+ * so the device never has more than one request outstanding. A frame that arrives while
+ * the UI hasn't picked up the previous one replaces it, and the previous one is dropped.
+ */
+class LiveCaptureJob extends Job {
+    // Set this system property to change the number of captures per second.
+    static final String PROPERTY_LIVE_RATE = "com.sriramramani.droid.inspector.liveRate"; //$NON-NLS-1$
+
+    private static final float DEFAULT_RATE = 5.0f; // captures per second
+    private static final long STATUS_INTERVAL = 1000; // ms
+    private static final long CANCEL_POLL = 100; // ms
+
+    private final DroidSession mSession;
+    private final long mInterval; // ms
+
+    private final Object mLock = new Object();
+
+    // Latest frame that the UI is yet to show.
+    private Node mPendingFrame = null;
+    private boolean mIsApplyQueued = false;
+
+    private volatile DroidInspectorEditor mEditor = null;
+    private volatile boolean mIsEditorClosed = false;
+
+    // Counters, guarded by mLock.
+    private int mFramesCaptured = 0;
+    private int mFramesShown = 0;
+    private int mFramesDropped = 0;
+
+    // Counters at the last status update, only touched on the UI thread.
+    private long mStatusTime = 0;
+    private int mStatusCaptured = 0;
+    private int mStatusShown = 0;
+
+    private final Runnable mApplyFrame = new Runnable() {
+        @Override
+        public void run() {
+            applyFrame();
+        }
+    };
+
+    LiveCaptureJob(DroidSession session) {
+        super("Droid Inspector (Live)");
+
+        mSession = session;
+        mInterval = (long) (1000.0f / getRate());
+    }
+
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+        if (monitor == null) {
+            monitor = new NullProgressMonitor();
+        }
+
+        monitor.beginTask("Capturing view dumps continuously.", IProgressMonitor.UNKNOWN);
+        try {
+            while (!monitor.isCanceled() && !mIsEditorClosed) {
+                final long start = System.currentTimeMillis();
+
+                Node root = mSession.capture(null);
+                if (mEditor == null) {
+                    mEditor = DroidInspectorAction.openSnapshot(root, null);
+                    if (mEditor == null) {
+                        break;
+                    }
+
+                    synchronized (mLock) {
+                        mFramesCaptured++;
+                        mFramesShown++;
+                    }
+                } else {
+                    offerFrame(root);
+                }
+
+                // Wait for the next capture, a bit at a time to notice a cancel.
+                // Interrupting the thread instead would close the session.
+                long wait;
+                while ((wait = mInterval - (System.currentTimeMillis() - start)) > 0 && !monitor.isCanceled()) {
+                    Thread.sleep(Math.min(wait, CANCEL_POLL));
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (Exception e) {
+            return new Status(IStatus.ERROR, DroidInspectorPlugin.PLUGIN_ID, "Live capture stopped: unable to read the view dump from the device.", e);
+        } finally {
+            showStopped();
+            monitor.done();
+        }
+
+        return (monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS);
+    }
+
+    private void offerFrame(Node root) {
+        synchronized (mLock) {
+            mFramesCaptured++;
+            if (mPendingFrame != null) {
+                // The UI is still busy, show the newer frame instead.
+                mFramesDropped++;
+            }
+            mPendingFrame = root;
+
+            if (mIsApplyQueued) {
+                return;
+            }
+            mIsApplyQueued = true;
+        }
+
+        getDisplay().asyncExec(mApplyFrame);
+    }
+
+    // Runs on the UI thread.
+    private void applyFrame() {
+        final Node root;
+        synchronized (mLock) {
+            root = mPendingFrame;
+            mPendingFrame = null;
+            mIsApplyQueued = false;
+        }
+
+        final DroidInspectorEditor editor = mEditor;
+        if (editor == null || editor.isDisposed()) {
+            mIsEditorClosed = true;
+            return;
+        }
+
+        if (root != null) {
+            editor.setRoot(root);
+            synchronized (mLock) {
+                mFramesShown++;
+            }
+        }
+
+        updateStatus(editor);
+    }
+
+    // Runs on the UI thread.
+    private void updateStatus(DroidInspectorEditor editor) {
+        final long now = System.currentTimeMillis();
+        if (mStatusTime == 0) {
+            mStatusTime = now;
+            return;
+        }
+
+        final long elapsed = now - mStatusTime;
+        if (elapsed < STATUS_INTERVAL) {
+            return;
+        }
+
+        final int captured;
+        final int shown;
+        final int dropped;
+        synchronized (mLock) {
+            captured = mFramesCaptured;
+            shown = mFramesShown;
+            dropped = mFramesDropped;
+        }
+
+        final float capturedRate = (captured - mStatusCaptured) * 1000.0f / elapsed;
+        final float shownRate = (shown - mStatusShown) * 1000.0f / elapsed;
+        editor.setStatus(String.format("Live: %.1f captures/s, %.1f frames/s shown, %d dropped",
+                                       capturedRate, shownRate, dropped));
+
+        mStatusTime = now;
+        mStatusCaptured = captured;
+        mStatusShown = shown;
+    }
+
+    private void showStopped() {
+        final DroidInspectorEditor editor = mEditor;
+        if (editor == null) {
+            return;
+        }
+
+        getDisplay().asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                if (editor.isDisposed()) {
+                    return;
+                }
+
+                final int dropped;
+                synchronized (mLock) {
+                    dropped = mFramesDropped;
+                }
+                editor.setStatus("Live capture stopped, " + dropped + " frames dropped.");
+            }
+        });
+    }
+
+    private static Display getDisplay() {
+        return PlatformUI.getWorkbench().getDisplay();
+    }
+
+    private static float getRate() {
+        final String rate = System.getProperty(PROPERTY_LIVE_RATE);
+        if (rate != null) {
+            try {
+                final float value = Float.parseFloat(rate);
+                if (value > 0.0f) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // Use the default.
+            }
+        }
+
+        return DEFAULT_RATE;
+    }
+}
@@ -0,0 +1,84 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.actions;
+
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
+import org.eclipse.jface.action.Action;
+import org.eclipse.swt.widgets.Display;
+
+import com.android.ddmlib.Client;
+import com.android.ide.eclipse.ddms.IClientAction;
+import com.sriramramani.droid.inspector.DroidInspectorPlugin;
+
+/**
+ * Starts and stops a live capture of the selected client.
+ */
+public class LiveInspectorAction extends Action implements IClientAction {
+    private Client mClient;
+
+    // Running live capture, if any.
+    private LiveCaptureJob mJob;
+
+    public LiveInspectorAction() {
+        super("Droid Inspector (Live)", AS_CHECK_BOX);
+        setToolTipText("Inspect the view layers continuously");
+        setImageDescriptor(DroidInspectorPlugin.getImageDescriptor("icons/icon.gif"));
+    }
+
+    @Override
+    public Action getAction() {
+        return this;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (mJob != null) {
+            mJob.cancel();
+            return;
+        }
+
+        if (mClient == null) {
+            setChecked(false);
+            return;
+        }
+
+        final LiveCaptureJob job = new LiveCaptureJob(Sessions.get(mClient.getDevice()));
+        job.addJobChangeListener(new JobChangeAdapter() {
+            @Override
+            public void done(IJobChangeEvent event) {
+                synchronized (LiveInspectorAction.this) {
+                    if (mJob == job) {
+                        mJob = null;
+                    }
+                }
+
+                // Jobs end on a worker thread, and the action belongs to the UI thread.
+                Display.getDefault().asyncExec(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (LiveInspectorAction.this) {
+                            // Unless another capture was started in the meantime.
+                            if (mJob == null) {
+                                setChecked(false);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+
+        mJob = job;
+        setChecked(true);
+        job.schedule();
+    }
+
+    @Override
+    public void selectedClientChanged(Client client) {
+        // A running capture carries on with the client it was started on.
+        mClient = client;
+        setEnabled(client != null || isChecked());
+    }
+}
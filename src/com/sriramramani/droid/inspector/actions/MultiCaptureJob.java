@@ -0,0 +1,218 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.actions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.ui.PlatformUI;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.sriramramani.droid.inspector.DroidInspectorPlugin;
+import com.sriramramani.droid.inspector.client.DroidSession;
+import com.sriramramani.droid.inspector.client.TransferStats;
+import com.sriramramani.droid.inspector.editors.DroidInspectorEditor;
+import com.sriramramani.droid.inspector.editors.SnapshotEditorInput;
+import com.sriramramani.droid.inspector.model.BinarySnapshot;
+import com.sriramramani.droid.inspector.model.Node;
+
+/**
+ * Captures a process on many devices at once, and opens all the results together.
+ *
+ * Every device has a session on a local port of its own. At most a few devices are
+ * captured at a time, as they all share the adb connection.
+ */
+class MultiCaptureJob extends Job {
+    private static final int MAX_PARALLEL_CAPTURES = 4;
+
+    // How often to look for a cancel while waiting on the captures.
+    private static final long CANCEL_POLL = 100; // ms
+
+    private final String mProcessName;
+
+    private static final class Result {
+        final IDevice device;
+        Node root;
+        File file;
+        TransferStats transfer;
+        long millis;
+        Exception error;
+
+        Result(IDevice device) {
+            this.device = device;
+        }
+    }
+
+    MultiCaptureJob(String processName) {
+        super("Droid Inspector (All Devices)");
+        setUser(true);
+
+        mProcessName = processName;
+    }
+
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+        if (monitor == null) {
+            monitor = new NullProgressMonitor();
+        }
+
+        final List<IDevice> devices = findDevices();
+        if (devices.isEmpty()) {
+            return new Status(IStatus.WARNING, DroidInspectorPlugin.PLUGIN_ID, "No device is running " + mProcessName);
+        }
+
+        monitor.beginTask("Collecting view dumps from " + devices.size() + " devices.", devices.size() + 1);
+        final long start = System.nanoTime();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_CAPTURES, devices.size()));
+        final CompletionService<Result> captures = new ExecutorCompletionService<Result>(executor);
+        for (final IDevice device : devices) {
+            captures.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return capture(device);
+                }
+            });
+        }
+        executor.shutdown();
+
+        final List<Result> results = new ArrayList<Result>(devices.size());
+        try {
+            while (results.size() < devices.size()) {
+                if (monitor.isCanceled()) {
+                    executor.shutdownNow();
+                    return Status.CANCEL_STATUS;
+                }
+
+                Future<Result> done = captures.poll(CANCEL_POLL, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+
+                final Result result = done.get();
+                results.add(result);
+                monitor.subTask(result.device.getSerialNumber() + ": " + result.millis + " ms");
+                monitor.worked(1);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            return Status.CANCEL_STATUS;
+        } catch (ExecutionException e) {
+            // capture() catches everything it expects.
+            executor.shutdownNow();
+            return new Status(IStatus.ERROR, DroidInspectorPlugin.PLUGIN_ID, "Capture failed.", e.getCause());
+        }
+
+        final long totalMillis = (System.nanoTime() - start) / 1000000L;
+
+        // Report the timings, and open all the captures together.
+        final List<SnapshotEditorInput> inputs = new ArrayList<SnapshotEditorInput>();
+        final List<Result> captured = new ArrayList<Result>();
+        StringBuilder report = new StringBuilder();
+        report.append("Captured ").append(mProcessName).append(" on ").append(devices.size())
+              .append(" devices in ").append(totalMillis).append(" ms");
+
+        for (Result result : results) {
+            final String serial = result.device.getSerialNumber();
+            report.append("\n  ").append(serial).append(": ");
+            if (result.error != null) {
+                report.append("failed after ").append(result.millis).append(" ms, ").append(result.error);
+                continue;
+            }
+
+            report.append(result.millis).append(" ms");
+            if (result.transfer != null) {
+                report.append(", ").append(result.transfer);
+            }
+
+            final SnapshotEditorInput input = new SnapshotEditorInput(result.root, result.file, serial);
+            input.setSession(Sessions.get(result.device));
+            inputs.add(input);
+            captured.add(result);
+        }
+
+        DroidInspectorAction.log(report.toString());
+        monitor.worked(1);
+
+        final List<DroidInspectorEditor> editors = DroidInspectorAction.openSnapshots(inputs);
+        showTimings(editors, captured);
+
+        monitor.done();
+        return Status.OK_STATUS;
+    }
+
+    private List<IDevice> findDevices() {
+        final List<IDevice> devices = new ArrayList<IDevice>();
+
+        final AndroidDebugBridge bridge = AndroidDebugBridge.getBridge();
+        if (bridge == null) {
+            return devices;
+        }
+
+        for (IDevice device : bridge.getDevices()) {
+            if (device.isOnline() && device.getClient(mProcessName) != null) {
+                devices.add(device);
+            }
+        }
+
+        return devices;
+    }
+
+    // Runs on a capture thread.
+    private Result capture(IDevice device) {
+        final Result result = new Result(device);
+        final long start = System.nanoTime();
+        try {
+            final DroidSession session = Sessions.get(device);
+            final boolean saveBinary = DroidInspectorAction.isSavingBinary();
+            result.file = DroidInspectorAction.createSaveFile("dix_" + device.getSerialNumber() + "_");
+
+            result.root = session.capture(saveBinary ? null : result.file);
+            result.transfer = session.getLastTransfer();
+
+            if (saveBinary) {
+                BinarySnapshot.write(result.root, result.file);
+            }
+        } catch (Exception e) {
+            result.error = e;
+        }
+
+        result.millis = (System.nanoTime() - start) / 1000000L;
+        return result;
+    }
+
+    private static void showTimings(final List<DroidInspectorEditor> editors, final List<Result> results) {
+        PlatformUI.getWorkbench().getDisplay().asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < editors.size(); i++) {
+                    final DroidInspectorEditor editor = editors.get(i);
+                    if (editor == null || editor.isDisposed()) {
+                        continue;
+                    }
+
+                    final Result result = results.get(i);
+                    editor.setStatus(result.device.getSerialNumber() + ": captured in " + result.millis + " ms" +
+                                     (result.transfer != null ? " (" + result.transfer + ")" : ""));
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,51 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.actions;
+
+import org.eclipse.jface.action.Action;
+
+import com.android.ddmlib.Client;
+import com.android.ddmlib.ClientData;
+import com.android.ide.eclipse.ddms.IClientAction;
+import com.sriramramani.droid.inspector.DroidInspectorPlugin;
+
+/**
+ * Captures the selected client's process on every device that runs it.
+ */
+public class MultiInspectorAction extends Action implements IClientAction {
+    private Client mClient;
+
+    public MultiInspectorAction() {
+        setText("Droid Inspector (All Devices)");
+        setToolTipText("Inspect the view layers of this app on all devices");
+        setImageDescriptor(DroidInspectorPlugin.getImageDescriptor("icons/icon.gif"));
+    }
+
+    @Override
+    public Action getAction() {
+        return this;
+    }
+
+    @Override
+    public void run() {
+        final Client client = mClient;
+        if (client == null) {
+            return;
+        }
+
+        final ClientData data = client.getClientData();
+        if (data == null || data.getClientDescription() == null) {
+            return;
+        }
+
+        new MultiCaptureJob(data.getClientDescription()).schedule();
+    }
+
+    @Override
+    public void selectedClientChanged(Client client) {
+        setEnabled(client != null);
+        mClient = client;
+    }
+}
@@ -0,0 +1,56 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.actions;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.android.ddmlib.IDevice;
+import com.sriramramani.droid.inspector.client.DroidClient;
+import com.sriramramani.droid.inspector.client.DroidSession;
+
+/**
+ * Sessions to the devices, shared by the actions so that they don't fight over the port forward.
+ * Every device gets a local port of its own, so captures from many devices can run at once.
+ */
+final class Sessions {
+    static final int DEFAULT_SERVER_PORT = 4545;
+
+    private static final Map<IDevice, DroidSession> sSessions = new HashMap<IDevice, DroidSession>();
+
+    private Sessions() {
+    }
+
+    static synchronized DroidSession get(IDevice device) {
+        DroidSession session = sSessions.get(device);
+        if (session == null) {
+            session = new DroidSession(device, findLocalPort(), DEFAULT_SERVER_PORT);
+            sSessions.put(device, session);
+        }
+
+        return session;
+    }
+
+    private static int findLocalPort() {
+        try {
+            return DroidClient.findFreeLocalPort();
+        } catch (IOException e) {
+            return DroidClient.DEFAULT_LOCAL_PORT;
+        }
+    }
+
+    /**
+     * Closes the connection of the session to the device, if any, and removes its forward.
+     * The session is kept, so the captures and editors still using it reconnect on their next request,
+     * on the same port as the ones that get it afterwards.
+     */
+    static synchronized void close(IDevice device) {
+        final DroidSession session = sSessions.get(device);
+        if (session != null) {
+            session.close();
+        }
+    }
+}
@@ -4,15 +4,32 @@
 
 package com.sriramramani.droid.inspector.client;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.sriramramani.droid.inspector.model.ImageStore;
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+import com.sriramramani.droid.inspector.model.Subtree;
+import com.sriramramani.droid.inspector.model.XMLParser;
 
 public class DroidClient {
     private static final String LOCAL_HOST = "127.0.0.1";
@@ -20,27 +37,449 @@ public class DroidClient {
 
     public static final String COMMAND_PRINT_HIERARCHY = "print";
 
-    public void printData(File file) throws IOException {
-        SocketChannel channel = SocketChannel.open();
-        channel.connect(new InetSocketAddress(LOCAL_HOST, DEFAULT_LOCAL_PORT));
-        channel.socket().setSoTimeout(15000);
+    // Asks the device for the encodings it can send the view dump in.
+    // The reply is a single line, like "gzip deflate". Older devices close the socket instead.
+    public static final String COMMAND_CAPABILITIES = "capabilities";
+
+    // Capability, and option of the print command, to send images as "sha1:<key>" references.
+    public static final String OPTION_IMAGE_HASHES = "hashes";
+
+    // Asks for the images with the given keys. The reply has, for every key in order,
+    // a line with the length of the PNG followed by its bytes, or a line with -1 if unknown.
+    public static final String COMMAND_IMAGES = "images";
+
+    // Capability, and option of the print command, to send a single subtree. The option takes a target,
+    // "id:<view id>" or "path:<index>/<index>/...", with the index of every node on the way in its parent.
+    // The dump is preceded by a line with the path of the subtree found, like "path 0/3/1", or by a line
+    // like "error <message>" and nothing else. The dump has the ancestors of the subtree from the window
+    // root down, each with just the one child on the way, and the subtree in full at the end.
+    public static final String OPTION_SUBTREE = "subtree";
+
+    private static final String TARGET_ID = "id:";
+    private static final String TARGET_PATH = "path:";
+
+    private static final String REPLY_PATH = "path";
+    private static final String REPLY_ERROR = "error";
+
+    // Time to wait for a reply to the capabilities handshake, or to the session command.
+    static final int HANDSHAKE_TIMEOUT = 2000; // ms
+
+    // Time to wait for the device to send anything while reading a reply.
+    static final int READ_TIMEOUT = 15000; // ms
+
+    public static enum Encoding {
+        PLAIN(null),
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String mName;
+
+        private Encoding(String name) {
+            mName = name;
+        }
+
+        public String getCommand() {
+            return (mName == null ? COMMAND_PRINT_HIERARCHY : COMMAND_PRINT_HIERARCHY + " " + mName);
+        }
+
+        public InputStream wrap(InputStream in) throws IOException {
+            switch (this) {
+                case GZIP:
+                    return new GZIPInputStream(in, 8 * 1024);
+
+                case DEFLATE:
+                    return new InflaterInputStream(in, new Inflater(), 8 * 1024);
+
+                default:
+                    return in;
+            }
+        }
+    };
+
+    private final int mPort;
+
+    // Encoding to request the dump in. Null until the handshake is done.
+    private Encoding mEncoding = null;
+
+    // Whether the device can send image hashes in place of the images.
+    private boolean mSupportsImageHashes = false;
+
+    // Whether the device can send a subtree on its own.
+    private boolean mSupportsSubtree = false;
+
+    private TransferStats mLastTransfer;
+
+    public DroidClient() {
+        this(DEFAULT_LOCAL_PORT);
+    }
+
+    public DroidClient(int port) {
+        mPort = port;
+    }
+
+    /**
+     * Streams the view dump from the device straight into the parser.
+     * The dump is sent compressed if the device supports it, and is inflated as it is read.
+     * If a side output is given, the plain dump is copied into it as it is read.
+     * Otherwise, if the device supports it, only the images missing in the image store are sent.
+     *
+     * @param sideOutput File to save the dump into, or null to skip saving.
+     * @return The root of the parsed hierarchy.
+     */
+    public Node captureHierarchy(File sideOutput) throws IOException {
+        return capture(sideOutput, true);
+    }
+
+    /**
+     * Captures the hierarchy without the images that the image store lacks, if the device supports it.
+     * The missing images can be fetched later with {@link #fetchImages(List)}.
+     */
+    public Node captureSkeleton() throws IOException {
+        return capture(null, false);
+    }
 
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(channel.socket().getOutputStream()));
-        writer.write(COMMAND_PRINT_HIERARCHY);
-        writer.newLine();
-        writer.flush();
+    private Node capture(File sideOutput, boolean withImages) throws IOException {
+        final Encoding encoding = getEncoding();
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(channel.socket().getInputStream()), 8 * 1024);
-        OutputStreamWriter output = new OutputStreamWriter(new FileOutputStream(file));
+        // A saved dump has to stand on its own, so it needs the images in it.
+        final boolean useHashes = mSupportsImageHashes && sideOutput == null;
 
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            output.write(line);
+        SocketChannel channel = openChannel();
+        InputStream input = null;
+        Node root;
+        long bytes;
+        final long start = System.nanoTime();
+        try {
+            sendCommand(channel, getPrintCommand(encoding, useHashes));
+
+            CountingInputStream counter = new CountingInputStream(channel.socket().getInputStream());
+            input = new BufferedInputStream(counter, 8 * 1024);
+
+            root = readHierarchy(input, encoding, sideOutput);
+            bytes = counter.getCount();
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            channel.close();
+        }
+
+        if (useHashes && withImages) {
+            bytes += fetchImages(findMissingImages(root));
+        }
+
+        mLastTransfer = new TransferStats(bytes, System.nanoTime() - start);
+        return root;
+    }
+
+    /**
+     * Asks the device for the images, and adds them to the image store.
+     * Returns the number of bytes read.
+     */
+    public long fetchImages(List<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        SocketChannel channel = openChannel();
+        InputStream input = null;
+        try {
+            sendCommand(channel, getImagesCommand(keys));
+            input = new BufferedInputStream(channel.socket().getInputStream(), 64 * 1024);
+            return readImages(input, keys);
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Captures just the subtree with the target, and the bounds of its ancestors.
+     *
+     * @param target The view, from {@link #idTarget(String)} or {@link #pathTarget(int[])}.
+     */
+    public Subtree captureSubtree(String target) throws IOException {
+        final Encoding encoding = getEncoding();
+        if (!mSupportsSubtree) {
+            throw new IOException("The device can't send a subtree on its own.");
+        }
+
+        SocketChannel channel = openChannel();
+        InputStream input = null;
+        Subtree subtree;
+        long bytes;
+        final long start = System.nanoTime();
+        try {
+            sendCommand(channel, getSubtreeCommand(encoding, mSupportsImageHashes, target));
+
+            CountingInputStream counter = new CountingInputStream(channel.socket().getInputStream());
+            input = new BufferedInputStream(counter, 8 * 1024);
+
+            subtree = readSubtree(input, encoding);
+            bytes = counter.getCount();
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            channel.close();
+        }
+
+        if (mSupportsImageHashes) {
+            bytes += fetchImages(findMissingImages(subtree.root));
+        }
+
+        mLastTransfer = new TransferStats(bytes, System.nanoTime() - start);
+        return subtree;
+    }
+
+    public static String idTarget(String id) {
+        return TARGET_ID + id;
+    }
+
+    public static String pathTarget(int[] path) {
+        return TARGET_PATH + Subtree.toPathString(path);
+    }
+
+    static String getPrintCommand(Encoding encoding, boolean useHashes) {
+        return (useHashes ? encoding.getCommand() + " " + OPTION_IMAGE_HASHES : encoding.getCommand());
+    }
+
+    static String getSubtreeCommand(Encoding encoding, boolean useHashes, String target) {
+        return getPrintCommand(encoding, useHashes) + " " + OPTION_SUBTREE + " " + target;
+    }
+
+    /**
+     * Reads the reply to a subtree request: the line with the path, and the partial dump.
+     */
+    static Subtree readSubtree(InputStream in, Encoding encoding) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            throw new IOException("The device hung up without sending the subtree.");
         }
 
-        writer.close();
-        output.close();
-        reader.close();
-        channel.close();
+        header = header.trim();
+        if (header.startsWith(REPLY_ERROR)) {
+            throw new IOException("The device couldn't send the subtree: " + header.substring(REPLY_ERROR.length()).trim());
+        }
+
+        if (!header.startsWith(REPLY_PATH)) {
+            throw new IOException("Unexpected subtree header from the device: " + header);
+        }
+
+        final int[] path;
+        try {
+            path = Subtree.parsePath(header.substring(REPLY_PATH.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected subtree header from the device: " + header);
+        }
+
+        return new Subtree(readHierarchy(in, encoding, null), path);
+    }
+
+    /**
+     * Returns the keys of the images in the hierarchy that the image store doesn't have.
+     */
+    public static List<String> findMissingImages(Node root) {
+        Set<String> keys = new LinkedHashSet<String>();
+        collectMissingImages(root, ImageStore.getDefault(), keys);
+        return new ArrayList<String>(keys);
+    }
+
+    private static void collectMissingImages(Node node, ImageStore store, Set<String> keys) {
+        addIfMissing(node.getBackground(), store, keys);
+        addIfMissing(node.getContent(), store, keys);
+
+        for (Node child : node.children) {
+            collectMissingImages(child, store, keys);
+        }
+    }
+
+    private static void addIfMissing(Drawable drawable, ImageStore store, Set<String> keys) {
+        if (drawable != null && drawable.imageKey != null &&
+            !keys.contains(drawable.imageKey) && !store.contains(drawable.imageKey)) {
+            keys.add(drawable.imageKey);
+        }
+    }
+
+    static String getImagesCommand(List<String> keys) {
+        StringBuilder command = new StringBuilder(COMMAND_IMAGES.length() + keys.size() * 41);
+        command.append(COMMAND_IMAGES);
+        for (String key : keys) {
+            command.append(' ').append(key);
+        }
+        return command.toString();
+    }
+
+    /**
+     * Reads the reply to an images command into the image store. Returns the number of bytes read.
+     */
+    static long readImages(InputStream in, List<String> keys) throws IOException {
+        final ImageStore store = ImageStore.getDefault();
+        DataInputStream data = new DataInputStream(in);
+
+        long bytes = 0;
+        for (String key : keys) {
+            final String header = readLine(in);
+            if (header == null) {
+                throw new IOException("The device sent " + bytes + " bytes of images, and hung up.");
+            }
+
+            final int length;
+            try {
+                length = Integer.parseInt(header.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected image header from the device: " + header);
+            }
+
+            bytes += header.length() + 1;
+            if (length < 0) {
+                // The device no longer has it, the drawable will be left empty.
+                continue;
+            }
+
+            byte[] png = new byte[length];
+            data.readFully(png);
+            bytes += length;
+            store.put(key, png);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Parses a view dump sent in the given encoding, copying the plain dump into the side output if given.
+     */
+    static Node readHierarchy(InputStream in, Encoding encoding, File sideOutput) throws IOException {
+        InputStream input = encoding.wrap(in);
+        if (sideOutput != null) {
+            // The plain bytes, as the parser reads them and under the timeout of the socket, without decoding.
+            input = new TeeInputStream(input, new BufferedOutputStream(new FileOutputStream(sideOutput), 8 * 1024));
+        }
+
+        try {
+            return new XMLParser().parse(input);
+        } finally {
+            if (sideOutput != null) {
+                // Flushes the side output.
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the stats of the last capture, or null if there was none.
+     */
+    public TransferStats getLastTransfer() {
+        return mLastTransfer;
+    }
+
+    /**
+     * Returns the encoding the dump will be requested in, doing the handshake if needed.
+     */
+    public Encoding getEncoding() {
+        if (mEncoding == null) {
+            mEncoding = negotiateEncoding();
+        }
+
+        return mEncoding;
+    }
+
+    /**
+     * Whether the device sends image hashes, and the images the image store lacks on request.
+     */
+    public boolean supportsImageHashes() {
+        getEncoding();
+        return mSupportsImageHashes;
+    }
+
+    /**
+     * Forces an encoding, skipping the handshake.
+     */
+    public void setEncoding(Encoding encoding) {
+        mEncoding = encoding;
+    }
+
+    /**
+     * Whether the device can send a subtree on its own.
+     */
+    public boolean supportsSubtree() {
+        getEncoding();
+        return mSupportsSubtree;
+    }
+
+    private Encoding negotiateEncoding() {
+        String capabilities = null;
+        try {
+            SocketChannel channel = openChannel();
+            try {
+                channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT);
+                sendCommand(channel, COMMAND_CAPABILITIES);
+                capabilities = readLine(channel.socket().getInputStream());
+            } finally {
+                channel.close();
+            }
+        } catch (SocketTimeoutException e) {
+            // Old device that doesn't reply to unknown commands.
+        } catch (IOException e) {
+            // Old device that closed the socket on an unknown command.
+        }
+
+        if (capabilities == null) {
+            return Encoding.PLAIN;
+        }
+
+        // Prefer gzip for its checksum.
+        Encoding encoding = Encoding.PLAIN;
+        for (String capability : capabilities.trim().split("\\s+")) {
+            if (capability.equals(Encoding.GZIP.mName)) {
+                encoding = Encoding.GZIP;
+            } else if (capability.equals(Encoding.DEFLATE.mName) && encoding != Encoding.GZIP) {
+                encoding = Encoding.DEFLATE;
+            } else if (capability.equals(OPTION_IMAGE_HASHES)) {
+                mSupportsImageHashes = true;
+            } else if (capability.equals(OPTION_SUBTREE)) {
+                mSupportsSubtree = true;
+            }
+        }
+
+        return encoding;
+    }
+
+    /**
+     * Finds a local port that is free right now, so that captures running at once don't collide.
+     */
+    public static int findFreeLocalPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(LOCAL_HOST));
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int value;
+        while ((value = in.read()) != -1 && value != '\n') {
+            line.append((char) value);
+        }
+
+        return (value == -1 && line.length() == 0 ? null : line.toString());
+    }
+
+    SocketChannel openChannel() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.connect(new InetSocketAddress(LOCAL_HOST, mPort));
+        channel.socket().setSoTimeout(READ_TIMEOUT);
+        return channel;
+    }
+
+    static void sendCommand(SocketChannel channel, String command) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((command + "\n").getBytes("US-ASCII"));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 }
@@ -0,0 +1,420 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.client;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.TimeoutException;
+import com.sriramramani.droid.inspector.client.DroidClient.Encoding;
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.Subtree;
+
+/**
+ * A long-lived connection to the inspector server on a device.
+ *
+ * The port forward is created once, and a single socket carries all the captures.
+ * After the "session" command is acknowledged with "ok", every request is answered
+ * with a frame: a line with the length in bytes, followed by that many bytes.
+ * A "ping" is answered with "pong", and keeps idle connections from being dropped.
+ *
+ * A closed session opens the forward and the connection again on its next use, so editors
+ * holding on to it can still fetch their images and refresh their subtrees.
+ *
+ * Devices that don't know the "session" command, and either hang up, say something else,
+ * or say nothing for a short while, are captured with a new connection every time,
+ * which still saves setting up the forward.
+ */
+public class DroidSession {
+    public static final String COMMAND_SESSION = "session";
+    public static final String COMMAND_PING = "ping";
+
+    private static final String REPLY_OK = "ok";
+    private static final String REPLY_PONG = "pong";
+
+    private static final long KEEPALIVE_INTERVAL = 10000; // ms
+
+    private final IDevice mDevice;
+    private final int mLocalPort;
+    private final int mServerPort;
+    private final DroidClient mClient;
+
+    private boolean mIsForwarded = false;
+
+    // Whether the device answers many requests on one connection. Null until asked.
+    private Boolean mIsFramed = null;
+
+    private SocketChannel mChannel;
+    private InputStream mInput;
+
+    private Timer mKeepAlive;
+    private long mLastUsed;
+
+    private TransferStats mLastTransfer;
+
+    public DroidSession(IDevice device, int localPort, int serverPort) {
+        mDevice = device;
+        mLocalPort = localPort;
+        mServerPort = serverPort;
+        mClient = new DroidClient(localPort);
+    }
+
+    public IDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Captures the view hierarchy over the session, connecting first if needed.
+     *
+     * @param sideOutput File to save the dump into, or null to skip saving.
+     * @return The root of the parsed hierarchy.
+     */
+    public synchronized Node capture(File sideOutput) throws IOException, TimeoutException, AdbCommandRejectedException {
+        return capture(sideOutput, true);
+    }
+
+    /**
+     * Captures the hierarchy without the images that the image store lacks, if the device supports it.
+     * The drawables still know their image keys, and the images can be fetched later.
+     */
+    public synchronized Node captureSkeleton() throws IOException, TimeoutException, AdbCommandRejectedException {
+        return capture(null, false);
+    }
+
+    private Node capture(File sideOutput, boolean withImages) throws IOException, TimeoutException, AdbCommandRejectedException {
+        final long start = System.nanoTime();
+
+        forward();
+
+        boolean isReused = (mChannel != null);
+        if (mIsFramed == null || (mIsFramed && mChannel == null)) {
+            connect();
+        }
+
+        if (!mIsFramed) {
+            final long setup = System.nanoTime() - start;
+            Node root = (withImages ? mClient.captureHierarchy(sideOutput) : mClient.captureSkeleton());
+            final TransferStats transfer = mClient.getLastTransfer();
+            mLastTransfer = new TransferStats(transfer.bytes, transfer.nanos, setup);
+            return root;
+        }
+
+        final Encoding encoding = mClient.getEncoding();
+        final boolean useHashes = mClient.supportsImageHashes() && sideOutput == null;
+        final String command = DroidClient.getPrintCommand(encoding, useHashes);
+        long setup = System.nanoTime() - start;
+
+        long transferStart = System.nanoTime();
+        long length = requestFrame(command);
+        if (length < 0 && isReused) {
+            // The device dropped the idle connection, try once more on a fresh one.
+            disconnect();
+            connect();
+            setup += System.nanoTime() - transferStart;
+
+            transferStart = System.nanoTime();
+            length = requestFrame(command);
+        }
+
+        if (length < 0) {
+            disconnect();
+            throw new IOException("The device closed the session.");
+        }
+
+        try {
+            FrameInputStream frame = new FrameInputStream(mInput, length);
+            Node root = DroidClient.readHierarchy(frame, encoding, sideOutput);
+            frame.close();
+
+            long bytes = length;
+            if (useHashes && withImages) {
+                bytes += requestImages(DroidClient.findMissingImages(root));
+            }
+
+            mLastTransfer = new TransferStats(bytes, System.nanoTime() - transferStart, setup);
+            mLastUsed = System.currentTimeMillis();
+            return root;
+        } catch (IOException e) {
+            // The connection is in an unknown state, start afresh next time.
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Captures just the subtree with the target, and the bounds of its ancestors.
+     *
+     * @param target The view, from {@link DroidClient#idTarget(String)} or {@link DroidClient#pathTarget(int[])}.
+     */
+    public synchronized Subtree captureSubtree(String target) throws IOException, TimeoutException, AdbCommandRejectedException {
+        final long start = System.nanoTime();
+
+        forward();
+
+        boolean isReused = (mChannel != null);
+        if (mIsFramed == null || (mIsFramed && mChannel == null)) {
+            connect();
+        }
+
+        if (!mIsFramed) {
+            final long setup = System.nanoTime() - start;
+            Subtree subtree = mClient.captureSubtree(target);
+            final TransferStats transfer = mClient.getLastTransfer();
+            mLastTransfer = new TransferStats(transfer.bytes, transfer.nanos, setup);
+            return subtree;
+        }
+
+        if (!mClient.supportsSubtree()) {
+            throw new IOException("The device can't send a subtree on its own.");
+        }
+
+        final Encoding encoding = mClient.getEncoding();
+        final boolean useHashes = mClient.supportsImageHashes();
+        final String command = DroidClient.getSubtreeCommand(encoding, useHashes, target);
+        long setup = System.nanoTime() - start;
+
+        long transferStart = System.nanoTime();
+        long length = requestFrame(command);
+        if (length < 0 && isReused) {
+            disconnect();
+            connect();
+            setup += System.nanoTime() - transferStart;
+
+            transferStart = System.nanoTime();
+            length = requestFrame(command);
+        }
+
+        if (length < 0) {
+            disconnect();
+            throw new IOException("The device closed the session.");
+        }
+
+        FrameInputStream frame = new FrameInputStream(mInput, length);
+        try {
+            Subtree subtree;
+            try {
+                subtree = DroidClient.readSubtree(frame, encoding);
+            } finally {
+                // Skip the rest of the frame even if the device couldn't find the view.
+                frame.close();
+            }
+
+            long bytes = length;
+            if (useHashes) {
+                bytes += requestImages(DroidClient.findMissingImages(subtree.root));
+            }
+
+            mLastTransfer = new TransferStats(bytes, System.nanoTime() - transferStart, setup);
+            mLastUsed = System.currentTimeMillis();
+            return subtree;
+        } catch (IOException e) {
+            // A view that couldn't be found leaves the connection usable.
+            if (frame.isDrained()) {
+                mLastUsed = System.currentTimeMillis();
+            } else {
+                disconnect();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Asks the device for the images, and adds them to the image store.
+     * Returns the number of bytes read.
+     */
+    public synchronized long fetchImages(List<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            forward();
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out forwarding the port to the device.");
+        } catch (AdbCommandRejectedException e) {
+            throw new IOException("The device refused to forward the port: " + e.getMessage());
+        }
+
+        if (mIsFramed == null || (mIsFramed && mChannel == null)) {
+            connect();
+        }
+
+        if (!mIsFramed) {
+            return mClient.fetchImages(keys);
+        }
+
+        try {
+            return requestImages(keys);
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Asks for the images in a frame of their own. Returns the size of the frame.
+     */
+    private long requestImages(List<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        final long length = requestFrame(DroidClient.getImagesCommand(keys));
+        if (length < 0) {
+            throw new IOException("The device closed the session.");
+        }
+
+        FrameInputStream frame = new FrameInputStream(mInput, length);
+        DroidClient.readImages(frame, keys);
+        frame.close();
+        mLastUsed = System.currentTimeMillis();
+        return length;
+    }
+
+    /**
+     * Returns the stats of the last capture, or null if there was none.
+     * The setup time is zero when the capture reused the open connection.
+     */
+    public synchronized TransferStats getLastTransfer() {
+        return mLastTransfer;
+    }
+
+    /**
+     * Closes the connection and removes the port forward, till the session is used again.
+     */
+    public synchronized void close() {
+        disconnect();
+
+        if (mIsForwarded) {
+            try {
+                mDevice.removeForward(mLocalPort, mServerPort);
+            } catch (Exception e) {
+                // Don't care if forward can't be removed.
+            }
+            mIsForwarded = false;
+        }
+    }
+
+    // Forwards the port, if it isn't already.
+    private void forward() throws IOException, TimeoutException, AdbCommandRejectedException {
+        if (!mIsForwarded) {
+            mDevice.createForward(mLocalPort, mServerPort);
+            mIsForwarded = true;
+        }
+    }
+
+    private void connect() throws IOException {
+        // Ask for the encoding before the session socket is opened,
+        // as the handshake needs a connection of its own.
+        mClient.getEncoding();
+
+        mChannel = mClient.openChannel();
+        mInput = new BufferedInputStream(mChannel.socket().getInputStream(), 8 * 1024);
+
+        String reply = null;
+        try {
+            mChannel.socket().setSoTimeout(DroidClient.HANDSHAKE_TIMEOUT);
+            DroidClient.sendCommand(mChannel, COMMAND_SESSION);
+            reply = DroidClient.readLine(mInput);
+        } catch (SocketTimeoutException e) {
+            // Old device that doesn't reply to unknown commands.
+        } catch (IOException e) {
+            // Old device that closed the socket on an unknown command.
+        }
+
+        mIsFramed = REPLY_OK.equals(reply != null ? reply.trim() : null);
+        if (!mIsFramed) {
+            // The captures open connections of their own from now on.
+            disconnect();
+            return;
+        }
+
+        mChannel.socket().setSoTimeout(DroidClient.READ_TIMEOUT);
+
+        mLastUsed = System.currentTimeMillis();
+        startKeepAlive();
+    }
+
+    /**
+     * Sends a request and reads the length of the frame that answers it.
+     * Returns -1 if the connection was closed.
+     */
+    private long requestFrame(String command) throws IOException {
+        String header;
+        try {
+            DroidClient.sendCommand(mChannel, command);
+            header = DroidClient.readLine(mInput);
+        } catch (IOException e) {
+            return -1;
+        }
+
+        if (header == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            disconnect();
+            throw new IOException("Unexpected frame header from the device: " + header);
+        }
+    }
+
+    private void disconnect() {
+        if (mKeepAlive != null) {
+            mKeepAlive.cancel();
+            mKeepAlive = null;
+        }
+
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Closing anyways.
+            }
+        }
+
+        mChannel = null;
+        mInput = null;
+    }
+
+    private void startKeepAlive() {
+        mKeepAlive = new Timer("Droid Inspector keepalive", true);
+        mKeepAlive.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                ping();
+            }
+        }, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL);
+    }
+
+    private synchronized void ping() {
+        if (mChannel == null || System.currentTimeMillis() - mLastUsed < KEEPALIVE_INTERVAL) {
+            return;
+        }
+
+        try {
+            DroidClient.sendCommand(mChannel, COMMAND_PING);
+            final String reply = DroidClient.readLine(mInput);
+            if (reply == null || !REPLY_PONG.equals(reply.trim())) {
+                disconnect();
+                return;
+            }
+            mLastUsed = System.currentTimeMillis();
+        } catch (IOException e) {
+            // Reconnect on the next capture.
+            disconnect();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a single length-prefixed frame off a stream that carries many.
+ * Closing it skips the unread rest of the frame, and leaves the stream open for the next one.
+ */
+class FrameInputStream extends FilterInputStream {
+    private long mRemaining;
+
+    FrameInputStream(InputStream in, long length) {
+        super(in);
+        mRemaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mRemaining <= 0) {
+            return -1;
+        }
+
+        int value = super.read();
+        if (value == -1) {
+            throw new IOException("Connection closed in the middle of a frame.");
+        }
+
+        mRemaining--;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mRemaining <= 0) {
+            return -1;
+        }
+
+        int count = super.read(buffer, offset, (int) Math.min(length, mRemaining));
+        if (count == -1) {
+            throw new IOException("Connection closed in the middle of a frame.");
+        }
+
+        mRemaining -= count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, mRemaining));
+        mRemaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), mRemaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Whether the whole frame has been read, so that the next one can follow.
+     */
+    public boolean isDrained() {
+        return mRemaining <= 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // Drain.
+        }
+    }
+}
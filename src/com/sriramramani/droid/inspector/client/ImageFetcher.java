@@ -0,0 +1,153 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pulls the images of a skeleton capture from the device in the background, a batch at a time.
+ *
+ * Images start in the order they were given. Images that are asked for later, like the ones
+ * of the selected node, jump the queue, the latest ask first.
+ */
+public class ImageFetcher implements Runnable {
+    private static final int BATCH_SIZE = 32;
+
+    public interface IImagesLoadedListener {
+        /**
+         * Called on the fetcher thread, once the images are in the image store.
+         * Images the device no longer has are reported too, and stay missing in the store.
+         */
+        public void onImagesLoaded(List<String> keys);
+    }
+
+    private final DroidSession mSession;
+
+    // Keys yet to fetch, in the default order.
+    private final LinkedHashSet<String> mPending;
+
+    // Keys to fetch first. May hold keys that were fetched since, which are skipped.
+    private final LinkedList<String> mUrgent = new LinkedList<String>();
+
+    private IImagesLoadedListener mListener;
+    private Thread mThread;
+    private boolean mIsCancelled = false;
+
+    private int mFetched = 0;
+
+    public ImageFetcher(DroidSession session, Collection<String> keys) {
+        mSession = session;
+        mPending = new LinkedHashSet<String>(keys);
+    }
+
+    public synchronized void setImagesLoadedListener(IImagesLoadedListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mThread != null || mIsCancelled) {
+            return;
+        }
+
+        mThread = new Thread(this, "Droid Inspector images");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Fetches these images before the rest. The first key is fetched first.
+     */
+    public synchronized void prioritize(Collection<String> keys) {
+        List<String> wanted = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            if (mPending.contains(key)) {
+                wanted.add(key);
+            }
+        }
+
+        mUrgent.addAll(0, wanted);
+    }
+
+    public synchronized void cancel() {
+        mIsCancelled = true;
+        mPending.clear();
+        mUrgent.clear();
+    }
+
+    public synchronized boolean isDone() {
+        return mPending.isEmpty();
+    }
+
+    public synchronized int getRemaining() {
+        return mPending.size();
+    }
+
+    public synchronized int getFetched() {
+        return mFetched;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final List<String> batch = nextBatch();
+            if (batch == null) {
+                return;
+            }
+
+            try {
+                mSession.fetchImages(batch);
+            } catch (IOException e) {
+                // Leave the rest as placeholders.
+                cancel();
+                return;
+            }
+
+            final IImagesLoadedListener listener;
+            synchronized (this) {
+                if (mIsCancelled) {
+                    return;
+                }
+
+                mPending.removeAll(batch);
+                mFetched += batch.size();
+                listener = mListener;
+            }
+
+            if (listener != null) {
+                listener.onImagesLoaded(batch);
+            }
+        }
+    }
+
+    private synchronized List<String> nextBatch() {
+        if (mIsCancelled || mPending.isEmpty()) {
+            return null;
+        }
+
+        List<String> batch = new ArrayList<String>(BATCH_SIZE);
+        while (batch.size() < BATCH_SIZE && !mUrgent.isEmpty()) {
+            final String key = mUrgent.removeFirst();
+            if (mPending.contains(key) && !batch.contains(key)) {
+                batch.add(key);
+            }
+        }
+
+        Iterator<String> iterator = mPending.iterator();
+        while (batch.size() < BATCH_SIZE && iterator.hasNext()) {
+            final String key = iterator.next();
+            if (!batch.contains(key)) {
+                batch.add(key);
+            }
+        }
+
+        return batch;
+    }
+}
@@ -0,0 +1,52 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.client;
+
+/**
+ * Bytes moved and time taken by a single transfer from the device.
+ */
+public class TransferStats {
+    public final long bytes;
+    public final long nanos;
+
+    // Time spent on port forwarding and connecting before the transfer.
+    // Zero when an open session was reused.
+    public final long setupNanos;
+
+    public TransferStats(long bytes, long nanos) {
+        this(bytes, nanos, 0);
+    }
+
+    public TransferStats(long bytes, long nanos, long setupNanos) {
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.setupNanos = setupNanos;
+    }
+
+    /**
+     * Returns the time from asking for a capture to having it, in milliseconds.
+     */
+    public double getLatencyMillis() {
+        return (setupNanos + nanos) / 1.0e6;
+    }
+
+    public double getSeconds() {
+        return nanos / 1.0e9;
+    }
+
+    public double getBytesPerSecond() {
+        if (nanos <= 0) {
+            return 0.0;
+        }
+
+        return bytes / getSeconds();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes in %.1f ms (%.2f MB/s), %.1f ms setup",
+                             bytes, nanos / 1.0e6, getBytesPerSecond() / (1024 * 1024), setupNanos / 1.0e6);
+    }
+}
@@ -5,31 +5,55 @@
 package com.sriramramani.droid.inspector.editors;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.viewers.StructuredSelection;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.SashForm;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorSite;
 import org.eclipse.ui.IURIEditorInput;
 import org.eclipse.ui.PartInitException;
 import org.eclipse.ui.part.EditorPart;
 
+import com.sriramramani.droid.inspector.DroidInspectorPlugin;
+import com.sriramramani.droid.inspector.client.DroidClient;
+import com.sriramramani.droid.inspector.client.DroidSession;
+import com.sriramramani.droid.inspector.client.ImageFetcher;
+import com.sriramramani.droid.inspector.client.ImageFetcher.IImagesLoadedListener;
+import com.sriramramani.droid.inspector.model.BinarySnapshot;
+import com.sriramramani.droid.inspector.model.ImageStore;
 import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.ParallelParser;
+import com.sriramramani.droid.inspector.model.SnapshotIndex;
+import com.sriramramani.droid.inspector.model.Subtree;
 import com.sriramramani.droid.inspector.model.XMLParser;
+import com.sriramramani.droid.inspector.model.XMLParser.IPartialTreeListener;
 import com.sriramramani.droid.inspector.ui.BoxModelView;
 import com.sriramramani.droid.inspector.ui.BoxModelView.INodeDisplayChangedListener;
 import com.sriramramani.droid.inspector.ui.CanvasView;
 import com.sriramramani.droid.inspector.ui.HierarchyTreeViewer.INodeCheckedStateChangedListener;
 import com.sriramramani.droid.inspector.ui.HierarchyTreeViewer.ISelectedNodeChangedListener;
 import com.sriramramani.droid.inspector.ui.HierarchyView;
+import com.sriramramani.droid.inspector.ui.HierarchyView.IRefreshSubtreeListener;
 import com.sriramramani.droid.inspector.ui.InspectorCanvas.INodeSelectionChangedListener;
 
 public class DroidInspectorEditor extends EditorPart {
+    public static final String ID = "com.sriramramani.droid.inspector.editors.DroidInspectorEditor"; //$NON-NLS-1$
+
     private String mFilePath;
     private CanvasView mCanvas;
 
@@ -38,16 +62,40 @@ public class DroidInspectorEditor extends EditorPart {
     private BoxModelView mBoxModel;
     private Node mRoot = null;
 
+    // Node selected in the hierarchy, to select again when the hierarchy is replaced.
+    private Node mSelectedNode = null;
+
+    // Fetches the images of a skeleton capture in the background.
+    private ImageFetcher mImageFetcher = null;
+
+    // Whether the file is still being read, with partial trees on their way.
+    private boolean mIsLoading = false;
+
+    // Time between the partial trees drawn while reading a file.
+    private static final long PARTIAL_TREE_INTERVAL = 500; // ms
+
+    // Session to the device the hierarchy came from, if it came from one.
+    private DroidSession mSession = null;
+
     public DroidInspectorEditor() {
         super();
     }
 
     public void dispose() {
+        if (mImageFetcher != null) {
+            mImageFetcher.cancel();
+            mImageFetcher = null;
+        }
+
+        ImageStore.getDefault().unpin(this);
+
         super.dispose();
         mCanvas = null;
         mHierarchy = null;
         mBoxModel = null;
         mRoot = null;
+        mSelectedNode = null;
+        mSession = null;
     }
 
     @Override
@@ -57,19 +105,52 @@ public class DroidInspectorEditor extends EditorPart {
 
     @Override
     public void doSaveAs() {
-        // Nothing to save.
+        if (mRoot == null || mIsLoading) {
+            return;
+        }
+
+        // Save as a binary snapshot, which opens faster than a .dix file.
+        FileDialog dialog = new FileDialog(getSite().getShell(), SWT.SAVE);
+        dialog.setText("Save Snapshot");
+        dialog.setFilterExtensions(new String[] { "*." + BinarySnapshot.EXTENSION });
+        dialog.setFilterNames(new String[] { "Droid Inspector Snapshot (*." + BinarySnapshot.EXTENSION + ")" });
+        dialog.setOverwrite(true);
+
+        String path = dialog.open();
+        if (path == null) {
+            return;
+        }
+
+        if (!path.endsWith("." + BinarySnapshot.EXTENSION)) {
+            path += "." + BinarySnapshot.EXTENSION;
+        }
+
+        try {
+            BinarySnapshot.write(mRoot, new File(path));
+        } catch (IOException e) {
+            MessageBox box = new MessageBox(getSite().getShell(), SWT.ERROR);
+            box.setText("Save Error");
+            box.setMessage("Unable to save the snapshot to " + path);
+            box.open();
+        }
     }
 
     @Override
     public void init(IEditorSite site, IEditorInput input) throws PartInitException {
-        if (!(input instanceof IURIEditorInput)) {
+        if (input instanceof SnapshotEditorInput) {
+            // Already parsed while it was read from the device.
+            mRoot = ((SnapshotEditorInput) input).getRoot();
+            mImageFetcher = ((SnapshotEditorInput) input).getImageFetcher();
+            mSession = ((SnapshotEditorInput) input).getSession();
+        } else if (input instanceof IURIEditorInput) {
+            mFilePath = ((IURIEditorInput) input).getURI().getPath();
+        } else {
             throw new PartInitException("Overdraw Viewer: unsupported input type.");
         }
 
         setSite(site);
         setInput(input);
 
-        mFilePath = ((IURIEditorInput) input).getURI().getPath();
         setPartName("Droid Inspector");
     }
 
@@ -80,7 +161,7 @@ public class DroidInspectorEditor extends EditorPart {
 
     @Override
     public boolean isSaveAsAllowed() {
-        return false;
+        return true;
     }
 
     @Override
@@ -104,26 +185,17 @@ public class DroidInspectorEditor extends EditorPart {
         grid.verticalSpacing = 0;
         sidePanel.setLayout(grid);
 
-        try {
-            mRoot = new XMLParser().parse(new File(mFilePath));
-        } catch (Exception e) {
-            return;
-        }
-
-        // Wrap in it another node for tree-viewer.
-        Node node = new Node();
-        node.name = "device";
-        node.addChild(mRoot);
-
-        // Make the canvas draw.
-        mCanvas.initWithNode(mRoot);
-
         // Top half
         mHierarchy = new HierarchyView(sidePanel, SWT.BORDER);
         mHierarchy.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 1, 7));
         mHierarchy.addSelectedNodeChangedListener(new ISelectedNodeChangedListener() {
             @Override
             public void onSelectedNodeChanged(Node node) {
+                mSelectedNode = node;
+                if (mImageFetcher != null) {
+                    // The selected node is what the user is looking at.
+                    mImageFetcher.prioritize(getImageKeys(node));
+                }
                 mBoxModel.setValues(node);
                 mCanvas.refresh();
             }
@@ -132,12 +204,16 @@ public class DroidInspectorEditor extends EditorPart {
             @Override
             public void onNodeCheckedStateChanged(Node node) {
                 mBoxModel.setValues(node);
-                mRoot.calculateMaxBounds();
-                mRoot.calculateDepth();
-                mCanvas.refresh();
+                mRoot.updateLayout();
+                mCanvas.refreshLayout(node);
+            }
+        });
+        mHierarchy.addRefreshSubtreeListener(new IRefreshSubtreeListener() {
+            @Override
+            public void onRefreshSubtree(Node node) {
+                refreshSubtree(node);
             }
         });
-        mHierarchy.initialize(node);
 
         mCanvas.getCanvasView().addNodeSelectionChangedListener(new INodeSelectionChangedListener() {
             @Override
@@ -151,12 +227,289 @@ public class DroidInspectorEditor extends EditorPart {
         mBoxModel.addNodeDisplayChangedListener(new INodeDisplayChangedListener() {
             @Override
             public void onNodeDisplayChanged(Node node) {
-                mCanvas.refresh();
+                mCanvas.refreshDisplay();
                 mHierarchy.refresh(mRoot);
             }
         });
 
+        if (mRoot == null) {
+            // Parse the file in the background, drawing the views as they are read.
+            load(new File(mFilePath));
+            return;
+        }
+
+        // Make the canvas draw.
+        pinImages();
+        mCanvas.initWithNode(mRoot);
+
+        // Wrap in it another node for tree-viewer.
+        mHierarchy.initialize(wrap(mRoot));
         mHierarchy.setSelection(new StructuredSelection(mRoot));
+
+        startImageFetcher();
+    }
+
+    private void load(final File file) {
+        final Display display = getSite().getShell().getDisplay();
+        setStatus("Reading " + file.getName() + "...");
+        mIsLoading = true;
+
+        Job job = new Job("Opening " + file.getName()) {
+            @Override
+            protected IStatus run(IProgressMonitor monitor) {
+                Node root;
+                try {
+                    if (BinarySnapshot.isBinary(file)) {
+                        root = BinarySnapshot.read(file);
+                    } else {
+                        // Opened before, and not changed since?
+                        root = SnapshotIndex.getDefault().read(file);
+                        if (root == null) {
+                            root = parse(file, display, monitor);
+                            writeIndex(file, root);
+                        }
+                    }
+                } catch (OperationCanceledException e) {
+                    showLoaded(display, null, "Stopped reading " + file.getName() + ".");
+                    return Status.CANCEL_STATUS;
+                } catch (IOException e) {
+                    showLoaded(display, null, "Unable to read " + file.getName() + ".");
+                    return new Status(IStatus.ERROR, DroidInspectorPlugin.PLUGIN_ID, "Unable to parse the file from the device: " + file, e);
+                }
+
+                showLoaded(display, root, "");
+                return Status.OK_STATUS;
+            }
+        };
+        job.setUser(true);
+        job.schedule();
+    }
+
+    private Node parse(final File file, final Display display, IProgressMonitor monitor) throws IOException {
+        if (ParallelParser.isWorthwhile(file)) {
+            // Big enough to parse on all the cores, but not drawn as it's read.
+            ParallelParser parser = new ParallelParser(Runtime.getRuntime().availableProcessors());
+            parser.setProgressMonitor(monitor);
+            return parser.parse(file);
+        }
+
+        XMLParser parser = new XMLParser();
+        parser.setProgressMonitor(monitor, file.length());
+        parser.setPartialTreeListener(new IPartialTreeListener() {
+            @Override
+            public void onPartialTree(final Node partial, final int nodeCount) {
+                display.asyncExec(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isDisposed() && mIsLoading) {
+                            setRoot(partial);
+                            setStatus("Reading " + file.getName() + "... " + nodeCount + " views");
+                        }
+                    }
+                });
+            }
+        }, PARTIAL_TREE_INTERVAL);
+        return parser.parse(file);
+    }
+
+    private static void writeIndex(File file, Node root) {
+        try {
+            SnapshotIndex.getDefault().write(file, root);
+        } catch (IOException e) {
+            // Only makes reopening the file slower.
+            DroidInspectorPlugin.getDefault().getLog().log(
+                    new Status(IStatus.WARNING, DroidInspectorPlugin.PLUGIN_ID, "Unable to index " + file, e));
+        }
+    }
+
+    private void showLoaded(Display display, final Node root, final String status) {
+        display.asyncExec(new Runnable() {
+            @Override
+            public void run() {
+                if (isDisposed()) {
+                    return;
+                }
+
+                mIsLoading = false;
+                if (root != null) {
+                    setRoot(root);
+                }
+                setStatus(status);
+            }
+        });
+    }
+
+    private void startImageFetcher() {
+        if (mImageFetcher == null) {
+            return;
+        }
+
+        final Display display = getSite().getShell().getDisplay();
+        mImageFetcher.setImagesLoadedListener(new IImagesLoadedListener() {
+            @Override
+            public void onImagesLoaded(final List<String> keys) {
+                display.asyncExec(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isDisposed()) {
+                            mCanvas.getCanvasView().refreshImages(keys);
+                        }
+                    }
+                });
+            }
+        });
+
+        // What's on the screen first, then whatever else is left.
+        mImageFetcher.prioritize(mCanvas.getCanvasView().getPendingImagesInView());
+        mImageFetcher.start();
+    }
+
+    /**
+     * Captures the node and its subtree again from the device, and puts it in place of the old one.
+     */
+    private void refreshSubtree(Node node) {
+        if (mSession == null) {
+            setStatus("Only a capture from a device can be refreshed.");
+            return;
+        }
+
+        final int[] path = Subtree.getPath(mRoot, node);
+        if (path == null) {
+            return;
+        }
+
+        final DroidSession session = mSession;
+        final Display display = getSite().getShell().getDisplay();
+        setStatus("Refreshing " + node.name + "...");
+
+        Job job = new Job("Refreshing " + node.name) {
+            @Override
+            protected IStatus run(IProgressMonitor monitor) {
+                Subtree subtree = null;
+                String error = null;
+                try {
+                    subtree = session.captureSubtree(DroidClient.pathTarget(path));
+                } catch (Exception e) {
+                    error = e.getMessage();
+                }
+
+                final Subtree result = subtree;
+                final String status = (result != null ? session.getLastTransfer().toString() : "Unable to refresh: " + error);
+                display.asyncExec(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDisposed()) {
+                            return;
+                        }
+
+                        if (result != null) {
+                            spliceSubtree(result);
+                        }
+                        setStatus(status);
+                    }
+                });
+
+                return Status.OK_STATUS;
+            }
+        };
+        job.setSystem(true);
+        job.schedule();
+    }
+
+    private void spliceSubtree(Subtree subtree) {
+        if (subtree.path.length == 0) {
+            // The whole window was captured again.
+            setRoot(subtree.root);
+            return;
+        }
+
+        final Node old;
+        try {
+            old = subtree.spliceInto(mRoot);
+        } catch (IllegalArgumentException e) {
+            setStatus("The hierarchy on the device has changed, capture it again.");
+            return;
+        }
+
+        final Node fresh = Subtree.findByPath(mRoot, subtree.path);
+        pinImages();
+        mCanvas.replaceSubtree(old, fresh);
+        mHierarchy.replaceSubtree(old, fresh);
+        mHierarchy.setSelection(new StructuredSelection(fresh));
+    }
+
+    // Keeps the images of the hierarchy shown from being evicted from the image store while it's open.
+    private void pinImages() {
+        ImageStore.getDefault().pin(this, getImageKeys(mRoot));
+    }
+
+    // Image keys of the node and its subtree, the node's own first.
+    private static List<String> getImageKeys(Node node) {
+        List<String> keys = new ArrayList<String>();
+        collectImageKeys(node, keys);
+        return keys;
+    }
+
+    private static void collectImageKeys(Node node, List<String> keys) {
+        if (node.getBackground() != null && node.getBackground().imageKey != null) {
+            keys.add(node.getBackground().imageKey);
+        }
+
+        if (node.getContent() != null && node.getContent().imageKey != null) {
+            keys.add(node.getContent().imageKey);
+        }
+
+        for (Node child : node.children) {
+            collectImageKeys(child, keys);
+        }
+    }
+
+    /**
+     * Replaces the hierarchy shown, keeping the camera and selecting the node at the same place.
+     * Must be called on the UI thread.
+     */
+    public void setRoot(Node root) {
+        if (isDisposed() || root == null || mHierarchy == null) {
+            return;
+        }
+
+        final int[] path = (mSelectedNode != null ? Subtree.getPath(mRoot, mSelectedNode) : null);
+
+        // The images of the old hierarchy are of no use any more.
+        if (mImageFetcher != null) {
+            mImageFetcher.cancel();
+            mImageFetcher = null;
+        }
+
+        mRoot = root;
+        pinImages();
+        mCanvas.updateWithNode(mRoot);
+        mHierarchy.initialize(wrap(mRoot));
+
+        Node selected = Subtree.findByPath(mRoot, path);
+        mHierarchy.setSelection(new StructuredSelection(selected != null ? selected : mRoot));
+    }
+
+    public Node getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Shows a line of status, like the live capture rate, above the editor.
+     */
+    public void setStatus(String status) {
+        setContentDescription(status != null ? status : "");
+    }
+
+    public boolean isDisposed() {
+        return (mCanvas == null || mCanvas.isDisposed());
+    }
+
+    private static Node wrap(Node root) {
+        Node node = new Node();
+        node.name = "device";
+        node.addChild(root);
+        return node;
     }
 
     @Override
@@ -0,0 +1,111 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.editors;
+
+import java.io.File;
+
+import org.eclipse.jface.resource.ImageDescriptor;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IPersistableElement;
+
+import com.sriramramani.droid.inspector.DroidInspectorPlugin;
+import com.sriramramani.droid.inspector.client.DroidSession;
+import com.sriramramani.droid.inspector.client.ImageFetcher;
+import com.sriramramani.droid.inspector.model.Node;
+
+/**
+ * Editor input for a hierarchy that was parsed straight off the device socket.
+ * The dump file is optional, and only present if the capture was also saved.
+ */
+public class SnapshotEditorInput implements IEditorInput {
+    private final Node mRoot;
+    private final File mFile;
+    private final String mName;
+
+    // Fetches the images of a skeleton capture, if it is one.
+    private ImageFetcher mImageFetcher;
+
+    // Session to the device it was captured from, to capture parts of it again.
+    private DroidSession mSession;
+
+    public SnapshotEditorInput(Node root, File file) {
+        this(root, file, null);
+    }
+
+    /**
+     * @param name Name to show on the editor tab, like the device it was captured from.
+     */
+    public SnapshotEditorInput(Node root, File file, String name) {
+        mRoot = root;
+        mFile = file;
+        mName = name;
+    }
+
+    public Node getRoot() {
+        return mRoot;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public ImageFetcher getImageFetcher() {
+        return mImageFetcher;
+    }
+
+    /**
+     * Sets the fetcher of the images that are yet to arrive. The editor starts it once the hierarchy is drawn.
+     */
+    public void setImageFetcher(ImageFetcher fetcher) {
+        mImageFetcher = fetcher;
+    }
+
+    public DroidSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * Sets the session to the device, which lets the editor refresh a subtree of the capture.
+     */
+    public void setSession(DroidSession session) {
+        mSession = session;
+    }
+
+    @Override
+    public boolean exists() {
+        // The tree lives only in memory, the editor can't be restored across sessions.
+        return false;
+    }
+
+    @Override
+    public ImageDescriptor getImageDescriptor() {
+        return DroidInspectorPlugin.getImageDescriptor("icons/icon.gif");
+    }
+
+    @Override
+    public String getName() {
+        if (mName != null) {
+            return mName;
+        }
+
+        return (mFile != null ? mFile.getName() : "Droid Inspector");
+    }
+
+    @Override
+    public IPersistableElement getPersistable() {
+        return null;
+    }
+
+    @Override
+    public String getToolTipText() {
+        return (mFile != null ? mFile.getAbsolutePath() : "View dump from the device");
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Object getAdapter(Class adapter) {
+        return null;
+    }
+}
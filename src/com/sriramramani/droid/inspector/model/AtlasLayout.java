@@ -0,0 +1,185 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+/**
+ * Where images go in a few square pages, to be drawn from a shared texture each. Images bigger than
+ * MAX_PACKED_SIZE either way are left out, to get textures of their own.
+ *
+ * Each page is packed with a skyline: the heights the columns are filled to so far, as runs from the left.
+ * An image goes where its bottom is highest up across its width, leftmost on ties, and raises the skyline
+ * there. Space isn't given back one image at a time, only when a whole page is cleared.
+ *
+ * The top-left pixel of every page is kept, to be white, for the faces drawn with only a color while
+ * the page is bound.
+ */
+public final class AtlasLayout {
+    // Pixels across a page, unless the context can't make textures that big.
+    public static final int PAGE_SIZE = 1024;
+
+    // Biggest width and height of a packed image.
+    public static final int MAX_PACKED_SIZE = 256;
+
+    // Pixels left after each image, so that its edges never sample its neighbours.
+    private static final int PADDING = 1;
+
+    private final int mPageSize;
+    private final int mMaxPackedSize;
+    private Skyline[] mPages = new Skyline[0];
+
+    public AtlasLayout(int pageSize, int maxPackedSize) {
+        mPageSize = pageSize;
+        mMaxPackedSize = Math.min(maxPackedSize, pageSize - 1 - 2 * PADDING);
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    public int getPageCount() {
+        return mPages.length;
+    }
+
+    /**
+     * Places an image in the first page it fits in, adding a page if none has the room.
+     *
+     * @return The page, x and y of the image, or null if it's too big to be packed.
+     */
+    public int[] place(int width, int height) {
+        if (width > mMaxPackedSize || height > mMaxPackedSize) {
+            return null;
+        }
+
+        for (int page = 0; page < mPages.length; page++) {
+            final int[] position = mPages[page].place(width + PADDING, height + PADDING);
+            if (position != null) {
+                return new int[] { page, position[0], position[1] };
+            }
+        }
+
+        final Skyline[] pages = new Skyline[mPages.length + 1];
+        System.arraycopy(mPages, 0, pages, 0, mPages.length);
+        pages[mPages.length] = new Skyline(mPageSize);
+        mPages = pages;
+
+        final int[] position = pages[mPages.length - 1].place(width + PADDING, height + PADDING);
+        return new int[] { mPages.length - 1, position[0], position[1] };
+    }
+
+    /**
+     * Forgets the images on a page, to pack it again from empty.
+     */
+    public void clear(int page) {
+        mPages[page] = new Skyline(mPageSize);
+    }
+
+    private static final class Skyline {
+        private final int mSize;
+
+        // The runs from the left: where each starts, and how far down it is filled.
+        private int[] mStarts = new int[1];
+        private int[] mHeights = new int[1];
+        private int mCount;
+
+        Skyline(int size) {
+            mSize = size;
+            mStarts[0] = 0;
+            mHeights[0] = 0;
+            mCount = 1;
+
+            // The white pixel.
+            place(1 + PADDING, 1 + PADDING);
+        }
+
+        private int getEnd(int run) {
+            return (run + 1 < mCount ? mStarts[run + 1] : mSize);
+        }
+
+        // Returns the x and y of the space, or null if the page has no room for it.
+        int[] place(int width, int height) {
+            int bestRun = -1;
+            int bestY = Integer.MAX_VALUE;
+            for (int run = 0; run < mCount; run++) {
+                final int x = mStarts[run];
+                if (x + width > mSize) {
+                    break;
+                }
+
+                // The image rests on the highest filled run under it.
+                int y = 0;
+                for (int under = run; under < mCount && mStarts[under] < x + width; under++) {
+                    y = Math.max(y, mHeights[under]);
+                }
+
+                if (y + height <= mSize && y < bestY) {
+                    bestRun = run;
+                    bestY = y;
+                }
+            }
+
+            if (bestRun < 0) {
+                return null;
+            }
+
+            final int x = mStarts[bestRun];
+            raise(x, x + width, bestY + height);
+            return new int[] { x, bestY };
+        }
+
+        // Fills the columns from start to end down to the height.
+        private void raise(int start, int end, int height) {
+            // The run the end falls in goes on after the end, if it's longer.
+            final int last = getRunAt(end - 1);
+            final int lastEnd = getEnd(last);
+            final int lastHeight = mHeights[last];
+
+            final int first = getRunAt(start);
+            final int[] starts = new int[mCount + 2];
+            final int[] heights = new int[mCount + 2];
+            int count = 0;
+
+            for (int run = 0; run < first; run++) {
+                starts[count] = mStarts[run];
+                heights[count++] = mHeights[run];
+            }
+
+            starts[count] = start;
+            heights[count++] = height;
+
+            if (end < lastEnd) {
+                starts[count] = end;
+                heights[count++] = lastHeight;
+            }
+
+            for (int run = last + 1; run < mCount; run++) {
+                starts[count] = mStarts[run];
+                heights[count++] = mHeights[run];
+            }
+
+            // Runs as high as the one before are part of it.
+            int merged = 0;
+            for (int run = 0; run < count; run++) {
+                if (merged > 0 && heights[merged - 1] == heights[run]) {
+                    continue;
+                }
+                starts[merged] = starts[run];
+                heights[merged++] = heights[run];
+            }
+
+            mStarts = starts;
+            mHeights = heights;
+            mCount = merged;
+        }
+
+        // The run holding the column.
+        private int getRunAt(int x) {
+            int run = 0;
+            while (run + 1 < mCount && mStarts[run + 1] <= x) {
+                run++;
+            }
+            return run;
+        }
+    }
+}
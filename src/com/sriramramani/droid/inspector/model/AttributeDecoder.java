@@ -0,0 +1,113 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+/**
+ * Decodes the attribute values of a view dump by hand, without regular expressions or garbage.
+ * Every node has a handful of these, so they add up on big hierarchies.
+ */
+public final class AttributeDecoder {
+    // Returned by parseColor() for a value that isn't a color.
+    public static final long NOT_A_COLOR = -1;
+
+    // Digits of the largest int, more would overflow.
+    private static final int MAX_DIGITS = 9;
+
+    private AttributeDecoder() {
+    }
+
+    /**
+     * Decodes bounds like "[left,top][right,bottom]" into the array.
+     *
+     * @return Whether the value was in that format. If not, the array is left as it was.
+     */
+    public static boolean parseBounds(String value, int[] bounds) {
+        if (value == null) {
+            return false;
+        }
+
+        final int length = value.length();
+        int position = 0;
+        int left = 0, top = 0, right = 0, bottom = 0;
+        for (int i = 0; i < 4; i++) {
+            if (i == 2) {
+                if (position >= length || value.charAt(position) != ']') {
+                    return false;
+                }
+                position++;
+            }
+
+            final char separator = (i % 2 == 0 ? '[' : ',');
+            if (position >= length || value.charAt(position) != separator) {
+                return false;
+            }
+            position++;
+
+            boolean isNegative = false;
+            if (position < length && value.charAt(position) == '-') {
+                isNegative = true;
+                position++;
+            }
+
+            final int start = position;
+            int number = 0;
+            while (position < length) {
+                final char c = value.charAt(position);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                number = number * 10 + (c - '0');
+                position++;
+            }
+
+            if (position == start || position - start > MAX_DIGITS) {
+                return false;
+            }
+
+            if (isNegative) {
+                number = -number;
+            }
+
+            switch (i) {
+                case 0: left = number; break;
+                case 1: top = number; break;
+                case 2: right = number; break;
+                default: bottom = number; break;
+            }
+        }
+
+        if (position != length - 1 || value.charAt(position) != ']') {
+            return false;
+        }
+
+        bounds[0] = left;
+        bounds[1] = top;
+        bounds[2] = right;
+        bounds[3] = bottom;
+        return true;
+    }
+
+    /**
+     * Decodes a color like "#AARRGGBB".
+     *
+     * @return The color as an unsigned ARGB value, or {@link #NOT_A_COLOR}.
+     */
+    public static long parseColor(String value) {
+        if (value == null || value.length() != 9 || value.charAt(0) != '#') {
+            return NOT_A_COLOR;
+        }
+
+        long argb = 0;
+        for (int i = 1; i < 9; i++) {
+            final int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) {
+                return NOT_A_COLOR;
+            }
+            argb = (argb << 4) | digit;
+        }
+
+        return argb;
+    }
+}
@@ -0,0 +1,388 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.sriramramani.droid.inspector.model.Node.Color;
+import com.sriramramani.droid.inspector.model.Node.ContentType;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+
+/**
+ * Reads and writes the binary .dixb snapshot format.
+ *
+ * The file starts with a header, followed by one record per node in pre-order:
+ *
+ * <pre>
+ * header:   "DIXB" | int version | int node-count
+ * record:   int length | int child-count | byte flags | utf name | [utf id]
+ *           byte visibility | int[4] bounds | int[4] padding | int[4] margin | int[4] drawable-padding
+ *           float scroll-x, scroll-y, scale-x, scale-y, rotation-x, rotation-y, translation-x, translation-y
+ *           drawable background | drawable content
+ * drawable: byte type | (int argb) for a color | (int length, bytes) for a PNG
+ * </pre>
+ *
+ * All numbers are big-endian. Images are stored as raw PNG bytes, not base64.
+ * Images read back from a file are left in a mapping of it, and read from there when drawn.
+ * Those read from a stream, or from a file too big to map, are added to the image store instead.
+ * The record length covers everything after itself, so readers can skip records.
+ */
+public final class BinarySnapshot {
+    public static final String EXTENSION = "dixb";
+
+    private static final int MAGIC = 0x44495842; // "DIXB"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_HAS_ID = 0x1;
+
+    private static final byte DRAWABLE_NONE = 0;
+    private static final byte DRAWABLE_IMAGE = 1;
+    private static final byte DRAWABLE_COLOR = 2;
+
+    private BinarySnapshot() {
+    }
+
+    public static boolean isBinary(File file) {
+        return file.getName().endsWith("." + EXTENSION);
+    }
+
+    /**
+     * Converts a .dix file into a .dixb file.
+     */
+    public static void convert(File dix, File dixb) throws IOException {
+        Node root = new XMLParser().parse(dix);
+        write(root, dixb);
+    }
+
+    public static void write(Node root, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            write(root, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void write(Node root, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(countNodes(root));
+
+        // Records are built in a scratch buffer first, to know their length.
+        ByteArrayOutputStream scratch = new ByteArrayOutputStream(4 * 1024);
+        writeNode(root, data, scratch, new DataOutputStream(scratch));
+        data.flush();
+    }
+
+    public static Node read(File file) throws IOException {
+        if (file.length() > Integer.MAX_VALUE) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            try {
+                return read(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        final ByteBuffer mapping;
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            mapping = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            // The mapping stays valid after the file is closed.
+            input.close();
+        }
+
+        return read(new MappingInputStream(mapping.duplicate()), mapping);
+    }
+
+    public static Node read(InputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    // Reads from the stream, leaving the images in the mapping if the stream reads it from the start.
+    private static Node read(InputStream in, ByteBuffer mapping) throws IOException {
+        PositionInputStream position = new PositionInputStream(in);
+        DataInputStream data = new DataInputStream(position);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a .dixb snapshot.");
+        }
+
+        final int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported .dixb version: " + version);
+        }
+
+        final int count = data.readInt();
+        if (count <= 0) {
+            throw new IOException("The snapshot has no views.");
+        }
+
+        Node root = readNode(data, position, mapping, new NodeStore(), null, new SymbolTable());
+        root.calculateMaxBounds();
+        root.calculateDepth();
+        return root;
+    }
+
+    private static int countNodes(Node node) {
+        int count = 1;
+        for (Node child : node.children) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    private static void writeNode(Node node, DataOutputStream out, ByteArrayOutputStream scratch, DataOutputStream record) throws IOException {
+        scratch.reset();
+
+        record.writeInt(node.children.size());
+        record.writeByte(node.id != null ? FLAG_HAS_ID : 0);
+        record.writeUTF(node.name);
+        if (node.id != null) {
+            record.writeUTF(node.id);
+        }
+
+        record.writeByte(node.getVisibility() == Node.Visibility.VISIBLE ? 1 :
+                         node.getVisibility() == Node.Visibility.INVISIBLE ? -1 : 0);
+
+        record.writeInt(node.getX());
+        record.writeInt(node.getY());
+        record.writeInt(node.getWidth());
+        record.writeInt(node.getHeight());
+        writeInts(record, node.getPadding());
+        writeInts(record, node.getMargin());
+        writeInts(record, node.getDrawablePadding());
+
+        record.writeFloat(node.scrollX);
+        record.writeFloat(node.scrollY);
+        record.writeFloat(node.scaleX);
+        record.writeFloat(node.scaleY);
+        record.writeFloat(node.rotationX);
+        record.writeFloat(node.rotationY);
+        record.writeFloat(node.translationX);
+        record.writeFloat(node.translationY);
+
+        writeDrawable(record, node.getBackground());
+        writeDrawable(record, node.getContent());
+        record.flush();
+
+        out.writeInt(scratch.size());
+        scratch.writeTo(out);
+
+        for (Node child : node.children) {
+            writeNode(child, out, scratch, record);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static void writeDrawable(DataOutputStream out, Drawable drawable) throws IOException {
+        if (drawable == null || drawable.type == ContentType.NONE) {
+            out.writeByte(DRAWABLE_NONE);
+        } else if (drawable.type == ContentType.COLOR) {
+            out.writeByte(DRAWABLE_COLOR);
+            out.writeInt(drawable.color.toArgb());
+        } else {
+            byte[] bitmap = drawable.getBitmap();
+            if (bitmap == null) {
+                throw new IOException("The image " + drawable.imageKey + " is no longer in the image store.");
+            }
+
+            out.writeByte(DRAWABLE_IMAGE);
+            out.writeInt(bitmap.length);
+            out.write(bitmap);
+        }
+    }
+
+    private static Node readNode(DataInputStream in, PositionInputStream position, ByteBuffer mapping, NodeStore store,
+                                 Node parent, SymbolTable symbols) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new EOFException("Corrupt node record.");
+        }
+
+        final long end = position.position + length;
+
+        Node node = new Node(store);
+        node.parent = parent;
+
+        final int childCount = in.readInt();
+        final int flags = in.readByte();
+        node.setClassName(symbols.getClassName(in.readUTF()));
+        if ((flags & FLAG_HAS_ID) != 0) {
+            node.id = symbols.getId(in.readUTF());
+        }
+
+        final int visibility = in.readByte();
+        if (visibility == 1)
+            node.setVisibility(Node.Visibility.VISIBLE);
+        else if (visibility == -1)
+            node.setVisibility(Node.Visibility.INVISIBLE);
+        else
+            node.setVisibility(Node.Visibility.GONE);
+
+        node.setBounds(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        final int[] box = new int[4];
+        node.setPadding(readInts(in, box));
+        node.setMargin(readInts(in, box));
+        node.setDrawablePadding(readInts(in, box));
+
+        node.scrollX = in.readFloat();
+        node.scrollY = in.readFloat();
+        node.scaleX = in.readFloat();
+        node.scaleY = in.readFloat();
+        node.rotationX = in.readFloat();
+        node.rotationY = in.readFloat();
+        node.translationX = in.readFloat();
+        node.translationY = in.readFloat();
+
+        node.setBackgroundDrawable(readDrawable(in, position, mapping));
+        node.setContentDrawable(readDrawable(in, position, mapping));
+
+        if (parent != null) {
+            node.setDevicePosition(parent.getDeviceLeft() + node.getX(), parent.getDeviceTop() + node.getY());
+        }
+
+        // Skip any fields added by newer writers.
+        if (position.position > end) {
+            throw new IOException("Corrupt node record.");
+        }
+        in.skipBytes((int) (end - position.position));
+
+        for (int i = 0; i < childCount; i++) {
+            node.addChild(readNode(in, position, mapping, store, node, symbols));
+        }
+
+        return node;
+    }
+
+    private static int[] readInts(DataInputStream in, int[] values) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static Drawable readDrawable(DataInputStream in, PositionInputStream position, ByteBuffer mapping)
+            throws IOException {
+        Drawable drawable = new Drawable();
+
+        final int type = in.readByte();
+        if (type == DRAWABLE_COLOR) {
+            drawable.type = ContentType.COLOR;
+            drawable.color = Color.fromArgb(in.readInt());
+        } else if (type == DRAWABLE_IMAGE) {
+            drawable.type = ContentType.IMAGE;
+            final int length = in.readInt();
+            if (length < 0) {
+                throw new EOFException("Corrupt image record.");
+            }
+
+            if (mapping != null) {
+                final int offset = (int) position.position;
+                if (offset > mapping.capacity() - length) {
+                    throw new EOFException("Corrupt image record.");
+                }
+
+                drawable.slice = new ImageSlice(mapping, offset, length, false);
+                in.skipBytes(length);
+            } else {
+                byte[] bitmap = new byte[length];
+                in.readFully(bitmap);
+                drawable.imageKey = ImageStore.getDefault().put(bitmap);
+            }
+        }
+
+        return drawable;
+    }
+
+    // Reads a mapping in place, from its position.
+    private static final class MappingInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        MappingInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return (mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+
+            final int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+    }
+
+    private static final class PositionInputStream extends FilterInputStream {
+        long position = 0;
+
+        PositionInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                position++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.matthiasmann.twl.utils.PNGDecoder;
+import de.matthiasmann.twl.utils.PNGDecoder.Format;
+
+/**
+ * The RGBA pixels of a PNG, ready to be uploaded as a texture.
+ */
+public final class DecodedImage {
+    public final int width;
+    public final int height;
+
+    // Flipped, and ready to be read.
+    public final ByteBuffer pixels;
+
+    private DecodedImage(int width, int height, ByteBuffer pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public static DecodedImage decode(byte[] png) throws IOException {
+        PNGDecoder decoder = new PNGDecoder(new ByteArrayInputStream(png));
+        final int width = decoder.getWidth();
+        final int height = decoder.getHeight();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 * width * height);
+        decoder.decode(buffer, width * 4, Format.RGBA);
+        buffer.flip();
+        return new DecodedImage(width, height, buffer);
+    }
+}
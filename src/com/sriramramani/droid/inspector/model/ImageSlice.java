@@ -0,0 +1,87 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * The data of an image, left where it is in a mapped view dump as base64, or in a mapped binary
+ * snapshot as the PNG itself. The PNG is read when asked for, so opening a dump doesn't cost the
+ * heap its images.
+ */
+public final class ImageSlice {
+    // Prefix of the reference to a slice, put in the dump in place of the base64 data.
+    static final String PREFIX = "slice:";
+
+    private final ByteBuffer mMapping;
+    private final int mOffset;
+    private final int mLength;
+    private final boolean mIsBase64;
+
+    ImageSlice(ByteBuffer mapping, int offset, int length) {
+        this(mapping, offset, length, true);
+    }
+
+    ImageSlice(ByteBuffer mapping, int offset, int length, boolean isBase64) {
+        mMapping = mapping;
+        mOffset = offset;
+        mLength = length;
+        mIsBase64 = isBase64;
+    }
+
+    /**
+     * Returns the slice of the mapping a reference like "slice:&lt;offset&gt;:&lt;length&gt;" points to,
+     * or null if it isn't one.
+     */
+    static ImageSlice parseReference(ByteBuffer mapping, String data) {
+        if (mapping == null || data == null || !data.startsWith(PREFIX)) {
+            return null;
+        }
+
+        final int separator = data.indexOf(':', PREFIX.length());
+        if (separator < 0) {
+            return null;
+        }
+
+        try {
+            final int offset = Integer.parseInt(data.substring(PREFIX.length(), separator));
+            final int length = Integer.parseInt(data.substring(separator + 1));
+            if (offset < 0 || length < 0 || offset > mapping.capacity() - length) {
+                return null;
+            }
+
+            return new ImageSlice(mapping, offset, length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static String toReference(int offset, int length) {
+        return PREFIX + offset + ":" + length;
+    }
+
+    /**
+     * Decodes the PNG bytes. They aren't kept, so keep them if needed again.
+     */
+    public byte[] decode() {
+        // A view of its own, as the mapping is shared across threads.
+        ByteBuffer source = mMapping.duplicate();
+        source.position(mOffset);
+
+        byte[] data = new byte[mLength];
+        source.get(data);
+        return (mIsBase64 ? Base64.decodeBase64(data) : data);
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+}
@@ -0,0 +1,119 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a region of a mapped view dump, with the base64 data of the images swapped for
+ * references to where it is in the mapping. The parser then never sees the images,
+ * which are most of a dump.
+ */
+class ImageSliceInputStream extends InputStream {
+    private static final byte[] BASE64_IDENTIFIER = Node.BASE64_IDENTIFIER.getBytes();
+
+    private final ByteBuffer mBuffer;
+
+    // Reference still being read, in place of the last image.
+    private byte[] mReference = null;
+    private int mReferencePosition = 0;
+
+    /**
+     * @param buffer Region of the mapping to read, from its position to its limit. It is read in place,
+     *               and the positions in it are those of the mapping.
+     */
+    ImageSliceInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        byte[] single = new byte[1];
+        return (read(single, 0, 1) == -1 ? -1 : single[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (mReference != null) {
+            final int count = Math.min(length, mReference.length - mReferencePosition);
+            System.arraycopy(mReference, mReferencePosition, buffer, offset, count);
+            mReferencePosition += count;
+            if (mReferencePosition == mReference.length) {
+                mReference = null;
+            }
+            return count;
+        }
+
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+
+        final int start = mBuffer.position();
+        if (isImageAt(start)) {
+            skipImage(start);
+            return read(buffer, offset, length);
+        }
+
+        // Read up to the next image.
+        final int end = start + Math.min(length, mBuffer.remaining());
+        int position = start + 1;
+        while (position < end && !(mBuffer.get(position) == BASE64_IDENTIFIER[0] && isImageAt(position))) {
+            position++;
+        }
+
+        mBuffer.get(buffer, offset, position - start);
+        return position - start;
+    }
+
+    @Override
+    public int available() {
+        return (mReference != null ? mReference.length - mReferencePosition : 0) + mBuffer.remaining();
+    }
+
+    /**
+     * Bytes of the region read so far, images included.
+     */
+    int getPosition() {
+        return mBuffer.position();
+    }
+
+    private boolean isImageAt(int position) {
+        if (mBuffer.limit() - position < BASE64_IDENTIFIER.length) {
+            return false;
+        }
+
+        for (int i = 0; i < BASE64_IDENTIFIER.length; i++) {
+            if (mBuffer.get(position + i) != BASE64_IDENTIFIER[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Skips the base64 data up to the closing quote, and queues up its reference.
+    private void skipImage(int position) {
+        final int data = position + BASE64_IDENTIFIER.length;
+        final int limit = mBuffer.limit();
+
+        int end = data;
+        while (end < limit) {
+            final byte value = mBuffer.get(end);
+            if (value == '"' || value == '\'') {
+                break;
+            }
+            end++;
+        }
+
+        mBuffer.position(end);
+        mReference = ImageSlice.toReference(data, end - data).getBytes();
+        mReferencePosition = 0;
+    }
+}
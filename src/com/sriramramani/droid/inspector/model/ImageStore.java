@@ -0,0 +1,471 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Content-addressed store of the PNG images of the drawables, shared across captures.
+ *
+ * Images are keyed by the SHA-1 of their bytes, so an icon repeated on many nodes,
+ * or sent again in the next capture, is kept only once. The images are kept on disk,
+ * and the least recently used ones are evicted when the store grows over its size,
+ * unless they are pinned by a hierarchy that is open. A smaller set of recently used
+ * images is also kept in memory.
+ *
+ * New images are written to disk in the background, and kept in memory till they are.
+ * The recency of the images is kept in memory, and only stamped on their files now and then.
+ */
+public final class ImageStore {
+    // Prefix of an image reference in a view dump, in place of the base64 data.
+    public static final String KEY_PREFIX = "sha1:";
+
+    private static final String FILE_EXTENSION = ".png";
+
+    // Hex digits in a SHA-1.
+    private static final int KEY_LENGTH = 40;
+
+    private static final long DEFAULT_DISK_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_MEMORY_BYTES = 32L * 1024 * 1024;
+
+    // Time the recency of the images used is held before it's stamped on their files.
+    private static final long TOUCH_DELAY = 10000; // ms
+
+    private static ImageStore sDefault;
+
+    private final File mDirectory;
+    private final long mMaxDiskBytes;
+    private final long mMaxMemoryBytes;
+
+    // Size of every image on disk, in least recently used order.
+    private final LinkedHashMap<String, Long> mDiskEntries = new LinkedHashMap<String, Long>(256, 0.75f, true);
+    private long mDiskBytes = 0;
+
+    // Recently used images, in least recently used order.
+    private final LinkedHashMap<String, byte[]> mMemoryEntries = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+    private long mMemoryBytes = 0;
+
+    // Images added, but not written to disk yet.
+    private final Map<String, byte[]> mUnwritten = new HashMap<String, byte[]>();
+
+    // Images used since their files were last stamped.
+    private final Set<String> mTouched = new HashSet<String>();
+    private boolean mIsStampScheduled = false;
+
+    // Keys each owner keeps from being evicted, and the number of owners of each key.
+    private final Map<Object, Set<String>> mPinsByOwner = new IdentityHashMap<Object, Set<String>>();
+    private final Map<String, Integer> mPins = new HashMap<String, Integer>();
+
+    // Writes the images, and stamps the files, in turn.
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Droid Inspector image store");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Returns the store used by the drawables. Unless set, it lives in the temp directory.
+     */
+    public static synchronized ImageStore getDefault() {
+        if (sDefault == null) {
+            sDefault = new ImageStore(new File(System.getProperty("java.io.tmpdir"), "droid-inspector-images"),
+                                      DEFAULT_DISK_BYTES, DEFAULT_MEMORY_BYTES);
+        }
+
+        return sDefault;
+    }
+
+    public static synchronized void setDefault(ImageStore store) {
+        sDefault = store;
+    }
+
+    public ImageStore(File directory) {
+        this(directory, DEFAULT_DISK_BYTES, DEFAULT_MEMORY_BYTES);
+    }
+
+    public ImageStore(File directory, long maxDiskBytes, long maxMemoryBytes) {
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+        mMaxMemoryBytes = maxMemoryBytes;
+
+        mDirectory.mkdirs();
+        loadEntries();
+    }
+
+    public static String keyOf(byte[] png) {
+        return DigestUtils.sha1Hex(png);
+    }
+
+    /**
+     * Returns the key of a reference like "sha1:&lt;key&gt;", or null if it isn't one.
+     */
+    public static String parseReference(String data) {
+        if (data == null || !data.startsWith(KEY_PREFIX)) {
+            return null;
+        }
+
+        final String key = data.substring(KEY_PREFIX.length());
+        return (isKey(key) ? key : null);
+    }
+
+    /**
+     * Whether the string looks like a key. Keys name files, so nothing else is let in.
+     */
+    public static boolean isKey(String key) {
+        if (key == null || key.length() != KEY_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            final char c = key.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds an image, and returns its key.
+     */
+    public String put(byte[] png) {
+        final String key = keyOf(png);
+        add(key, png);
+        return key;
+    }
+
+    /**
+     * Adds an image that was sent under a key, checking that it really is the image for the key.
+     */
+    public void put(String key, byte[] png) throws IOException {
+        if (!keyOf(png).equals(key)) {
+            throw new IOException("The image doesn't match its key: " + key);
+        }
+
+        add(key, png);
+    }
+
+    public synchronized boolean contains(String key) {
+        return mMemoryEntries.containsKey(key) || mUnwritten.containsKey(key) || mDiskEntries.containsKey(key);
+    }
+
+    /**
+     * Returns the image for the key, or null if it isn't in the store.
+     */
+    public synchronized byte[] get(String key) {
+        byte[] png = mMemoryEntries.get(key);
+        if (png == null) {
+            png = mUnwritten.get(key);
+        }
+
+        if (png != null) {
+            touch(key);
+            return png;
+        }
+
+        if (!mDiskEntries.containsKey(key)) {
+            return null;
+        }
+
+        try {
+            png = readFile(getFile(key));
+        } catch (IOException e) {
+            // Removed behind our back.
+            removeFromDisk(key);
+            return null;
+        }
+
+        touch(key);
+        addToMemory(key, png);
+        return png;
+    }
+
+    /**
+     * Keeps the images with the keys from being evicted while the owner uses them,
+     * in place of the ones the owner pinned before.
+     */
+    public synchronized void pin(Object owner, Collection<String> keys) {
+        unpinKeys(owner);
+
+        final Set<String> pinned = new HashSet<String>(keys);
+        for (String key : pinned) {
+            final Integer count = mPins.get(key);
+            mPins.put(key, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+        }
+        mPinsByOwner.put(owner, pinned);
+    }
+
+    /**
+     * Lets the images the owner pinned be evicted again.
+     */
+    public synchronized void unpin(Object owner) {
+        unpinKeys(owner);
+
+        // The store may have grown over its size while they were pinned.
+        trimDisk();
+    }
+
+    private void unpinKeys(Object owner) {
+        final Set<String> pinned = mPinsByOwner.remove(owner);
+        if (pinned == null) {
+            return;
+        }
+
+        for (String key : pinned) {
+            final int count = mPins.get(key).intValue();
+            if (count == 1) {
+                mPins.remove(key);
+            } else {
+                mPins.put(key, Integer.valueOf(count - 1));
+            }
+        }
+    }
+
+    /**
+     * Waits for the images added so far to be written, and stamps the recency of the ones used.
+     */
+    public void flush() {
+        try {
+            mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    stampTouched();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Stamping only keeps the recency across restarts.
+        }
+    }
+
+    public synchronized long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    public synchronized int size() {
+        return mDiskEntries.size();
+    }
+
+    private synchronized void add(final String key, byte[] png) {
+        if (mDiskEntries.containsKey(key)) {
+            touch(key);
+        } else if (!mUnwritten.containsKey(key)) {
+            mUnwritten.put(key, png);
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(key);
+                }
+            });
+        }
+
+        addToMemory(key, png);
+    }
+
+    // Writes an image added, on the writer thread.
+    private void write(String key) {
+        final byte[] png;
+        synchronized (this) {
+            png = mUnwritten.get(key);
+        }
+
+        boolean isWritten;
+        try {
+            writeFile(getFile(key), png);
+            isWritten = true;
+        } catch (IOException e) {
+            isWritten = false;
+        }
+
+        synchronized (this) {
+            mUnwritten.remove(key);
+            if (isWritten) {
+                mDiskEntries.put(key, Long.valueOf(png.length));
+                mDiskBytes += png.length;
+                trimDisk();
+            } else if (!mMemoryEntries.containsKey(key)) {
+                // Keep it in memory alone.
+                addToMemory(key, png);
+            }
+        }
+    }
+
+    // Marks an image as just used, to be stamped on its file a little later.
+    private void touch(String key) {
+        if (!mDiskEntries.containsKey(key)) {
+            return;
+        }
+
+        // Moves it to the end of the eviction order.
+        mDiskEntries.get(key);
+
+        mTouched.add(key);
+        if (!mIsStampScheduled) {
+            mIsStampScheduled = true;
+            mWriter.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    stampTouched();
+                }
+            }, TOUCH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Keeps the recency across restarts, on the writer thread.
+    private void stampTouched() {
+        final List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<String>(mTouched);
+            mTouched.clear();
+            mIsStampScheduled = false;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (String key : keys) {
+            getFile(key).setLastModified(now);
+        }
+    }
+
+    private void addToMemory(String key, byte[] png) {
+        if (png.length > mMaxMemoryBytes) {
+            return;
+        }
+
+        final byte[] previous = mMemoryEntries.put(key, png);
+        if (previous != null) {
+            mMemoryBytes -= previous.length;
+        }
+        mMemoryBytes += png.length;
+
+        Iterator<Map.Entry<String, byte[]>> iterator = mMemoryEntries.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && iterator.hasNext()) {
+            final Map.Entry<String, byte[]> eldest = iterator.next();
+
+            // A pinned image that couldn't be written has nowhere else to be.
+            if (mPins.containsKey(eldest.getKey()) && !mDiskEntries.containsKey(eldest.getKey()) &&
+                !mUnwritten.containsKey(eldest.getKey())) {
+                continue;
+            }
+
+            mMemoryBytes -= eldest.getValue().length;
+            iterator.remove();
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = mDiskEntries.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            if (mPins.containsKey(eldest.getKey())) {
+                continue;
+            }
+
+            mDiskBytes -= eldest.getValue().longValue();
+            getFile(eldest.getKey()).delete();
+            iterator.remove();
+        }
+    }
+
+    private void removeFromDisk(String key) {
+        final Long size = mDiskEntries.remove(key);
+        if (size != null) {
+            mDiskBytes -= size.longValue();
+        }
+    }
+
+    private void loadEntries() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Oldest first, so that they are evicted first.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                final long difference = first.lastModified() - second.lastModified();
+                return (difference < 0 ? -1 : (difference > 0 ? 1 : 0));
+            }
+        });
+
+        for (File file : files) {
+            final String name = file.getName();
+            if (!file.isFile() || !name.endsWith(FILE_EXTENSION)) {
+                continue;
+            }
+
+            final String key = name.substring(0, name.length() - FILE_EXTENSION.length());
+            if (!isKey(key)) {
+                continue;
+            }
+
+            mDiskEntries.put(key, Long.valueOf(file.length()));
+            mDiskBytes += file.length();
+        }
+
+        trimDisk();
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key + FILE_EXTENSION);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeFile(File file, byte[] data) throws IOException {
+        // Write aside and rename, so that a half written file is never taken for an image.
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            if (!file.exists()) {
+                throw new IOException("Unable to add the image to the store: " + file);
+            }
+        }
+    }
+}
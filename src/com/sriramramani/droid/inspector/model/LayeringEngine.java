@@ -0,0 +1,265 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Works out the depths the nodes are drawn at, in one bottom-up pass.
+ *
+ * A node overlapping any of its previous siblings is drawn one level above the deepest of
+ * their subtrees. The max depth of each subtree is kept as the pass leaves it, instead of
+ * walked again for every overlap, and the previous siblings are looked up in an index of
+ * their vertical spans, instead of compared one by one. A container with thousands of rows
+ * then takes about as long as its rows.
+ *
+ * Showing or hiding a node only changes the max bounds of its ancestors and the depths of the
+ * siblings after them, so the nodes kept as changed are laid out again from the max depths kept
+ * for the rest.
+ */
+final class LayeringEngine {
+    // Most buckets a sibling is put in. Siblings spanning more are checked on every lookup.
+    private static final int MAX_BUCKETS_PER_SIBLING = 64;
+
+    private LayeringEngine() {
+    }
+
+    /**
+     * Works out the depths of the node and its subtree, as Node.calculateDepth() does.
+     */
+    static void layer(Node node) {
+        layerChildren(node);
+
+        node.setDepth(1);
+        if (node.parent == null || !node.wouldShow()) {
+            return;
+        }
+
+        // The previous siblings may not have been laid out with the node, so their max depths are walked.
+        for (Node sibling : node.parent.children) {
+            if (sibling == node) {
+                break;
+            }
+
+            if (sibling.wouldShow() && intersects(node, sibling.getMaxBound(0), sibling.getMaxBound(1),
+                                                  sibling.getMaxBound(2), sibling.getMaxBound(3))) {
+                node.setDepth(Math.max(node.getDepth(), sibling.getMaxDepth() + 1));
+            }
+        }
+    }
+
+    /**
+     * Works out the max bounds and the depths again for the nodes shown or hidden since the
+     * last layout, as Node.updateLayout() does.
+     */
+    static void update(Node root) {
+        updateSubtree(root);
+    }
+
+    /**
+     * Works out the max depths the parts of the tree kept, for a tree whose depths were read
+     * instead of laid out. The children must have theirs already.
+     */
+    static void rememberDepths(Node node) {
+        int deepest = 0;
+        for (Node child : node.children) {
+            if (child.wouldShow()) {
+                deepest = Math.max(deepest, child.getDepth() + child.getChildrenDepth());
+            }
+        }
+
+        node.setChildrenDepth(deepest);
+    }
+
+    // Whether the max bounds of the node and the area intersect, as Rectangle.intersects() has it.
+    private static boolean intersects(Node node, int x, int y, int width, int height) {
+        final int nodeX = node.getMaxBound(0);
+        final int nodeY = node.getMaxBound(1);
+        return (x < nodeX + node.getMaxBound(2)) && (y < nodeY + node.getMaxBound(3)) &&
+               (x + width > nodeX) && (y + height > nodeY);
+    }
+
+    // Lays out the subtrees of the children, then the children.
+    private static void layerChildren(Node node) {
+        for (Node child : node.children) {
+            layerChildren(child);
+        }
+
+        layerSiblings(node);
+        node.setLayoutClean();
+    }
+
+    /**
+     * Lays out again the changed nodes of the subtree, and the nodes above them up to this one.
+     *
+     * @return Whether the siblings after the node need to be laid out again.
+     */
+    private static boolean updateSubtree(Node node) {
+        final boolean isDirty = node.isLayoutDirty();
+        boolean changed = isDirty;
+        if (node.hasDirtyDescendants()) {
+            for (Node child : node.children) {
+                if (updateSubtree(child)) {
+                    changed = true;
+                }
+            }
+        }
+
+        node.setLayoutClean();
+        if (!changed) {
+            return false;
+        }
+
+        final int x = node.getMaxBound(0);
+        final int y = node.getMaxBound(1);
+        final int width = node.getMaxBound(2);
+        final int height = node.getMaxBound(3);
+        final int childrenDepth = node.getChildrenDepth();
+        node.updateMaxBounds();
+        layerSiblings(node);
+
+        // Shown or hidden itself, or grown, or its subtree went deeper or shallower.
+        return (isDirty || x != node.getMaxBound(0) || y != node.getMaxBound(1) ||
+                width != node.getMaxBound(2) || height != node.getMaxBound(3) ||
+                childrenDepth != node.getChildrenDepth());
+    }
+
+    /**
+     * Works out the depths of the children, from the max depths of their subtrees as they are.
+     * Keeps the deepest max depth of the children shown, or 0 if none is.
+     */
+    private static void layerSiblings(Node node) {
+        if (node.children.isEmpty()) {
+            node.setChildrenDepth(0);
+            return;
+        }
+
+        final SiblingIndex index = new SiblingIndex(node.children);
+        int deepest = 0;
+        for (Node child : node.children) {
+            if (!child.wouldShow()) {
+                child.setDepth(1);
+                continue;
+            }
+
+            child.setDepth(1 + index.getDeepestOverlapping(child));
+
+            final int maxDepth = child.getDepth() + child.getChildrenDepth();
+            index.add(child, maxDepth);
+            deepest = Math.max(deepest, maxDepth);
+        }
+
+        node.setChildrenDepth(deepest);
+    }
+
+    /**
+     * The siblings added so far, bucketed by their vertical span, with the max depths of their subtrees.
+     * Buckets only narrow down the candidates, the overlap is always checked on the bounds.
+     */
+    private static final class SiblingIndex {
+        private final long mTop;
+        private final long mBucketHeight;
+        private final List<Entry>[] mBuckets;
+
+        // Siblings spanning too many buckets.
+        private final List<Entry> mWide = new ArrayList<Entry>();
+
+        // Deepest max depth added, no lookup can find more.
+        private int mDeepest = 0;
+
+        private static final class Entry {
+            final int x;
+            final int y;
+            final int width;
+            final int height;
+            final int maxDepth;
+
+            Entry(Node sibling, int maxDepth) {
+                x = sibling.getMaxBound(0);
+                y = sibling.getMaxBound(1);
+                width = sibling.getMaxBound(2);
+                height = sibling.getMaxBound(3);
+                this.maxDepth = maxDepth;
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        SiblingIndex(List<Node> siblings) {
+            long top = Long.MAX_VALUE;
+            long bottom = Long.MIN_VALUE;
+            for (Node sibling : siblings) {
+                top = Math.min(top, getTop(sibling));
+                bottom = Math.max(bottom, getBottom(sibling));
+            }
+
+            // About one sibling per bucket when they are stacked.
+            final int buckets = Math.max(1, siblings.size());
+            mTop = top;
+            mBucketHeight = Math.max(1, (bottom - top) / buckets + 1);
+            mBuckets = new List[buckets];
+        }
+
+        void add(Node sibling, int maxDepth) {
+            final Entry entry = new Entry(sibling, maxDepth);
+            mDeepest = Math.max(mDeepest, maxDepth);
+
+            final int first = getBucket(getTop(sibling));
+            final int last = getBucket(getBottom(sibling));
+            if (last - first >= MAX_BUCKETS_PER_SIBLING) {
+                mWide.add(entry);
+                return;
+            }
+
+            for (int i = first; i <= last; i++) {
+                if (mBuckets[i] == null) {
+                    mBuckets[i] = new ArrayList<Entry>(2);
+                }
+                mBuckets[i].add(entry);
+            }
+        }
+
+        /**
+         * Returns the deepest max depth of the siblings overlapping the max bounds of the node,
+         * or 0 if none does.
+         */
+        int getDeepestOverlapping(Node node) {
+            int deepest = getDeepest(mWide, node, 0);
+
+            final int first = getBucket(getTop(node));
+            final int last = getBucket(getBottom(node));
+            for (int i = first; i <= last && deepest < mDeepest; i++) {
+                if (mBuckets[i] != null) {
+                    deepest = getDeepest(mBuckets[i], node, deepest);
+                }
+            }
+
+            return deepest;
+        }
+
+        private int getDeepest(List<Entry> entries, Node node, int deepest) {
+            for (Entry entry : entries) {
+                if (entry.maxDepth > deepest && intersects(node, entry.x, entry.y, entry.width, entry.height)) {
+                    deepest = entry.maxDepth;
+                }
+            }
+            return deepest;
+        }
+
+        private int getBucket(long y) {
+            final long bucket = (y - mTop) / mBucketHeight;
+            return (int) Math.max(0, Math.min(mBuckets.length - 1, bucket));
+        }
+
+        // The span of the max bounds, which may have a negative height, from top to bottom.
+        private static long getTop(Node node) {
+            return Math.min((long) node.getMaxBound(1), (long) node.getMaxBound(1) + node.getMaxBound(3));
+        }
+
+        private static long getBottom(Node node) {
+            return Math.max((long) node.getMaxBound(1), (long) node.getMaxBound(1) + node.getMaxBound(3));
+        }
+    }
+}
@@ -5,18 +5,19 @@
 package com.sriramramani.droid.inspector.model;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import org.apache.commons.codec.binary.Base64;
 import org.eclipse.swt.graphics.Rectangle;
 
-public class Node {
-    // Color drawable pattern as #AARRGGBB
-    private static final Pattern COLOR_DRAWABLE = Pattern.compile("#(\\w{2})(\\w{2})(\\w{2})(\\w{2})");
+import com.sriramramani.droid.inspector.model.SymbolTable.ClassName;
 
-    private static final String BASE64_IDENTIFIER = "data:image/png;base64,";
+/**
+ * A view of the hierarchy. Its bounds, paddings, device position, depth and flags are kept in
+ * its store, at its index there.
+ */
+public class Node {
+    static final String BASE64_IDENTIFIER = "data:image/png;base64,";
     private static final int BASE64_IDENTIFIER_LENGTH = BASE64_IDENTIFIER.length();
 
     public static enum Visibility {
@@ -36,27 +37,73 @@ public class Node {
         public float green;
         public float blue;
         public float alpha;
+
+        public static Color fromArgb(int argb) {
+            Color color = new Color();
+            color.alpha = (float) ((argb >>> 24) & 0xff) / 255;
+            color.red = (float) ((argb >>> 16) & 0xff) / 255;
+            color.green = (float) ((argb >>> 8) & 0xff) / 255;
+            color.blue = (float) (argb & 0xff) / 255;
+            return color;
+        }
+
+        public int toArgb() {
+            return (Math.round(alpha * 255) << 24) |
+                   (Math.round(red * 255) << 16) |
+                   (Math.round(green * 255) << 8) |
+                   Math.round(blue * 255);
+        }
     }
 
     public static class Drawable {
         public ContentType type = ContentType.NONE;
         public Color color;
-        public String image;
+
+        // Key of the PNG of an image drawable in the image store.
+        public String imageKey;
+
+        // Or, where the image is in a mapped view dump.
+        public ImageSlice slice;
+
         public int texureId = -1;
-        public int displayListId = -1;
+
+        // Where the image is in its texture, which other images may share, from 0 to 1 across it.
+        public float textureLeft = 0.0f;
+        public float textureTop = 0.0f;
+        public float textureRight = 1.0f;
+        public float textureBottom = 1.0f;
+
+        // Whether the canvas draws it, as it was last prepared.
+        public boolean isPrepared = false;
+
+        /**
+         * Returns the PNG bytes of an image drawable, or null if the store doesn't have them.
+         */
+        public byte[] getBitmap() {
+            if (slice != null) {
+                return slice.decode();
+            }
+
+            return (imageKey != null ? ImageStore.getDefault().get(imageKey) : null);
+        }
     }
 
+    // The state of a node in its store: these flags, and the visibility above them.
+    private static final int SHOWN = 0x1;
+    private static final int SELECTED = 0x2;
+    private static final int BACKGROUND_SHOWN = 0x4;
+    private static final int CONTENT_SHOWN = 0x8;
+    private static final int LAYOUT_DIRTY = 0x10;
+    private static final int DIRTY_DESCENDANTS = 0x20;
+    private static final int VISIBILITY_SHIFT = 6;
+
+    private static final Visibility[] VISIBILITIES = Visibility.values();
+
     public String id;
     public String name;
-    public Rectangle bounds;
-
-    // In certain cases like ListViews, the last row might be drawn, making the content
-    // to be bigger than actual bounds.
-    public Rectangle maxBounds;
 
-    public int[] padding;
-    public int[] margin;
-    public int[] drawablePadding;
+    // The name, with its display names.
+    private ClassName className;
 
     private Drawable background;
     private Drawable content;
@@ -64,19 +111,9 @@ public class Node {
     public Node parent;
     public List<Node> children;
 
-    Visibility visibility;
-
-    // Whether the selected node in the hierarchy. Depends on selected state in TreeView.
-    public boolean isSelected = false;
-
-    // Whether shown in the 3D view. Depends on checked state in TreeView.
-    private boolean isShown = true;
-
-    public boolean isBackgroundShown = true;
-    public boolean isContentShown = true;
-
-    public int deviceTop;
-    public int deviceLeft;
+    // Where the bounds, the paddings, the depth and the flags are kept.
+    NodeStore store;
+    int index;
 
     public float scrollX = 1.0f;
     public float scrollY = 1.0f;
@@ -90,17 +127,21 @@ public class Node {
     public float translationX = 0.0f;
     public float translationY = 0.0f;
 
-    // The depth from parent at which to draw this node.
-    // Depth of 0, is same as parent. Depth of 1 is one z-level above parent.
-    public int depth;
-
-    public float[] pickColor;
-
+    /**
+     * Creates a node in a store of its own.
+     */
     public Node() {
-        children = new LinkedList<Node>();
-        padding = new int[4];
-        margin = new int[4];
-        drawablePadding = new int[4];
+        this(new NodeStore(1));
+    }
+
+    /**
+     * Creates a node at the end of the store, as a parser does for the nodes it reads.
+     */
+    public Node(NodeStore store) {
+        children = new ArrayList<Node>();
+        this.store = store;
+        index = store.add(this);
+        setState(SHOWN | BACKGROUND_SHOWN | CONTENT_SHOWN);
     }
 
     public void addChild(Node child) {
@@ -117,20 +158,25 @@ public class Node {
         if (!isValid(data))
             return;
 
-        Matcher matcher = COLOR_DRAWABLE.matcher(data);
-        if (matcher.matches()) {
+        // Color drawable as #AARRGGBB.
+        final long argb = AttributeDecoder.parseColor(data);
+        if (argb != AttributeDecoder.NOT_A_COLOR) {
             background.type = ContentType.COLOR;
-            background.color = new Color();
-            background.color.alpha = (float) Integer.parseInt(matcher.group(1), 16) / 255;
-            background.color.red = (float) Integer.parseInt(matcher.group(2), 16) / 255;
-            background.color.green = (float) Integer.parseInt(matcher.group(3), 16) / 255;
-            background.color.blue = (float) Integer.parseInt(matcher.group(4), 16) / 255;
+            background.color = Color.fromArgb((int) argb);
         } else {
             background.type = ContentType.IMAGE;
-            background.image = data.substring(BASE64_IDENTIFIER_LENGTH);
+            background.imageKey = getImageKey(data);
         }
     }
 
+    public void setBackgroundDrawable(Drawable drawable) {
+        background = drawable;
+    }
+
+    public void setContentDrawable(Drawable drawable) {
+        content = drawable;
+    }
+
     public void setContent(String data) {
         content = new Drawable();
 
@@ -138,7 +184,36 @@ public class Node {
             return;
 
         content.type = ContentType.IMAGE;
-        content.image = data.substring(BASE64_IDENTIFIER_LENGTH);
+        content.imageKey = getImageKey(data);
+    }
+
+    /**
+     * Returns the key of the image, adding it to the image store if it came as base64 data.
+     */
+    private static String getImageKey(String data) {
+        final String key = ImageStore.parseReference(data);
+        if (key != null) {
+            return key;
+        }
+
+        return ImageStore.getDefault().put(Base64.decodeBase64(data.substring(BASE64_IDENTIFIER_LENGTH)));
+    }
+
+    public void setClassName(ClassName className) {
+        this.className = className;
+        name = className.name;
+    }
+
+    /**
+     * Returns the class name with its display names, worked out here if the name didn't come
+     * from a symbol table.
+     */
+    public ClassName getClassName() {
+        if (className == null || className.name != name) {
+            className = new ClassName(name);
+        }
+
+        return className;
     }
 
     public Drawable getBackground() {
@@ -149,68 +224,261 @@ public class Node {
         return content;
     }
 
+    private int getState() {
+        return store.getState(index) & 0xff;
+    }
+
+    private void setState(int state) {
+        store.setState(index, (byte) state);
+    }
+
+    private boolean hasFlag(int flag) {
+        return (getState() & flag) != 0;
+    }
+
+    private void setFlag(int flag, boolean isSet) {
+        setState(isSet ? getState() | flag : getState() & ~flag);
+    }
+
+    public int getX() {
+        return store.getX(index);
+    }
+
+    public int getY() {
+        return store.getY(index);
+    }
+
+    public int getWidth() {
+        return store.getWidth(index);
+    }
+
+    public int getHeight() {
+        return store.getHeight(index);
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(getX(), getY(), getWidth(), getHeight());
+    }
+
+    void setBounds(int x, int y, int width, int height) {
+        store.setBox(index, NodeStore.BOUNDS, x, y, width, height);
+    }
+
+    /**
+     * Returns the bounds of the node grown by those of its children. In certain cases like
+     * ListViews, the last row might be drawn, making the content bigger than the actual bounds.
+     */
+    public Rectangle getMaxBounds() {
+        return new Rectangle(getMaxBound(0), getMaxBound(1), getMaxBound(2), getMaxBound(3));
+    }
+
+    void setMaxBounds(int x, int y, int width, int height) {
+        store.setBox(index, NodeStore.MAX_BOUNDS, x, y, width, height);
+    }
+
+    // A side of the max bounds: x, y, width or height.
+    int getMaxBound(int side) {
+        return store.getBox(index, NodeStore.MAX_BOUNDS, side);
+    }
+
+    public int[] getPadding() {
+        return store.getBox(index, NodeStore.PADDING);
+    }
+
+    void setPadding(int[] padding) {
+        store.setBox(index, NodeStore.PADDING, padding);
+    }
+
+    public int[] getMargin() {
+        return store.getBox(index, NodeStore.MARGIN);
+    }
+
+    void setMargin(int[] margin) {
+        store.setBox(index, NodeStore.MARGIN, margin);
+    }
+
+    public int[] getDrawablePadding() {
+        return store.getBox(index, NodeStore.DRAWABLE_PADDING);
+    }
+
+    void setDrawablePadding(int[] drawablePadding) {
+        store.setBox(index, NodeStore.DRAWABLE_PADDING, drawablePadding);
+    }
+
+    public int getDeviceLeft() {
+        return store.getDeviceLeft(index);
+    }
+
+    public int getDeviceTop() {
+        return store.getDeviceTop(index);
+    }
+
+    void setDevicePosition(int left, int top) {
+        store.setDevicePosition(index, left, top);
+    }
+
+    /**
+     * Returns the depth from parent at which to draw this node.
+     * Depth of 0, is same as parent. Depth of 1 is one z-level above parent.
+     */
+    public int getDepth() {
+        return store.getDepth(index);
+    }
+
+    void setDepth(int depth) {
+        store.setDepth(index, depth);
+    }
+
+    // The deepest max depth of the children shown, as last laid out.
+    int getChildrenDepth() {
+        return store.getChildrenDepth(index);
+    }
+
+    void setChildrenDepth(int depth) {
+        store.setChildrenDepth(index, depth);
+    }
+
+    /**
+     * Returns the visibility on the device, or null if not known.
+     */
+    Visibility getVisibility() {
+        final int visibility = getState() >>> VISIBILITY_SHIFT;
+        return (visibility != 0 ? VISIBILITIES[visibility - 1] : null);
+    }
+
+    void setVisibility(Visibility visibility) {
+        final int state = getState() & ((1 << VISIBILITY_SHIFT) - 1);
+        setState(state | (visibility != null ? visibility.ordinal() + 1 : 0) << VISIBILITY_SHIFT);
+    }
+
+    /**
+     * Copies the bounds, the paddings, the device position, the depth and the flags of the node.
+     */
+    void copyLayout(Node node) {
+        store.copy(index, node.store, node.index);
+    }
+
+    /**
+     * Returns whether the selected node in the hierarchy. Depends on selected state in TreeView.
+     */
+    public boolean isSelected() {
+        return hasFlag(SELECTED);
+    }
+
+    public void setSelected(boolean isSelected) {
+        setFlag(SELECTED, isSelected);
+    }
+
+    public boolean isBackgroundShown() {
+        return hasFlag(BACKGROUND_SHOWN);
+    }
+
+    public void showBackground(boolean doShow) {
+        setFlag(BACKGROUND_SHOWN, doShow);
+    }
+
+    public boolean isContentShown() {
+        return hasFlag(CONTENT_SHOWN);
+    }
+
+    public void showContent(boolean doShow) {
+        setFlag(CONTENT_SHOWN, doShow);
+    }
+
+    // Whether shown or hidden since last laid out, and whether any descendant was.
+    boolean isLayoutDirty() {
+        return hasFlag(LAYOUT_DIRTY);
+    }
+
+    boolean hasDirtyDescendants() {
+        return hasFlag(DIRTY_DESCENDANTS);
+    }
+
+    void setLayoutClean() {
+        setFlag(LAYOUT_DIRTY | DIRTY_DESCENDANTS, false);
+    }
+
+    /**
+     * Shows or hides the node in the 3D view. Depends on checked state in TreeView.
+     */
     public void show(boolean doShow) {
-        isShown = doShow;
+        if (isShowing() == doShow) {
+            return;
+        }
+
+        setFlag(SHOWN, doShow);
+
+        // Let updateLayout() find the change.
+        setFlag(LAYOUT_DIRTY, true);
+        for (Node node = parent; node != null && !node.hasDirtyDescendants(); node = node.parent) {
+            node.setFlag(DIRTY_DESCENDANTS, true);
+        }
     }
 
     public boolean isShowing() {
-        return isShown;
+        return hasFlag(SHOWN);
     }
 
     public boolean isVisible() {
-        return (visibility == Visibility.VISIBLE);
+        return (getVisibility() == Visibility.VISIBLE);
     }
 
     /*
      * Returns whether the 3D view will show this or not.
      */
-    private boolean wouldShow() {
+    boolean wouldShow() {
         return isShowing() && isVisible();
     }
 
     public boolean hasBackground() {
-        return (background != null && background.displayListId != -1);
+        return (background != null && background.isPrepared);
     }
 
     public boolean hasContent() {
-        return (content != null && content.displayListId != -1);
+        return (content != null && content.isPrepared);
     }
 
     public void calculateMaxBounds() {
-        maxBounds = bounds;
-
-        if (children == null) {
-            return;
-        }
-
-        Rectangle totalBounds = new Rectangle(bounds.x, bounds.y, bounds.width, bounds.height);
         for (Node child : children) {
-            // Calculate child's bounds.
             child.calculateMaxBounds();
+        }
 
-            if (!wouldShow()) {
-                continue;
-            }
+        updateMaxBounds();
+    }
 
-            Rectangle bounds = child.maxBounds;
-            if (bounds.x < 0) {
-                totalBounds.x = bounds.x;
-            }
+    /*
+     * Works out the max bounds from those of the children, as they are.
+     */
+    void updateMaxBounds() {
+        int totalX = getX();
+        int totalY = getY();
+        int totalWidth = getWidth();
+        int totalHeight = getHeight();
+        if (wouldShow()) {
+            for (Node child : children) {
+                final int x = child.getMaxBound(0);
+                final int y = child.getMaxBound(1);
+                final int width = child.getMaxBound(2);
+                final int height = child.getMaxBound(3);
+                if (x < 0) {
+                    totalX = x;
+                }
 
-            if (bounds.y < 0){
-                totalBounds.y = bounds.y;
-            }
+                if (y < 0){
+                    totalY = y;
+                }
 
-            if ((bounds.x + bounds.width) > totalBounds.width) {
-                totalBounds.width = (bounds.x + bounds.width - totalBounds.x);
-            }
+                if ((x + width) > totalWidth) {
+                    totalWidth = (x + width - totalX);
+                }
 
-            if ((bounds.y + bounds.height) > totalBounds.height) {
-                totalBounds.height = (bounds.y + bounds.height - totalBounds.y);
+                if ((y + height) > totalHeight) {
+                    totalHeight = (y + height - totalY);
+                }
             }
         }
 
-        maxBounds = totalBounds;
+        store.setBox(index, NodeStore.MAX_BOUNDS, totalX, totalY, totalWidth, totalHeight);
     }
 
     /**
@@ -219,57 +487,34 @@ public class Node {
      * If not, the depth defaults to 1.
      */
     public void calculateDepth() {
-        // Ask children to calculate first.
-        for (Node node : children) {
-            node.calculateDepth();
-        }
-
-        // Default depth.
-        depth = 1;
+        LayeringEngine.layer(this);
+    }
 
-        if (parent == null || !wouldShow()) {
-            return;
+    /**
+     * Works out the max bounds and the depths again after nodes were shown or hidden, for only
+     * the nodes changed, their ancestors and the siblings after those. The tree must have been
+     * laid out with calculateMaxBounds() and calculateDepth() before.
+     */
+    public void updateLayout() {
+        Node root = this;
+        while (root.parent != null) {
+            root = root.parent;
         }
 
-        for (Node child : parent.children) {
-            if (child == this) {
-                break;
-            }
-
-            if (child.wouldShow() && (maxBounds.intersects(child.maxBounds))) {
-                // There is an overlapping, make this depth the maximum of so-far and the sibling's max-depth.
-                depth = Math.max(depth, child.getMaxDepth() + 1);
-            }
-        }
+        LayeringEngine.update(root);
     }
 
     /*
      * Returns the maximum depth of a tree rooted at this node.
      */
     public int getMaxDepth() {
-        if (children == null) {
-            return depth;
-        }
-
         int maxDepth = 0;
-        List<Rectangle> areas = new ArrayList<Rectangle>();
         for (Node child : children) {
-            if (!child.wouldShow()) {
-                continue;
+            if (child.wouldShow()) {
+                maxDepth = Math.max(maxDepth, child.getMaxDepth());
             }
-
-            int childDepth = child.getMaxDepth();
-            Rectangle bounds = child.maxBounds;
-            for (Rectangle area : areas) {
-                if (area.intersects(bounds)) {
-                    maxDepth = Math.max(maxDepth, childDepth);
-                }
-            }
-
-            areas.add(bounds);
-            maxDepth = Math.max(maxDepth, childDepth);
         }
 
-        return maxDepth + depth;
+        return maxDepth + getDepth();
     }
 }
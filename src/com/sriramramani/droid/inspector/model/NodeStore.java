@@ -0,0 +1,386 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.util.Arrays;
+
+/**
+ * The layout of the nodes of a tree, in arrays of primitives: their bounds, max bounds, paddings,
+ * margins, device positions, depths and flags. A node is a view over its index in its store, and
+ * reads and writes all of these there.
+ *
+ * A parser adds the nodes to a store as it reads them. A store built from a tree takes the nodes
+ * over from the stores they were in, in pre-order, so that the subtree of a node is the range from
+ * it to its subtree end, and its first child, if any, follows it. Only such a store has the parents,
+ * the subtree ends, the layers and the flags the canvas walks on every frame or every pick. Those are
+ * a snapshot of the layout, read again in place for the nodes a change moved after a node is shown or
+ * hidden, or built again with the store after the tree is. A store built before for the same nodes no
+ * longer follows them.
+ */
+public final class NodeStore {
+    // Flags of a node, as drawn.
+    private static final byte SHOWN = 0x1;
+    private static final byte DRAWN = 0x2;
+    private static final byte DRAWABLE = 0x4;
+
+    // Where the boxes of a node are in its part of the boxes. Four ints each: x, y, width and height
+    // for the bounds and the max bounds, and the four sides as the dump has them for the rest.
+    static final int BOUNDS = 0;
+    static final int MAX_BOUNDS = 4;
+    static final int PADDING = 8;
+    static final int MARGIN = 12;
+    static final int DRAWABLE_PADDING = 16;
+    private static final int BOXES = 20;
+
+    private int mSize = 0;
+    private Node[] mNodes;
+    private int[] mBoxes;
+
+    // Two per node: where it is on the device.
+    private int[] mPositions;
+
+    private int[] mDepths;
+
+    // The deepest max depth of the children shown, as last laid out.
+    private int[] mChildrenDepths;
+
+    // What Node keeps of itself: whether shown, selected and so on, and the visibility.
+    private byte[] mStates;
+
+    // Only for a store built from a tree.
+    private int[] mParents;
+    private int[] mEnds;
+    private int[] mLayers;
+    private byte[] mFlags;
+
+    private int mMaxLayer = 0;
+
+    /**
+     * Creates an empty store, for the nodes of a tree being read.
+     */
+    public NodeStore() {
+        this(16);
+    }
+
+    NodeStore(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * Takes the nodes of the tree over, in pre-order, and reads their layout.
+     */
+    public NodeStore(Node root) {
+        this(count(root));
+        mParents = new int[mNodes.length];
+        mEnds = new int[mNodes.length];
+        mLayers = new int[mNodes.length];
+        mFlags = new byte[mNodes.length];
+        mSize = mNodes.length;
+
+        add(root, -1, 0);
+    }
+
+    private void allocate(int capacity) {
+        mNodes = new Node[capacity];
+        mBoxes = new int[capacity * BOXES];
+        mPositions = new int[capacity * 2];
+        mDepths = new int[capacity];
+        mChildrenDepths = new int[capacity];
+        mStates = new byte[capacity];
+    }
+
+    private static int count(Node node) {
+        int count = 1;
+        for (Node child : node.children) {
+            count += count(child);
+        }
+        return count;
+    }
+
+    /**
+     * Adds a node at the end, with everything at 0, and returns its index.
+     */
+    int add(Node node) {
+        if (mSize == mNodes.length) {
+            final int capacity = mNodes.length * 2;
+            mNodes = Arrays.copyOf(mNodes, capacity);
+            mBoxes = Arrays.copyOf(mBoxes, capacity * BOXES);
+            mPositions = Arrays.copyOf(mPositions, capacity * 2);
+            mDepths = Arrays.copyOf(mDepths, capacity);
+            mChildrenDepths = Arrays.copyOf(mChildrenDepths, capacity);
+            mStates = Arrays.copyOf(mStates, capacity);
+        }
+
+        mNodes[mSize] = node;
+        return mSize++;
+    }
+
+    /**
+     * Takes back the node added last, which turned out not to be one.
+     */
+    void removeLast() {
+        final int index = --mSize;
+        mNodes[index] = null;
+        Arrays.fill(mBoxes, index * BOXES, (index + 1) * BOXES, 0);
+        mPositions[index * 2] = mPositions[index * 2 + 1] = 0;
+        mDepths[index] = mChildrenDepths[index] = 0;
+        mStates[index] = 0;
+    }
+
+    /**
+     * Copies the layout of a node in another store, or in this one, over that of the node at the index.
+     */
+    void copy(int index, NodeStore from, int fromIndex) {
+        System.arraycopy(from.mBoxes, fromIndex * BOXES, mBoxes, index * BOXES, BOXES);
+        mPositions[index * 2] = from.mPositions[fromIndex * 2];
+        mPositions[index * 2 + 1] = from.mPositions[fromIndex * 2 + 1];
+        mDepths[index] = from.mDepths[fromIndex];
+        mChildrenDepths[index] = from.mChildrenDepths[fromIndex];
+        mStates[index] = from.mStates[fromIndex];
+    }
+
+    // Takes the subtree over at the index, and returns the index after it.
+    private int add(Node node, int parent, int index) {
+        copy(index, node.store, node.index);
+        mNodes[index] = node;
+        mParents[index] = parent;
+        node.store = this;
+        node.index = index;
+
+        if (parent >= 0) {
+            mPositions[index * 2] = mPositions[parent * 2] + getX(index);
+            mPositions[index * 2 + 1] = mPositions[parent * 2 + 1] + getY(index);
+        }
+
+        read(index);
+
+        int next = index + 1;
+        for (Node child : node.children) {
+            next = add(child, index, next);
+        }
+
+        mEnds[index] = next;
+        return next;
+    }
+
+    // Reads the layer and the flags of the node, under its parent as already read.
+    private void read(int index) {
+        final Node node = mNodes[index];
+        final int parent = mParents[index];
+
+        mLayers[index] = (parent >= 0 ? mLayers[parent] : 0) + mDepths[index];
+        mMaxLayer = Math.max(mMaxLayer, mLayers[index]);
+
+        // The canvas draws neither an empty node nor its subtree.
+        byte flags = 0;
+        if (node.isVisible() && getWidth(index) != 0 && getHeight(index) != 0 &&
+            (parent < 0 || (mFlags[parent] & DRAWABLE) != 0)) {
+            flags |= DRAWABLE;
+        }
+
+        if (node.wouldShow()) {
+            flags |= SHOWN;
+            if ((flags & DRAWABLE) != 0 && (parent < 0 || (mFlags[parent] & DRAWN) != 0)) {
+                flags |= DRAWN;
+            }
+        }
+        mFlags[index] = flags;
+    }
+
+    /**
+     * Reads the layout again after the node at the index was shown or hidden, and the tree laid out
+     * again with Node.updateLayout(). Only the node and its subtree, and the subtrees of the nodes
+     * moved to other depths, are read: those of the ancestors and of the siblings after them.
+     *
+     * @return The ranges of nodes read again, as their starts and ends in turn, in order.
+     */
+    public int[] update(int index) {
+        for (int i = index; i < mEnds[index]; i++) {
+            read(i);
+        }
+
+        int[] moved = new int[] { index };
+        int count = 1;
+        for (int child = index; mParents[child] >= 0; child = mParents[child]) {
+            final int parent = mParents[child];
+            for (int sibling = (child == index ? mEnds[child] : child); sibling < mEnds[parent];
+                 sibling = mEnds[sibling]) {
+                // The layers are as last read. If the parent moved too, its subtree moves with it later.
+                final int delta = mLayers[parent] + mDepths[sibling] - mLayers[sibling];
+                if (delta == 0) {
+                    continue;
+                }
+
+                // Its subtree moves with it.
+                for (int i = sibling; i < mEnds[sibling]; i++) {
+                    mLayers[i] += delta;
+                    mMaxLayer = Math.max(mMaxLayer, mLayers[i]);
+                }
+
+                if (count == moved.length) {
+                    moved = Arrays.copyOf(moved, count * 2);
+                }
+                moved[count++] = sibling;
+            }
+        }
+
+        // Subtrees are either apart or one inside the other, only the outer ones are kept.
+        Arrays.sort(moved, 0, count);
+        final int[] ranges = new int[count * 2];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size > 0 && moved[i] < ranges[size - 1]) {
+                continue;
+            }
+            ranges[size++] = moved[i];
+            ranges[size++] = mEnds[moved[i]];
+        }
+
+        return Arrays.copyOf(ranges, size);
+    }
+
+    /**
+     * Returns the index of the node, or -1 if it isn't in the store.
+     */
+    public int indexOf(Node node) {
+        return (node.store == this ? node.index : -1);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public Node getNode(int index) {
+        return mNodes[index];
+    }
+
+    /**
+     * Returns the index of the parent, or -1 for the root.
+     */
+    public int getParent(int index) {
+        return mParents[index];
+    }
+
+    /**
+     * Returns the index after the subtree of the node, which is where its next sibling is if it has one.
+     */
+    public int getSubtreeEnd(int index) {
+        return mEnds[index];
+    }
+
+    public int getX(int index) {
+        return mBoxes[index * BOXES + BOUNDS];
+    }
+
+    public int getY(int index) {
+        return mBoxes[index * BOXES + BOUNDS + 1];
+    }
+
+    public int getWidth(int index) {
+        return mBoxes[index * BOXES + BOUNDS + 2];
+    }
+
+    public int getHeight(int index) {
+        return mBoxes[index * BOXES + BOUNDS + 3];
+    }
+
+    /**
+     * Returns a side of a box of the node: BOUNDS, MAX_BOUNDS, PADDING, MARGIN or DRAWABLE_PADDING.
+     */
+    int getBox(int index, int box, int side) {
+        return mBoxes[index * BOXES + box + side];
+    }
+
+    int[] getBox(int index, int box) {
+        final int[] values = new int[4];
+        System.arraycopy(mBoxes, index * BOXES + box, values, 0, 4);
+        return values;
+    }
+
+    void setBox(int index, int box, int first, int second, int third, int fourth) {
+        final int start = index * BOXES + box;
+        mBoxes[start] = first;
+        mBoxes[start + 1] = second;
+        mBoxes[start + 2] = third;
+        mBoxes[start + 3] = fourth;
+    }
+
+    void setBox(int index, int box, int[] values) {
+        System.arraycopy(values, 0, mBoxes, index * BOXES + box, 4);
+    }
+
+    public int getDeviceLeft(int index) {
+        return mPositions[index * 2];
+    }
+
+    public int getDeviceTop(int index) {
+        return mPositions[index * 2 + 1];
+    }
+
+    void setDevicePosition(int index, int left, int top) {
+        mPositions[index * 2] = left;
+        mPositions[index * 2 + 1] = top;
+    }
+
+    public int getDepth(int index) {
+        return mDepths[index];
+    }
+
+    void setDepth(int index, int depth) {
+        mDepths[index] = depth;
+    }
+
+    int getChildrenDepth(int index) {
+        return mChildrenDepths[index];
+    }
+
+    void setChildrenDepth(int index, int depth) {
+        mChildrenDepths[index] = depth;
+    }
+
+    byte getState(int index) {
+        return mStates[index];
+    }
+
+    void setState(int index, byte state) {
+        mStates[index] = state;
+    }
+
+    /**
+     * Returns the depth from the root, the sum of the depths of the node and its ancestors.
+     */
+    public int getLayer(int index) {
+        return mLayers[index];
+    }
+
+    /**
+     * Returns the deepest layer of any node, or deeper if an update took the deepest nodes up.
+     */
+    public int getMaxLayer() {
+        return mMaxLayer;
+    }
+
+    /**
+     * Returns whether the node is shown and visible, as the layout takes it.
+     */
+    public boolean isShown(int index) {
+        return (mFlags[index] & SHOWN) != 0;
+    }
+
+    /**
+     * Returns whether the canvas draws the node: it and its ancestors are shown, and none is empty.
+     */
+    public boolean isDrawn(int index) {
+        return (mFlags[index] & DRAWN) != 0;
+    }
+
+    /**
+     * Returns whether the canvas would draw the node if it and its ancestors were all shown: they are
+     * visible on the device, and none is empty.
+     */
+    public boolean isDrawable(int index) {
+        return (mFlags[index] & DRAWABLE) != 0;
+    }
+}
@@ -0,0 +1,446 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+/**
+ * Parses a big view dump on many threads.
+ *
+ * The file is mapped and scanned once for the bounds of its elements, without parsing them.
+ * Subtrees too big for a thread are split: their own tags are parsed here, and their children
+ * are looked at in turn. The rest are parsed on a pool, and put back in place under their parents.
+ * The device positions depend on the views above, so they are worked out once the whole tree is in.
+ */
+public final class ParallelParser {
+    // Files smaller than this are parsed on a single thread, it isn't worth the setup.
+    public static final long MIN_PARALLEL_BYTES = 4L * 1024 * 1024;
+
+    // Subtrees per thread, so that a thread with big ones doesn't hold up the rest.
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    private static final int MIN_CHUNK_BYTES = 64 * 1024;
+
+    // Deepest subtree that can be split.
+    private static final int MAX_SPLIT_DEPTH = 16;
+
+    private final int mThreads;
+    private IProgressMonitor mMonitor;
+
+    // Shared by the parts, so that the tree keeps each name once.
+    private final SymbolTable mSymbols = new SymbolTable();
+
+    // Elements no deeper than MAX_SPLIT_DEPTH, in the order of the file.
+    private int mCount = 0;
+    private int[] mStarts = new int[1024];
+    private int[] mTagEnds = new int[1024];
+    private int[] mEnds = new int[1024];
+    private int[] mDepths = new int[1024];
+
+    public ParallelParser(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Whether the file is big enough, and the machine has the cores, to parse it in parallel.
+     */
+    public static boolean isWorthwhile(File file) {
+        return file.length() >= MIN_PARALLEL_BYTES && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Reports the subtrees parsed to the monitor, which is also checked for cancellation.
+     */
+    public void setProgressMonitor(IProgressMonitor monitor) {
+        mMonitor = monitor;
+    }
+
+    public Node parse(File file) throws IOException {
+        if (file.length() > Integer.MAX_VALUE) {
+            return parseSequentially(file);
+        }
+
+        final ByteBuffer buffer;
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed.
+            buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            input.close();
+        }
+
+        if (!isUtf8(buffer)) {
+            // The parts are parsed without the declaration, which only works for UTF-8.
+            return parseSequentially(file);
+        }
+
+        scan(buffer);
+        if (mCount == 0) {
+            throw new IOException("The view dump has no views.");
+        }
+
+        final long chunkLimit = Math.max(MIN_CHUNK_BYTES, buffer.limit() / (mThreads * CHUNKS_PER_THREAD));
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Droid Inspector parser");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            // Parents of the subtrees on the pool, and where in their children the subtrees go.
+            final List<Node> parents = new ArrayList<Node>();
+            final List<Integer> indices = new ArrayList<Integer>();
+            final List<Future<Node>> subtrees = new ArrayList<Future<Node>>();
+
+            // Split nodes by depth, the parents of the elements that follow.
+            final Node[] split = new Node[MAX_SPLIT_DEPTH + 1];
+            Node root = null;
+            int skipUntil = -1;
+
+            for (int i = 0; i < mCount; i++) {
+                if (mStarts[i] < skipUntil) {
+                    // Inside a subtree sent to the pool.
+                    continue;
+                }
+
+                final int depth = mDepths[i];
+                final Node parent = (depth > 0 ? split[depth - 1] : null);
+                if (depth > 0 && parent == null) {
+                    throw new IOException("The view dump has more than one root.");
+                }
+
+                final boolean hasChildren = (mTagEnds[i] < mEnds[i]);
+                if (depth == 0 || (hasChildren && depth < MAX_SPLIT_DEPTH && mEnds[i] - mStarts[i] > chunkLimit)) {
+                    final Node node = parseStartTag(buffer, i);
+                    if (parent != null) {
+                        parent.addChild(node);
+                    } else {
+                        root = node;
+                    }
+                    split[depth] = node;
+                } else {
+                    parent.addChild(null);
+                    parents.add(parent);
+                    indices.add(parent.children.size() - 1);
+                    subtrees.add(executor.submit(new FragmentParser(slice(buffer, mStarts[i], mEnds[i]), mSymbols)));
+                    skipUntil = mEnds[i];
+                }
+            }
+
+            if (mMonitor != null) {
+                mMonitor.beginTask("Reading the views", subtrees.size());
+            }
+
+            for (int i = 0; i < subtrees.size(); i++) {
+                parents.get(i).children.set(indices.get(i), await(subtrees.get(i)));
+                if (mMonitor != null) {
+                    mMonitor.worked(1);
+                }
+            }
+
+            fixUp(root, null);
+            root.calculateMaxBounds();
+            root.calculateDepth();
+            return root;
+        } finally {
+            executor.shutdownNow();
+            if (mMonitor != null) {
+                mMonitor.done();
+            }
+        }
+    }
+
+    private Node parseSequentially(File file) throws IOException {
+        XMLParser parser = new XMLParser();
+        if (mMonitor != null) {
+            parser.setProgressMonitor(mMonitor, file.length());
+        }
+        return parser.parse(file);
+    }
+
+    private Node await(Future<Node> subtree) throws IOException {
+        try {
+            while (true) {
+                if (mMonitor != null && mMonitor.isCanceled()) {
+                    throw new OperationCanceledException();
+                }
+
+                try {
+                    return subtree.get(100, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Check for cancellation, and wait some more.
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperationCanceledException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to parse the view dump.", cause);
+        }
+    }
+
+    /**
+     * Parses the tag of an element on its own, closing it right away.
+     */
+    private Node parseStartTag(ByteBuffer buffer, int element) throws IOException {
+        final int start = mStarts[element];
+        final int tagEnd = mTagEnds[element];
+
+        InputStream in = new ImageSliceInputStream(slice(buffer, start, tagEnd));
+        if (tagEnd < mEnds[element]) {
+            int nameEnd = start + 1;
+            while (nameEnd < tagEnd && !isNameEnd(buffer.get(nameEnd))) {
+                nameEnd++;
+            }
+
+            byte[] close = new byte[nameEnd - start + 2];
+            close[0] = '<';
+            close[1] = '/';
+            for (int i = start + 1; i < nameEnd; i++) {
+                close[i - start + 1] = buffer.get(i);
+            }
+            close[close.length - 1] = '>';
+            in = new SequenceInputStream(in, new ByteArrayInputStream(close));
+        }
+
+        return new XMLParser(mSymbols).parseFragment(in, buffer);
+    }
+
+    private static boolean isNameEnd(byte value) {
+        return value == ' ' || value == '\t' || value == '\n' || value == '\r' || value == '>' || value == '/';
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice;
+    }
+
+    // Sets the parents and device positions, top down and in the order of the file.
+    private static void fixUp(Node node, Node parent) {
+        node.parent = parent;
+        if (parent != null) {
+            node.setDevicePosition(parent.getDeviceLeft() + node.getX(), parent.getDeviceTop() + node.getY());
+        } else {
+            node.setDevicePosition(0, 0);
+        }
+
+        for (Node child : node.children) {
+            fixUp(child, node);
+        }
+    }
+
+    /**
+     * Finds the elements, without looking into their attributes.
+     */
+    private void scan(ByteBuffer buffer) throws IOException {
+        final int limit = buffer.limit();
+
+        // Elements that are still open, by depth.
+        final int[] open = new int[MAX_SPLIT_DEPTH + 1];
+        int depth = 0;
+
+        int i = 0;
+        while (i < limit) {
+            if (buffer.get(i) != '<') {
+                i++;
+                continue;
+            }
+
+            if (i + 1 >= limit) {
+                break;
+            }
+
+            final byte next = buffer.get(i + 1);
+            if (next == '/') {
+                // End tag.
+                final int end = indexOf(buffer, '>', i);
+                depth--;
+                if (depth < 0) {
+                    throw new IOException("The view dump has an unmatched end tag.");
+                }
+                if (depth <= MAX_SPLIT_DEPTH) {
+                    mEnds[open[depth]] = end + 1;
+                }
+                i = end + 1;
+            } else if (next == '?') {
+                i = indexOf(buffer, '>', i) + 1;
+            } else if (next == '!') {
+                // Comments, character data or a doctype.
+                if (startsWith(buffer, i, "<!--")) {
+                    i = indexOf(buffer, "-->", i) + 3;
+                } else if (startsWith(buffer, i, "<![CDATA[")) {
+                    i = indexOf(buffer, "]]>", i) + 3;
+                } else {
+                    i = indexOf(buffer, '>', i) + 1;
+                }
+            } else {
+                // Start tag, up to the first '>' outside the attribute values.
+                final int end = findTagEnd(buffer, i);
+                final boolean isEmpty = (buffer.get(end - 1) == '/');
+                if (depth <= MAX_SPLIT_DEPTH) {
+                    add(i, end + 1, depth);
+                    if (isEmpty) {
+                        mEnds[mCount - 1] = end + 1;
+                    } else {
+                        open[depth] = mCount - 1;
+                    }
+                }
+
+                if (!isEmpty) {
+                    depth++;
+                }
+                i = end + 1;
+            }
+        }
+
+        if (depth != 0) {
+            throw new IOException("The view dump ends in the middle of a view.");
+        }
+    }
+
+    private void add(int start, int tagEnd, int depth) {
+        if (mCount == mStarts.length) {
+            final int size = mCount * 2;
+            mStarts = copyOf(mStarts, size);
+            mTagEnds = copyOf(mTagEnds, size);
+            mEnds = copyOf(mEnds, size);
+            mDepths = copyOf(mDepths, size);
+        }
+
+        mStarts[mCount] = start;
+        mTagEnds[mCount] = tagEnd;
+        mEnds[mCount] = tagEnd;
+        mDepths[mCount] = depth;
+        mCount++;
+    }
+
+    private static int[] copyOf(int[] array, int size) {
+        int[] copy = new int[size];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static int findTagEnd(ByteBuffer buffer, int start) throws IOException {
+        final int limit = buffer.limit();
+        byte quote = 0;
+        for (int i = start + 1; i < limit; i++) {
+            final byte value = buffer.get(i);
+            if (quote != 0) {
+                if (value == quote) {
+                    quote = 0;
+                }
+            } else if (value == '"' || value == '\'') {
+                quote = value;
+            } else if (value == '>') {
+                return i;
+            }
+        }
+
+        throw new IOException("The view dump ends in the middle of a tag.");
+    }
+
+    private static int indexOf(ByteBuffer buffer, char value, int start) throws IOException {
+        final int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+
+        throw new IOException("The view dump ends in the middle of a tag.");
+    }
+
+    private static int indexOf(ByteBuffer buffer, String value, int start) throws IOException {
+        final int last = buffer.limit() - value.length();
+        for (int i = start; i <= last; i++) {
+            if (startsWith(buffer, i, value)) {
+                return i;
+            }
+        }
+
+        throw new IOException("The view dump ends in the middle of a tag.");
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int start, String value) {
+        if (start + value.length() > buffer.limit()) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer.get(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether the dump is in UTF-8, as far as its byte order mark and declaration tell.
+     */
+    private static boolean isUtf8(ByteBuffer buffer) {
+        final int length = Math.min(buffer.limit(), 128);
+        if (length >= 2 && ((buffer.get(0) == (byte) 0xfe && buffer.get(1) == (byte) 0xff) ||
+                            (buffer.get(0) == (byte) 0xff && buffer.get(1) == (byte) 0xfe))) {
+            return false;
+        }
+
+        StringBuilder header = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            header.append((char) (buffer.get(i) & 0xff));
+        }
+
+        final String declaration = header.toString().toLowerCase();
+        if (!declaration.startsWith("<?xml") || !declaration.contains("encoding")) {
+            return true;
+        }
+
+        return declaration.contains("utf-8") || declaration.contains("us-ascii");
+    }
+
+    private static final class FragmentParser implements Callable<Node> {
+        private final ByteBuffer mFragment;
+        private final SymbolTable mSymbols;
+
+        FragmentParser(ByteBuffer fragment, SymbolTable symbols) {
+            mFragment = fragment;
+            mSymbols = symbols;
+        }
+
+        @Override
+        public Node call() throws IOException {
+            return new XMLParser(mSymbols).parseFragment(new ImageSliceInputStream(mFragment), mFragment);
+        }
+    }
+}
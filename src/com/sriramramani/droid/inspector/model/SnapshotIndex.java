@@ -0,0 +1,403 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.eclipse.swt.graphics.Rectangle;
+
+import com.sriramramani.droid.inspector.model.Node.Color;
+import com.sriramramani.droid.inspector.model.Node.ContentType;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+
+/**
+ * Sidecar files holding the parsed tree of the view dumps opened before, to reopen them
+ * without parsing them again.
+ *
+ * A sidecar is the flattened node table in pre-order, with the depths and the max bounds
+ * already worked out. Images are kept as where they are in the dump, which is mapped again
+ * to draw them. A sidecar is only used while the size, the modification time and a hash of
+ * the start and the end of the dump are still those it was written for:
+ *
+ * <pre>
+ * header:   "DIXI" | int version | utf path | long size | long modified | byte[20] hash | int node-count
+ * record:   int child-count | utf name | utf id, or "" | byte visibility
+ *           int[4] bounds | int[4] max-bounds | int[4] padding | int[4] margin | int[4] drawable-padding
+ *           float scroll-x, scroll-y, scale-x, scale-y, rotation-x, rotation-y, translation-x, translation-y
+ *           int depth | drawable background | drawable content
+ * drawable: byte type | (int argb) for a color | (int offset, int length) for an image in the dump
+ *           | (utf key) for an image in the image store
+ * </pre>
+ */
+public final class SnapshotIndex {
+    private static final String FILE_EXTENSION = ".dixi";
+
+    private static final int MAGIC = 0x44495849; // "DIXI"
+    private static final int VERSION = 1;
+
+    // Sidecars kept, the least recently used are deleted past this.
+    private static final int MAX_ENTRIES = 64;
+
+    // Bytes hashed at each end of a dump. Hashing all of it would take as long as parsing it.
+    private static final int HASHED_BYTES = 64 * 1024;
+
+    private static final byte DRAWABLE_NONE = 0;
+    private static final byte DRAWABLE_COLOR = 1;
+    private static final byte DRAWABLE_SLICE = 2;
+    private static final byte DRAWABLE_KEY = 3;
+
+    private static SnapshotIndex sDefault;
+
+    private final File mDirectory;
+
+    /**
+     * Returns the index used by the editor. Unless set, it lives in the temp directory.
+     */
+    public static synchronized SnapshotIndex getDefault() {
+        if (sDefault == null) {
+            sDefault = new SnapshotIndex(new File(System.getProperty("java.io.tmpdir"), "droid-inspector-index"));
+        }
+
+        return sDefault;
+    }
+
+    public static synchronized void setDefault(SnapshotIndex index) {
+        sDefault = index;
+    }
+
+    public SnapshotIndex(File directory) {
+        mDirectory = directory;
+        mDirectory.mkdirs();
+    }
+
+    /**
+     * Returns the tree of the dump from its sidecar, or null if it has none that is still valid.
+     */
+    public Node read(File dump) {
+        final File file = getFile(dump);
+        if (!file.isFile() || !canIndex(dump)) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !in.readUTF().equals(dump.getAbsolutePath())) {
+                    return null;
+                }
+
+                final long size = in.readLong();
+                final long modified = in.readLong();
+                final byte[] hash = new byte[20];
+                in.readFully(hash);
+                if (size != dump.length() || modified != dump.lastModified()) {
+                    return null;
+                }
+
+                final ByteBuffer mapping = map(dump);
+                if (!Arrays.equals(hash, hash(mapping))) {
+                    return null;
+                }
+
+                final int count = in.readInt();
+                if (count <= 0) {
+                    return null;
+                }
+
+                Node root = readNode(in, mapping, new NodeStore(), null, new SymbolTable());
+
+                // Keep the recency across restarts.
+                file.setLastModified(System.currentTimeMillis());
+                return root;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // A broken sidecar is as good as none.
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the sidecar of a dump just parsed, replacing the old one. Dumps too big to map
+     * get none.
+     */
+    public void write(File dump, Node root) throws IOException {
+        if (!canIndex(dump)) {
+            return;
+        }
+
+        final File file = getFile(dump);
+
+        // Write aside and rename, so that a half written sidecar is never read.
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        boolean isWritten = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(dump.getAbsolutePath());
+            out.writeLong(dump.length());
+            out.writeLong(dump.lastModified());
+            out.write(hash(map(dump)));
+            out.writeInt(countNodes(root));
+            writeNode(out, root);
+            out.close();
+            isWritten = true;
+        } finally {
+            if (!isWritten) {
+                try {
+                    out.close();
+                } finally {
+                    temp.delete();
+                }
+            }
+        }
+
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to write the sidecar: " + file);
+        }
+
+        trim();
+    }
+
+    // The hash and the image offsets need the dump in a single mapping, which is limited to 2 GB.
+    private static boolean canIndex(File dump) {
+        return dump.length() <= Integer.MAX_VALUE;
+    }
+
+    // The sidecars are named after the path of their dump.
+    private File getFile(File dump) {
+        return new File(mDirectory, DigestUtils.sha1Hex(dump.getAbsolutePath()) + FILE_EXTENSION);
+    }
+
+    private void trim() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES) {
+            return;
+        }
+
+        // Oldest first.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                final long difference = first.lastModified() - second.lastModified();
+                return (difference < 0 ? -1 : (difference > 0 ? 1 : 0));
+            }
+        });
+
+        for (int i = 0; i < files.length - MAX_ENTRIES; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static ByteBuffer map(File dump) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(dump, "r");
+        try {
+            // The mapping stays valid after the file is closed.
+            return input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] hash(ByteBuffer mapping) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available.", e);
+        }
+
+        final int length = mapping.capacity();
+        final byte[] buffer = new byte[Math.min(length, HASHED_BYTES)];
+
+        ByteBuffer head = mapping.duplicate();
+        head.position(0);
+        head.get(buffer);
+        digest.update(buffer);
+
+        ByteBuffer tail = mapping.duplicate();
+        tail.position(length - buffer.length);
+        tail.get(buffer);
+        digest.update(buffer);
+
+        return digest.digest();
+    }
+
+    private static int countNodes(Node node) {
+        int count = 1;
+        for (Node child : node.children) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    private static void writeNode(DataOutputStream out, Node node) throws IOException {
+        out.writeInt(node.children.size());
+        out.writeUTF(node.name);
+        out.writeUTF(node.id != null ? node.id : "");
+        out.writeByte(node.getVisibility() == Node.Visibility.VISIBLE ? 1 :
+                      node.getVisibility() == Node.Visibility.INVISIBLE ? -1 : 0);
+
+        writeRectangle(out, node.getBounds());
+        writeRectangle(out, node.getMaxBounds());
+        writeInts(out, node.getPadding());
+        writeInts(out, node.getMargin());
+        writeInts(out, node.getDrawablePadding());
+
+        out.writeFloat(node.scrollX);
+        out.writeFloat(node.scrollY);
+        out.writeFloat(node.scaleX);
+        out.writeFloat(node.scaleY);
+        out.writeFloat(node.rotationX);
+        out.writeFloat(node.rotationY);
+        out.writeFloat(node.translationX);
+        out.writeFloat(node.translationY);
+
+        out.writeInt(node.getDepth());
+        writeDrawable(out, node.getBackground());
+        writeDrawable(out, node.getContent());
+
+        for (Node child : node.children) {
+            writeNode(out, child);
+        }
+    }
+
+    private static void writeRectangle(DataOutputStream out, Rectangle rectangle) throws IOException {
+        out.writeInt(rectangle.x);
+        out.writeInt(rectangle.y);
+        out.writeInt(rectangle.width);
+        out.writeInt(rectangle.height);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static void writeDrawable(DataOutputStream out, Drawable drawable) throws IOException {
+        if (drawable == null || drawable.type == ContentType.NONE) {
+            out.writeByte(DRAWABLE_NONE);
+        } else if (drawable.type == ContentType.COLOR) {
+            out.writeByte(DRAWABLE_COLOR);
+            out.writeInt(drawable.color.toArgb());
+        } else if (drawable.slice != null) {
+            out.writeByte(DRAWABLE_SLICE);
+            out.writeInt(drawable.slice.getOffset());
+            out.writeInt(drawable.slice.getLength());
+        } else if (drawable.imageKey != null) {
+            out.writeByte(DRAWABLE_KEY);
+            out.writeUTF(drawable.imageKey);
+        } else {
+            out.writeByte(DRAWABLE_NONE);
+        }
+    }
+
+    private static Node readNode(DataInputStream in, ByteBuffer mapping, NodeStore store, Node parent,
+                                 SymbolTable symbols) throws IOException {
+        Node node = new Node(store);
+        node.parent = parent;
+
+        final int childCount = in.readInt();
+        node.setClassName(symbols.getClassName(in.readUTF()));
+        final String id = in.readUTF();
+        node.id = (id.length() > 0 ? symbols.getId(id) : null);
+
+        final int visibility = in.readByte();
+        if (visibility == 1)
+            node.setVisibility(Node.Visibility.VISIBLE);
+        else if (visibility == -1)
+            node.setVisibility(Node.Visibility.INVISIBLE);
+        else
+            node.setVisibility(Node.Visibility.GONE);
+
+        final int[] box = new int[4];
+        readInts(in, box);
+        node.setBounds(box[0], box[1], box[2], box[3]);
+        readInts(in, box);
+        node.setMaxBounds(box[0], box[1], box[2], box[3]);
+        node.setPadding(readInts(in, box));
+        node.setMargin(readInts(in, box));
+        node.setDrawablePadding(readInts(in, box));
+
+        node.scrollX = in.readFloat();
+        node.scrollY = in.readFloat();
+        node.scaleX = in.readFloat();
+        node.scaleY = in.readFloat();
+        node.rotationX = in.readFloat();
+        node.rotationY = in.readFloat();
+        node.translationX = in.readFloat();
+        node.translationY = in.readFloat();
+
+        node.setDepth(in.readInt());
+        node.setBackgroundDrawable(readDrawable(in, mapping));
+        node.setContentDrawable(readDrawable(in, mapping));
+
+        if (parent != null) {
+            node.setDevicePosition(parent.getDeviceLeft() + node.getX(), parent.getDeviceTop() + node.getY());
+        }
+
+        for (int i = 0; i < childCount; i++) {
+            node.addChild(readNode(in, mapping, store, node, symbols));
+        }
+
+        // Showing or hiding a node lays out again from these.
+        LayeringEngine.rememberDepths(node);
+
+        return node;
+    }
+
+    private static int[] readInts(DataInputStream in, int[] values) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static Drawable readDrawable(DataInputStream in, ByteBuffer mapping) throws IOException {
+        Drawable drawable = new Drawable();
+
+        final int type = in.readByte();
+        if (type == DRAWABLE_COLOR) {
+            drawable.type = ContentType.COLOR;
+            drawable.color = Color.fromArgb(in.readInt());
+        } else if (type == DRAWABLE_SLICE) {
+            final int offset = in.readInt();
+            final int length = in.readInt();
+            if (offset < 0 || length < 0 || offset > mapping.capacity() - length) {
+                throw new IOException("Corrupt image record.");
+            }
+
+            drawable.type = ContentType.IMAGE;
+            drawable.slice = new ImageSlice(mapping, offset, length);
+        } else if (type == DRAWABLE_KEY) {
+            drawable.type = ContentType.IMAGE;
+            drawable.imageKey = in.readUTF();
+        }
+
+        return drawable;
+    }
+}
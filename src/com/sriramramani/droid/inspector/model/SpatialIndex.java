@@ -0,0 +1,276 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import org.eclipse.swt.graphics.Rectangle;
+
+/**
+ * The nodes of a store by where they are on the device, to find the nodes at a point, in an area,
+ * or nearest to a point without walking the tree. The nodes are found by their index in the store,
+ * which stays the same for any store of the tree, as showing or hiding nodes doesn't move them.
+ * Whether a node is shown is left to the caller.
+ *
+ * It's an R-tree packed bottom-up with sort-tile-recursive, built once for a tree and never changed:
+ * at each level, the boxes are sorted by x into vertical slices, and each slice by y into runs of
+ * NODE_SIZE that become the boxes of the level above.
+ */
+public final class SpatialIndex {
+    // Most children of a box.
+    private static final int NODE_SIZE = 16;
+
+    // Four per entry of each level: left, top, right and bottom, the right and bottom excluded.
+    // Level 0 is the nodes of the store, by index. The top level is the single root box.
+    private final int[][] mBoxes;
+
+    // Per level above 0, the entries of the level below, in the order of their boxes at this level:
+    // the children of box j are those at [j * NODE_SIZE, (j + 1) * NODE_SIZE).
+    private final int[][] mChildren;
+
+    public SpatialIndex(NodeStore store) {
+        final int count = store.size();
+        final int[] items = new int[count * 4];
+        for (int i = 0; i < count; i++) {
+            final int left = store.getDeviceLeft(i);
+            final int top = store.getDeviceTop(i);
+            final int right = left + store.getWidth(i);
+            final int bottom = top + store.getHeight(i);
+
+            // Bounds may have a negative size.
+            items[i * 4] = Math.min(left, right);
+            items[i * 4 + 1] = Math.min(top, bottom);
+            items[i * 4 + 2] = Math.max(left, right);
+            items[i * 4 + 3] = Math.max(top, bottom);
+        }
+
+        int levels = 1;
+        for (int size = count; size > 1; size = (size + NODE_SIZE - 1) / NODE_SIZE) {
+            levels++;
+        }
+
+        mBoxes = new int[levels][];
+        mChildren = new int[levels][];
+        mBoxes[0] = items;
+
+        int size = count;
+        for (int level = 1; level < levels; level++) {
+            final int[] below = mBoxes[level - 1];
+            final int[] order = sortTileRecursive(below, size);
+            final int parents = (size + NODE_SIZE - 1) / NODE_SIZE;
+            final int[] boxes = new int[parents * 4];
+
+            for (int j = 0; j < parents; j++) {
+                int left = Integer.MAX_VALUE;
+                int top = Integer.MAX_VALUE;
+                int right = Integer.MIN_VALUE;
+                int bottom = Integer.MIN_VALUE;
+                final int end = Math.min(size, (j + 1) * NODE_SIZE);
+                for (int slot = j * NODE_SIZE; slot < end; slot++) {
+                    final int child = order[slot];
+                    left = Math.min(left, below[child * 4]);
+                    top = Math.min(top, below[child * 4 + 1]);
+                    right = Math.max(right, below[child * 4 + 2]);
+                    bottom = Math.max(bottom, below[child * 4 + 3]);
+                }
+
+                boxes[j * 4] = left;
+                boxes[j * 4 + 1] = top;
+                boxes[j * 4 + 2] = right;
+                boxes[j * 4 + 3] = bottom;
+            }
+
+            mChildren[level] = order;
+            mBoxes[level] = boxes;
+            size = parents;
+        }
+    }
+
+    /**
+     * Orders the entries for packing: by the x of their centers into slices of about as many runs
+     * as there are slices, and each slice by the y of their centers.
+     */
+    private static int[] sortTileRecursive(int[] boxes, int count) {
+        final int runs = (count + NODE_SIZE - 1) / NODE_SIZE;
+        final int slices = (int) Math.ceil(Math.sqrt(runs));
+        final int sliceSize = slices * NODE_SIZE;
+
+        // The center in the high half, the entry in the low half.
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long) getCenter(boxes[i * 4], boxes[i * 4 + 2]) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        final int[] order = new int[count];
+        final long[] slice = new long[Math.min(count, sliceSize)];
+        for (int start = 0; start < count; start += sliceSize) {
+            final int end = Math.min(count, start + sliceSize);
+            for (int i = start; i < end; i++) {
+                final int entry = (int) keys[i];
+                slice[i - start] = ((long) getCenter(boxes[entry * 4 + 1], boxes[entry * 4 + 3]) << 32) | entry;
+            }
+
+            Arrays.sort(slice, 0, end - start);
+            for (int i = start; i < end; i++) {
+                order[i] = (int) slice[i - start];
+            }
+        }
+
+        return order;
+    }
+
+    private static int getCenter(int start, int end) {
+        return (int) (((long) start + end) >> 1);
+    }
+
+    /**
+     * Returns the nodes covering the pixel, in the order of the store, which is the order they are drawn in.
+     */
+    public int[] findAt(int x, int y) {
+        Hits hits = new Hits();
+        findAt(mBoxes.length - 1, 0, x, y, hits);
+        return hits.toSortedArray();
+    }
+
+    private void findAt(int level, int index, int x, int y, Hits hits) {
+        final int[] boxes = mBoxes[level];
+        if (x < boxes[index * 4] || y < boxes[index * 4 + 1] || x >= boxes[index * 4 + 2] || y >= boxes[index * 4 + 3]) {
+            return;
+        }
+
+        if (level == 0) {
+            hits.add(index);
+            return;
+        }
+
+        final int[] children = mChildren[level];
+        final int end = Math.min(children.length, (index + 1) * NODE_SIZE);
+        for (int slot = index * NODE_SIZE; slot < end; slot++) {
+            findAt(level - 1, children[slot], x, y, hits);
+        }
+    }
+
+    /**
+     * Returns the nodes overlapping the area, in the order of the store. Empty nodes overlap nothing.
+     */
+    public int[] findIn(Rectangle area) {
+        final int left = Math.min(area.x, area.x + area.width);
+        final int top = Math.min(area.y, area.y + area.height);
+        final int right = Math.max(area.x, area.x + area.width);
+        final int bottom = Math.max(area.y, area.y + area.height);
+
+        Hits hits = new Hits();
+        findIn(mBoxes.length - 1, 0, left, top, right, bottom, hits);
+        return hits.toSortedArray();
+    }
+
+    private void findIn(int level, int index, int left, int top, int right, int bottom, Hits hits) {
+        final int[] boxes = mBoxes[level];
+        if (left >= boxes[index * 4 + 2] || top >= boxes[index * 4 + 3] ||
+            right <= boxes[index * 4] || bottom <= boxes[index * 4 + 1]) {
+            return;
+        }
+
+        if (level == 0) {
+            hits.add(index);
+            return;
+        }
+
+        final int[] children = mChildren[level];
+        final int end = Math.min(children.length, (index + 1) * NODE_SIZE);
+        for (int slot = index * NODE_SIZE; slot < end; slot++) {
+            findIn(level - 1, children[slot], left, top, right, bottom, hits);
+        }
+    }
+
+    /**
+     * Returns up to count nodes nearest to the point, the nearest first. A node covering the point
+     * is at 0, and nodes as near are in the order of the store.
+     */
+    public int[] findNearest(int x, int y, int count) {
+        Hits hits = new Hits();
+        PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+        final int top = mBoxes.length - 1;
+        queue.add(new Candidate(getDistance(top, 0, x, y), top, 0));
+
+        // Boxes come out nearest first, so a node is found only once nothing left can be nearer.
+        while (hits.size < count && !queue.isEmpty()) {
+            final Candidate candidate = queue.poll();
+            if (candidate.level == 0) {
+                hits.add(candidate.index);
+                continue;
+            }
+
+            final int level = candidate.level - 1;
+            final int[] children = mChildren[candidate.level];
+            final int end = Math.min(children.length, (candidate.index + 1) * NODE_SIZE);
+            for (int slot = candidate.index * NODE_SIZE; slot < end; slot++) {
+                final int child = children[slot];
+                queue.add(new Candidate(getDistance(level, child, x, y), level, child));
+            }
+        }
+
+        return hits.toArray();
+    }
+
+    // Squared distance from the point to the box.
+    private long getDistance(int level, int index, int x, int y) {
+        final int[] boxes = mBoxes[level];
+        final long dx = Math.max(0, Math.max((long) boxes[index * 4] - x, (long) x - boxes[index * 4 + 2]));
+        final long dy = Math.max(0, Math.max((long) boxes[index * 4 + 1] - y, (long) y - boxes[index * 4 + 3]));
+        return dx * dx + dy * dy;
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final long distance;
+        final int level;
+        final int index;
+
+        Candidate(long distance, int level, int index) {
+            this.distance = distance;
+            this.level = level;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (distance != other.distance) {
+                return (distance < other.distance ? -1 : 1);
+            }
+
+            // Boxes as near open first, so the nodes they hold are in the running.
+            if ((level == 0) != (other.level == 0)) {
+                return (level == 0 ? 1 : -1);
+            }
+
+            return (index < other.index ? -1 : (index > other.index ? 1 : 0));
+        }
+    }
+
+    // The indices found, in a growing array.
+    private static final class Hits {
+        int[] values = new int[16];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        int[] toSortedArray() {
+            final int[] array = toArray();
+            Arrays.sort(array);
+            return array;
+        }
+    }
+}
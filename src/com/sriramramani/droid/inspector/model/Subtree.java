@@ -0,0 +1,175 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.util.List;
+
+/**
+ * A subtree captured on its own, along with the chain of its ancestors.
+ *
+ * The device sends the ancestors from the window root down with their bounds,
+ * each with just the one child on the way, and the subtree in full at the end.
+ * The path gives the index of every node on the way in its real parent.
+ */
+public class Subtree {
+    // Root of the partial hierarchy, as sent.
+    public final Node root;
+
+    // Indices from the window root down to the subtree.
+    public final int[] path;
+
+    public Subtree(Node root, int[] path) {
+        this.root = root;
+        this.path = path;
+    }
+
+    /**
+     * Returns the root of the subtree, at the end of the ancestor chain.
+     */
+    public Node getNode() {
+        Node node = root;
+        for (int i = 0; i < path.length; i++) {
+            if (node.children.size() != 1) {
+                return null;
+            }
+            node = node.children.get(0);
+        }
+
+        return node;
+    }
+
+    /**
+     * Parses a path like "0/3/1". An empty string is the window root.
+     */
+    public static int[] parsePath(String path) throws NumberFormatException {
+        path = path.trim();
+        if (path.length() == 0) {
+            return new int[0];
+        }
+
+        final String[] parts = path.split("/");
+        int[] indices = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            indices[i] = Integer.parseInt(parts[i]);
+        }
+
+        return indices;
+    }
+
+    public static String toPathString(int[] path) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < path.length; i++) {
+            if (i > 0) {
+                builder.append('/');
+            }
+            builder.append(path[i]);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Returns the indices of the node and its ancestors in their parents, from the root down.
+     */
+    public static int[] getPath(Node root, Node node) {
+        int depth = 0;
+        for (Node current = node; current != root; current = current.parent) {
+            if (current == null) {
+                return null;
+            }
+            depth++;
+        }
+
+        int[] path = new int[depth];
+        for (Node current = node; current != root; current = current.parent) {
+            path[--depth] = current.parent.children.indexOf(current);
+        }
+
+        return path;
+    }
+
+    /**
+     * Returns the node at the path, or null if the tree doesn't have it.
+     */
+    public static Node findByPath(Node root, int[] path) {
+        if (path == null) {
+            return null;
+        }
+
+        Node node = root;
+        for (int index : path) {
+            if (index < 0 || index >= node.children.size()) {
+                return null;
+            }
+            node = node.children.get(index);
+        }
+
+        return node;
+    }
+
+    /**
+     * Splices the subtree into the tree, in place of the node at the same path.
+     * The ancestors take the bounds sent along, and the layout of the tree is worked out again.
+     *
+     * @return The node that was replaced.
+     */
+    public Node spliceInto(Node tree) {
+        final Node fresh = getNode();
+        if (fresh == null) {
+            throw new IllegalArgumentException("The subtree has no node at the end of its path.");
+        }
+
+        if (path.length == 0) {
+            throw new IllegalArgumentException("Use the subtree in place of the whole tree instead.");
+        }
+
+        final Node old = findByPath(tree, path);
+        if (old == null) {
+            throw new IllegalArgumentException("The tree has no node at " + toPathString(path));
+        }
+
+        // Carry over the bounds of the ancestors, things like scrolling may have moved them.
+        Node sent = root;
+        Node existing = tree;
+        for (int i = 0; i < path.length; i++) {
+            updateAncestor(existing, sent);
+            sent = sent.children.get(0);
+            existing = existing.children.get(path[i]);
+        }
+
+        final Node parent = old.parent;
+        final List<Node> siblings = parent.children;
+        siblings.set(siblings.indexOf(old), fresh);
+        fresh.parent = parent;
+
+        // The parts above the subtree may have moved.
+        updateDevicePosition(tree);
+
+        tree.calculateMaxBounds();
+        tree.calculateDepth();
+        return old;
+    }
+
+    private static void updateAncestor(Node existing, Node sent) {
+        existing.setBounds(sent.getX(), sent.getY(), sent.getWidth(), sent.getHeight());
+        existing.scrollX = sent.scrollX;
+        existing.scrollY = sent.scrollY;
+        existing.translationX = sent.translationX;
+        existing.translationY = sent.translationY;
+        existing.setVisibility(sent.getVisibility());
+        existing.setPadding(sent.getPadding());
+    }
+
+    private static void updateDevicePosition(Node node) {
+        if (node.parent != null) {
+            node.setDevicePosition(node.parent.getDeviceLeft() + node.getX(),
+                                   node.parent.getDeviceTop() + node.getY());
+        }
+
+        for (Node child : node.children) {
+            updateDevicePosition(child);
+        }
+    }
+}
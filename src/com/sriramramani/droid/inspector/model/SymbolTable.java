@@ -0,0 +1,63 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The class names and ids of a snapshot, each kept once however many views share it.
+ * A dump has a few hundred class names across tens of thousands of views.
+ *
+ * A table can be shared by the threads parsing the parts of a dump.
+ */
+public final class SymbolTable {
+    /**
+     * A class name, with the names shown for it worked out once.
+     */
+    public static final class ClassName {
+        private static final String ANDROID_WIDGET = "android.widget";
+
+        public final String name;
+
+        // Without the package.
+        public final String shortName;
+
+        // With the package, unless it's a widget.
+        public final String longName;
+
+        ClassName(String name) {
+            this.name = name;
+            shortName = name.substring(name.lastIndexOf('.') + 1);
+            longName = (name.startsWith(ANDROID_WIDGET) ? shortName : name);
+        }
+    }
+
+    private final ConcurrentHashMap<String, ClassName> mClassNames = new ConcurrentHashMap<String, ClassName>();
+    private final ConcurrentHashMap<String, String> mIds = new ConcurrentHashMap<String, String>();
+
+    public ClassName getClassName(String name) {
+        final ClassName className = mClassNames.get(name);
+        if (className != null) {
+            return className;
+        }
+
+        final ClassName added = new ClassName(name);
+        final ClassName previous = mClassNames.putIfAbsent(name, added);
+        return (previous != null ? previous : added);
+    }
+
+    public String getId(String id) {
+        if (id == null) {
+            return null;
+        }
+
+        final String previous = mIds.putIfAbsent(id, id);
+        return (previous != null ? previous : id);
+    }
+
+    public int size() {
+        return mClassNames.size() + mIds.size();
+    }
+}
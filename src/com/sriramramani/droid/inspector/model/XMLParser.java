@@ -4,160 +4,200 @@
 
 package com.sriramramani.droid.inspector.model;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+import com.sriramramani.droid.inspector.model.Node.ContentType;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+
+/**
+ * Pulls the views out of a view dump one element at a time.
+ *
+ * The parser is safe to run on a worker thread. Given a progress monitor, it reports the bytes
+ * and views read so far, and stops with an {@link OperationCanceledException} once cancelled.
+ * It can also hand out the tree parsed so far every now and then, for drawing it as it grows.
+ * A parser reads a single dump.
+ */
+public final class XMLParser {
+    public interface IPartialTreeListener {
+        /**
+         * Called on the parsing thread with a copy of the tree read so far, laid out and for the
+         * listener to keep. Only the drawables are shared with the final tree, and the parser
+         * doesn't change those once read.
+         */
+        public void onPartialTree(Node root, int nodeCount);
+    }
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+    // Attributes of a view, looked up once per attribute instead of searched for one by one.
+    private static final int ATTRIBUTE_NAME = 0;
+    private static final int ATTRIBUTE_ID = 1;
+    private static final int ATTRIBUTE_BOUNDS = 2;
+    private static final int ATTRIBUTE_PADDING = 3;
+    private static final int ATTRIBUTE_MARGIN = 4;
+    private static final int ATTRIBUTE_DRAWABLE_PADDING = 5;
+    private static final int ATTRIBUTE_VISIBILITY = 6;
+    private static final int ATTRIBUTE_BACKGROUND = 7;
+    private static final int ATTRIBUTE_CONTENT = 8;
+    private static final int ATTRIBUTE_SCROLL_X = 9;
+    private static final int ATTRIBUTE_SCROLL_Y = 10;
+    private static final int ATTRIBUTE_SCALE_X = 11;
+    private static final int ATTRIBUTE_SCALE_Y = 12;
+    private static final int ATTRIBUTE_ROTATION_X = 13;
+    private static final int ATTRIBUTE_ROTATION_Y = 14;
+    private static final int ATTRIBUTE_TRANSLATION_X = 15;
+    private static final int ATTRIBUTE_TRANSLATION_Y = 16;
+
+    private static final Map<String, Integer> ATTRIBUTES = new HashMap<String, Integer>();
+    static {
+        ATTRIBUTES.put("name", ATTRIBUTE_NAME);
+        ATTRIBUTES.put("id", ATTRIBUTE_ID);
+        ATTRIBUTES.put("bounds", ATTRIBUTE_BOUNDS);
+        ATTRIBUTES.put("padding", ATTRIBUTE_PADDING);
+        ATTRIBUTES.put("margin", ATTRIBUTE_MARGIN);
+        ATTRIBUTES.put("drawable-padding", ATTRIBUTE_DRAWABLE_PADDING);
+        ATTRIBUTES.put("visibility", ATTRIBUTE_VISIBILITY);
+        ATTRIBUTES.put("background", ATTRIBUTE_BACKGROUND);
+        ATTRIBUTES.put("content", ATTRIBUTE_CONTENT);
+        ATTRIBUTES.put("scroll-x", ATTRIBUTE_SCROLL_X);
+        ATTRIBUTES.put("scroll-y", ATTRIBUTE_SCROLL_Y);
+        ATTRIBUTES.put("scale-x", ATTRIBUTE_SCALE_X);
+        ATTRIBUTES.put("scale-y", ATTRIBUTE_SCALE_Y);
+        ATTRIBUTES.put("rotation-x", ATTRIBUTE_ROTATION_X);
+        ATTRIBUTES.put("rotation-y", ATTRIBUTE_ROTATION_Y);
+        ATTRIBUTES.put("translation-x", ATTRIBUTE_TRANSLATION_X);
+        ATTRIBUTES.put("translation-y", ATTRIBUTE_TRANSLATION_Y);
+    }
 
-import org.eclipse.swt.SWT;
-import org.eclipse.swt.graphics.Rectangle;
-import org.eclipse.swt.widgets.Display;
-import org.eclipse.swt.widgets.MessageBox;
-import org.eclipse.swt.widgets.Shell;
-import org.xml.sax.Attributes;
-import org.xml.sax.helpers.DefaultHandler;
+    // Views between checks for cancellation and partial trees.
+    private static final int CHECK_INTERVAL = 64;
 
-import com.sriramramani.droid.inspector.ui.InspectorCanvas;
+    // Keeps each class name and id once.
+    private final SymbolTable mSymbols;
 
-public final class XMLParser {
-    private static final Pattern BOUNDS_PATTERN = Pattern.compile("\\[(-?\\d+),(-?\\d+)\\]\\[(-?\\d+),(-?\\d+)\\]");
+    private Node mRoot = null;
 
-    // This gives us 1000 different colors.
-    private static final float[] COLOR_ARRAY = { 0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f, 0.7f, 0.8f, 0.9f, 1.0f };
-    private int red, green, blue;
+    // View being read, whose children come next.
+    private Node mCurrent = null;
 
-    private Node mRoot = null;
+    // Whether the open elements are views, by depth.
+    private final BitSet mIsView = new BitSet();
+    private int mDepth = 0;
 
-    public Node parse(File file) {
-        final float[] clearColor = InspectorCanvas.getClearColor();
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        SAXParser parser = null;
-        try {
-            parser = factory.newSAXParser();
-            parser.parse(file, new DefaultHandler() {
-                private Node mParent = null;
-                private Node mCurrent = null;
-                @Override
-                public void startElement(String uri, String localName, String qName, Attributes attributes) {
-                    mParent = mCurrent;
-                    Node node = null;
-                    if (attributes.getIndex("name") >= 0) {
-                        node = new Node();
-                        node.name = attributes.getValue("name");
-                        node.id = attributes.getValue("id");
-
-                        // Set the parent.
-                        node.parent = mParent;
-
-                        String bounds = attributes.getValue("bounds");
-                        int[] rectBounds = new int[4];
-                        getBounds(rectBounds, bounds);
-                        node.bounds = new Rectangle(rectBounds[0], rectBounds[1], rectBounds[2], rectBounds[3]);
-
-                        if (node.parent != null) {
-                            node.deviceLeft = node.parent.deviceLeft + node.bounds.x;
-                            node.deviceTop = node.parent.deviceTop + node.bounds.y;
-                        }
-
-                        String padding = attributes.getValue("padding");
-                        getBounds(node.padding, padding);
-
-                        String margin = attributes.getValue("margin");
-                        if (margin != null) {
-                            getBounds(node.margin, margin);
-                        }
-
-                        int visibility = Integer.parseInt(attributes.getValue("visibility"));
-                        if (visibility == 1)
-                            node.visibility = Node.Visibility.VISIBLE;
-                        else if (visibility == -1)
-                            node.visibility = Node.Visibility.INVISIBLE;
-                        else
-                            node.visibility = Node.Visibility.GONE;
-
-                        if (attributes.getIndex("background") > 0) {
-                            node.setBackground(attributes.getValue("background"));
-                        } else {
-                            node.setBackground(null);
-                        }
-
-                        if (attributes.getIndex("content") > 0) {
-                            node.setContent(attributes.getValue("content"));
-                        } else {
-                            node.setContent(null);
-                        }
-
-                        if (attributes.getIndex("drawable-padding") > 0) {
-                            String drawablePadding = attributes.getValue("drawable-padding");
-                            if (drawablePadding != null) {
-                                getBounds(node.drawablePadding, drawablePadding);
-                            }
-                        }
-
-                        node.scrollX = Float.parseFloat(attributes.getValue("scroll-x"));
-                        node.scrollY = Float.parseFloat(attributes.getValue("scroll-y"));
-
-                        if (attributes.getIndex("scale-x") > 0) {
-                            node.scaleX = Float.parseFloat(attributes.getValue("scale-x"));
-                        }
-
-                        if (attributes.getIndex("scale-y") > 0) {
-                            node.scaleY = Float.parseFloat(attributes.getValue("scale-y"));
-                        }
-
-                        if (attributes.getIndex("rotation-x") > 0) {
-                            node.rotationX = Float.parseFloat(attributes.getValue("rotation-x"));
-                        }
-
-                        if (attributes.getIndex("rotation-y") > 0) {
-                            node.rotationY = Float.parseFloat(attributes.getValue("rotation-y"));
-                        }
-
-                        if (attributes.getIndex("translation-x") > 0) {
-                            node.translationX = Float.parseFloat(attributes.getValue("translation-x"));
-                        }
-
-                        if (attributes.getIndex("translation-y") > 0) {
-                            node.translationY = Float.parseFloat(attributes.getValue("translation-y"));
-                        }
-
-                        float[] pickColor = getNextColor();
-                        if (pickColor[0] == clearColor[0] &&
-                            pickColor[1] == clearColor[1] &&
-                            pickColor[2] == clearColor[2]) {
-                            pickColor = getNextColor();
-                        }
-
-                        node.pickColor = pickColor;
-                    }
+    private int mNodeCount = 0;
 
-                    if (node != null)
-                        mCurrent = node;
+    // Mapped dump being read, if read from a file. The images are left in there.
+    private ByteBuffer mMapping = null;
 
-                    if (mCurrent != null && mRoot == null) {
-                        mRoot = mCurrent;
-                    }
+    // Where the nodes read are kept.
+    private final NodeStore mStore = new NodeStore();
 
-                    if (mCurrent != null && mParent != null) {
-                        mParent.addChild(mCurrent);
-                    }
-                }
+    // Scratch space for the bounds and the paddings, copied into the store right away.
+    private final int[] mBox = new int[4];
 
-                @Override
-                public void endElement(String uri, String localName, String qName) {
-                    if (mParent != null) {
-                        mCurrent = mParent;
-                        mParent = mParent.parent;
-                    }
-                }
-            });
-        } catch (Exception e) {
-            MessageBox box = new MessageBox(new Shell(Display.getCurrent()), SWT.ERROR);
-            box.setText("Parse Error");
-            box.setMessage("Unable to parse the file from the device.");
-            box.open();
+    private IProgressMonitor mMonitor;
+    private long mTotalBytes;
+
+    private IPartialTreeListener mPartialTreeListener;
+    private long mPartialTreeInterval;
+    private long mLastPartialTree;
+
+    public XMLParser() {
+        this(new SymbolTable());
+    }
+
+    /**
+     * Keeps the names in a table shared with the parsers of the other parts of the dump.
+     */
+    XMLParser(SymbolTable symbols) {
+        mSymbols = symbols;
+    }
+
+    /**
+     * Reports the progress to the monitor, which is also checked for cancellation.
+     *
+     * @param totalBytes Size of the dump, or -1 if unknown, like when reading off a socket.
+     */
+    public void setProgressMonitor(IProgressMonitor monitor, long totalBytes) {
+        mMonitor = monitor;
+        mTotalBytes = totalBytes;
+    }
+
+    /**
+     * Hands out the tree read so far, at most once every interval.
+     */
+    public void setPartialTreeListener(IPartialTreeListener listener, long intervalMillis) {
+        mPartialTreeListener = listener;
+        mPartialTreeInterval = intervalMillis;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public Node parse(File file) throws IOException {
+        if (mMonitor != null && mTotalBytes <= 0) {
+            mTotalBytes = file.length();
+        }
+
+        if (file.length() > Integer.MAX_VALUE) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            try {
+                return parse(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        // The images are left in the mapping, and decoded from there when drawn.
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            mMapping = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            // The mapping stays valid after the file is closed.
+            input.close();
+        }
+
+        return parse(new ImageSliceInputStream(mMapping.duplicate()));
+    }
+
+    /**
+     * Parses the view dump while it is still being read from the stream.
+     * The node tree is built element by element, so the stream can be
+     * a socket that is still receiving data. The stream is left open.
+     */
+    public Node parse(InputStream in) throws IOException {
+        if (mMonitor != null) {
+            mMonitor.beginTask("Reading the views", mTotalBytes > 0 ? (int) Math.max(1, mTotalBytes / 1024) : IProgressMonitor.UNKNOWN);
+            in = new ProgressInputStream(in, mMonitor);
+        }
+
+        try {
+            read(in);
+        } finally {
+            if (mMonitor != null) {
+                mMonitor.done();
+            }
         }
 
         mRoot.calculateMaxBounds();
@@ -165,33 +205,338 @@ public final class XMLParser {
         return mRoot;
     }
 
-    private void getBounds(int[] bounds, String attribute) {
-        Matcher matcher = BOUNDS_PATTERN.matcher(attribute);
-        if (matcher.matches()) {
-            bounds[0] = Integer.parseInt(matcher.group(1));
-            bounds[1] = Integer.parseInt(matcher.group(2));
-            bounds[2] = Integer.parseInt(matcher.group(3));
-            bounds[3] = Integer.parseInt(matcher.group(4));
+    /**
+     * Parses a part of a dump on its own, for the parallel parser. The views are left
+     * without the positions that depend on the rest of the tree.
+     *
+     * @param mapping The mapped dump the images of the part are referring to.
+     */
+    Node parseFragment(InputStream in, ByteBuffer mapping) throws IOException {
+        mMapping = mapping;
+        read(in);
+        return mRoot;
+    }
+
+    private void read(InputStream in) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        startElement(reader);
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        endElement();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse the view dump.", e);
         }
+
+        if (mRoot == null) {
+            throw new IOException("The view dump has no views.");
+        }
+    }
+
+    public Node parse(ReadableByteChannel channel) throws IOException {
+        return parse(Channels.newInputStream(channel));
     }
 
-    private float[] getNextColor() {
-        blue++;
-        if (blue == COLOR_ARRAY.length) {
-            blue = 0;
-            green++;
-            if (green == COLOR_ARRAY.length) {
-                green = 0;
-                red++;
+    private void startElement(XMLStreamReader reader) {
+        final Node node = parseNode(reader);
+        mIsView.set(mDepth++, node != null);
+        if (node == null) {
+            return;
+        }
+
+        if (mCurrent != null) {
+            mCurrent.addChild(node);
+        } else if (mRoot == null) {
+            mRoot = node;
+        }
+
+        mCurrent = node;
+        mNodeCount++;
+
+        if (mNodeCount % CHECK_INTERVAL == 0) {
+            checkpoint();
+        }
+    }
+
+    private void endElement() {
+        if (mDepth > 0 && mIsView.get(--mDepth) && mCurrent != null) {
+            mCurrent = mCurrent.parent;
+        }
+    }
+
+    private void checkpoint() {
+        if (mMonitor != null) {
+            if (mMonitor.isCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mMonitor.subTask(mNodeCount + " views");
+        }
+
+        if (mPartialTreeListener != null) {
+            final long now = System.currentTimeMillis();
+            if (now - mLastPartialTree >= mPartialTreeInterval) {
+                mLastPartialTree = now;
+
+                Node root = copyTree();
+                root.calculateMaxBounds();
+                root.calculateDepth();
+                mPartialTreeListener.onPartialTree(root, mNodeCount);
+            }
+        }
+    }
+
+    /**
+     * Copies the tree read so far, for the listener to lay out and draw while the parser goes on
+     * adding to and laying out its own.
+     */
+    private Node copyTree() {
+        final NodeStore store = new NodeStore(mNodeCount);
+        final Node root = copyOf(mRoot, store);
+        final LinkedList<Node> originals = new LinkedList<Node>();
+        final LinkedList<Node> copies = new LinkedList<Node>();
+        originals.add(mRoot);
+        copies.add(root);
+
+        while (!originals.isEmpty()) {
+            final Node original = originals.removeLast();
+            final Node copy = copies.removeLast();
+            for (Node child : original.children) {
+                final Node childCopy = copyOf(child, store);
+                childCopy.parent = copy;
+                copy.children.add(childCopy);
+
+                originals.add(child);
+                copies.add(childCopy);
+            }
+        }
+
+        return root;
+    }
+
+    private static Node copyOf(Node node, NodeStore store) {
+        Node copy = new Node(store);
+        copy.setClassName(node.getClassName());
+        copy.id = node.id;
+        copy.copyLayout(node);
+        copy.setBackgroundDrawable(node.getBackground());
+        copy.setContentDrawable(node.getContent());
+        copy.scrollX = node.scrollX;
+        copy.scrollY = node.scrollY;
+        copy.scaleX = node.scaleX;
+        copy.scaleY = node.scaleY;
+        copy.rotationX = node.rotationX;
+        copy.rotationY = node.rotationY;
+        copy.translationX = node.translationX;
+        copy.translationY = node.translationY;
+        return copy;
+    }
+
+    /**
+     * Reads the attributes in one go, in whatever order they come.
+     * Returns null if the element isn't a view.
+     */
+    private Node parseNode(XMLStreamReader reader) {
+        Node node = new Node(mStore);
+        boolean isView = false;
+        String background = null;
+        String content = null;
+
+        final int count = reader.getAttributeCount();
+        for (int i = 0; i < count; i++) {
+            final Integer attribute = ATTRIBUTES.get(reader.getAttributeLocalName(i));
+            if (attribute == null) {
+                continue;
+            }
+
+            final String value = reader.getAttributeValue(i);
+            switch (attribute.intValue()) {
+                case ATTRIBUTE_NAME:
+                    node.setClassName(mSymbols.getClassName(value));
+                    isView = true;
+                    break;
+
+                case ATTRIBUTE_ID:
+                    node.id = mSymbols.getId(value);
+                    break;
+
+                case ATTRIBUTE_BOUNDS:
+                    if (AttributeDecoder.parseBounds(value, mBox)) {
+                        node.setBounds(mBox[0], mBox[1], mBox[2], mBox[3]);
+                    }
+                    break;
+
+                case ATTRIBUTE_PADDING:
+                    if (AttributeDecoder.parseBounds(value, mBox)) {
+                        node.setPadding(mBox);
+                    }
+                    break;
+
+                case ATTRIBUTE_MARGIN:
+                    if (AttributeDecoder.parseBounds(value, mBox)) {
+                        node.setMargin(mBox);
+                    }
+                    break;
+
+                case ATTRIBUTE_DRAWABLE_PADDING:
+                    if (AttributeDecoder.parseBounds(value, mBox)) {
+                        node.setDrawablePadding(mBox);
+                    }
+                    break;
+
+                case ATTRIBUTE_VISIBILITY:
+                    final int visibility = Integer.parseInt(value);
+                    if (visibility == 1)
+                        node.setVisibility(Node.Visibility.VISIBLE);
+                    else if (visibility == -1)
+                        node.setVisibility(Node.Visibility.INVISIBLE);
+                    else
+                        node.setVisibility(Node.Visibility.GONE);
+                    break;
+
+                case ATTRIBUTE_BACKGROUND:
+                    background = value;
+                    break;
+
+                case ATTRIBUTE_CONTENT:
+                    content = value;
+                    break;
+
+                case ATTRIBUTE_SCROLL_X:
+                    node.scrollX = Float.parseFloat(value);
+                    break;
+
+                case ATTRIBUTE_SCROLL_Y:
+                    node.scrollY = Float.parseFloat(value);
+                    break;
+
+                case ATTRIBUTE_SCALE_X:
+                    node.scaleX = Float.parseFloat(value);
+                    break;
+
+                case ATTRIBUTE_SCALE_Y:
+                    node.scaleY = Float.parseFloat(value);
+                    break;
+
+                case ATTRIBUTE_ROTATION_X:
+                    node.rotationX = Float.parseFloat(value);
+                    break;
+
+                case ATTRIBUTE_ROTATION_Y:
+                    node.rotationY = Float.parseFloat(value);
+                    break;
+
+                case ATTRIBUTE_TRANSLATION_X:
+                    node.translationX = Float.parseFloat(value);
+                    break;
+
+                case ATTRIBUTE_TRANSLATION_Y:
+                    node.translationY = Float.parseFloat(value);
+                    break;
             }
         }
 
-        return new float[] {
-                COLOR_ARRAY[red],
-                COLOR_ARRAY[green],
-                COLOR_ARRAY[blue],
-                1.0f
-        };
+        if (!isView) {
+            mStore.removeLast();
+            return null;
+        }
+
+        // Set the parent.
+        node.parent = mCurrent;
+        if (node.parent != null) {
+            node.setDevicePosition(node.parent.getDeviceLeft() + node.getX(),
+                                   node.parent.getDeviceTop() + node.getY());
+        }
+
+        final ImageSlice backgroundSlice = ImageSlice.parseReference(mMapping, background);
+        if (backgroundSlice != null) {
+            node.setBackgroundDrawable(getImage(backgroundSlice));
+        } else {
+            node.setBackground(background);
+        }
+
+        final ImageSlice contentSlice = ImageSlice.parseReference(mMapping, content);
+        if (contentSlice != null) {
+            node.setContentDrawable(getImage(contentSlice));
+        } else {
+            node.setContent(content);
+        }
+
+        return node;
     }
 
+    private static Drawable getImage(ImageSlice slice) {
+        Drawable drawable = new Drawable();
+        drawable.type = ContentType.IMAGE;
+        drawable.slice = slice;
+        return drawable;
+    }
+
+    /**
+     * Reports the bytes read to the monitor, in kilobytes.
+     */
+    private static final class ProgressInputStream extends FilterInputStream {
+        private final IProgressMonitor mMonitor;
+        private long mBytes = 0;
+        private long mReported = 0;
+
+        // The images of a mapped dump are skipped rather than read, so they are counted from the mapping.
+        private final ImageSliceInputStream mSlices;
+
+        ProgressInputStream(InputStream in, IProgressMonitor monitor) {
+            super(in);
+            mMonitor = monitor;
+            mSlices = (in instanceof ImageSliceInputStream ? (ImageSliceInputStream) in : null);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value != -1) {
+                advance(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                advance(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            advance(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void advance(long bytes) {
+            mBytes = (mSlices != null ? mSlices.getPosition() : mBytes + bytes);
+            final long kilobytes = mBytes / 1024;
+            if (kilobytes > mReported) {
+                mMonitor.worked((int) (kilobytes - mReported));
+                mReported = kilobytes;
+            }
+        }
+    }
 }
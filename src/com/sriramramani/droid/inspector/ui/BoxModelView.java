@@ -95,17 +95,9 @@ public class BoxModelView extends Composite implements SelectionListener {
 
         Button button = (Button) event.widget;
         if (button == mBackground) {
-            if (button.getSelection()) {
-                mNode.isBackgroundShown = true;
-            } else {
-                mNode.isBackgroundShown = false;
-            }
+            mNode.showBackground(button.getSelection());
         } else if (button == mContent) {
-            if (button.getSelection()) {
-                mNode.isContentShown = true;
-            } else {
-                mNode.isContentShown = false;
-            }
+            mNode.showContent(button.getSelection());
         }
 
         if (mListener != null) {
@@ -120,10 +112,10 @@ public class BoxModelView extends Composite implements SelectionListener {
 
     public void setValues(Node node) {
         mNode = node;
-        mBounds = new Rectangle(node.bounds.x, node.bounds.y, node.bounds.width, node.bounds.height);
-        mPadding = node.padding;
-        mMargin = node.margin;
-        mDrawablePadding = node.drawablePadding;
+        mBounds = node.getBounds();
+        mPadding = node.getPadding();
+        mMargin = node.getMargin();
+        mDrawablePadding = node.getDrawablePadding();
 
         mInternalPadding[0] = mPadding[0] - mDrawablePadding[0];
         mInternalPadding[1] = mPadding[1] - mDrawablePadding[1];
@@ -131,10 +123,10 @@ public class BoxModelView extends Composite implements SelectionListener {
         mInternalPadding[3] = mPadding[3] - mDrawablePadding[3];
 
         mBackground.setEnabled(node.hasBackground());
-        mBackground.setSelection(node.isBackgroundShown);
+        mBackground.setSelection(node.isBackgroundShown());
 
         mContent.setEnabled(node.hasContent());
-        mContent.setSelection(node.isContentShown);
+        mContent.setSelection(node.isContentShown());
 
         mBox.redraw();
     }
@@ -102,6 +102,16 @@ public class CanvasView extends Composite
         }
     }
 
+    public void updateWithNode(Node node) {
+        if (node != null) {
+            mCanvas.updateWithNode(node);
+        }
+    }
+
+    public void replaceSubtree(Node old, Node fresh) {
+        mCanvas.replaceSubtree(old, fresh);
+    }
+
     public InspectorCanvas getCanvasView() {
         return mCanvas;
     }
@@ -110,6 +120,14 @@ public class CanvasView extends Composite
         mCanvas.refresh();
     }
 
+    public void refreshLayout(Node node) {
+        mCanvas.refreshLayout(node);
+    }
+
+    public void refreshDisplay() {
+        mCanvas.refreshDisplay();
+    }
+
     private void refreshToolbar() {
         if (mIsOrtho) {
             mToggleBounds.setEnabled(true);
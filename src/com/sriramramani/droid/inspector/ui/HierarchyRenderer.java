@@ -0,0 +1,607 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.ui;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GLContext;
+
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.Node.Color;
+import com.sriramramani.droid.inspector.model.Node.ContentType;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+import com.sriramramani.droid.inspector.model.NodeStore;
+import com.sriramramani.droid.inspector.ui.InspectorCanvas.ColorType;
+
+/**
+ * Draws the hierarchy from vertex buffers, built once per layout and drawn in a few calls a frame.
+ *
+ * The vertices are where the nodes are on the device, with the z in layers: the front of a node is at
+ * its layer, and its depth goes back from there. The depth between layers changes as the view is turned,
+ * so it's a scale of the z on the model view, and the vertices stay as they are.
+ *
+ * The faces blend over each other, so they are drawn in the order of the hierarchy, a call per run of
+ * faces with the same texture. The faces with only a color keep the page of the atlas bound, drawing
+ * from its white pixel, so that a run only ends where the texture does change. The sides and the bounds
+ * come after them, a call for each.
+ *
+ * The nodes hidden keep their vertices, all at one corner, so that showing or hiding a node only
+ * writes the vertices of the nodes it moved again, in place.
+ */
+final class HierarchyRenderer {
+    // Bytes per vertex of the faces: x, y and z as floats, the color as 4 bytes, and u and v as floats.
+    private static final int FACE_STRIDE = 24;
+
+    // Bytes per vertex of the sides and the bounds: x, y and z, and the color.
+    private static final int SHAPE_STRIDE = 16;
+
+    // Vertices of the sides of a layer, and of the bounds or the edges of a node.
+    private static final int SIDE_VERTICES = 16;
+    private static final int LINE_VERTICES = 8;
+
+    private static final int COLOR_OFFSET = 12;
+    private static final int TEXTURE_OFFSET = 16;
+
+    // The faces twice over: with the backgrounds at the layer of their contents, then split behind them.
+    private final Batch mFaces = new Batch(FACE_STRIDE);
+
+    // The sides, the bounds, the edges of the depths, and the bounds of the split backgrounds, in turn.
+    private final Batch mShapes = new Batch(SHAPE_STRIDE);
+
+    // Vertices in each copy of the faces.
+    private int mFaceCount = 0;
+
+    // Runs of faces with the same texture, or 0 for none, by their first vertex. The last ends with the copy.
+    private int[] mRunStarts = new int[0];
+    private int[] mRunTextures = new int[0];
+
+    // Where the parts of the shapes start, and where the last ends.
+    private int mSides = 0;
+    private int mBounds = 0;
+    private int mEdges = 0;
+    private int mSplitBounds = 0;
+    private int mShapeCount = 0;
+
+    // Where the vertices of each node start, and where those of the last end: in the faces, and in counts
+    // of the nodes with vertices and of those with split backgrounds, which the shapes follow from.
+    private int[] mFaceStarts = new int[1];
+    private int[] mNodeStarts = new int[1];
+    private int[] mSplitStarts = new int[1];
+
+    /**
+     * Builds the vertices of the nodes the store draws, from their drawables as they are prepared.
+     * The context must be current.
+     *
+     * @param pendingImages Keys of the images yet to arrive, drawn as placeholders.
+     * @param atlas The textures of the images.
+     */
+    void build(NodeStore store, Set<String> pendingImages, TextureAtlas atlas) {
+        // Once to count the vertices, then again to write them in place.
+        final Geometry counts = new Geometry(null, atlas);
+        addNodes(store, 0, store.size(), pendingImages, counts);
+
+        final Geometry geometry = new Geometry(counts, atlas);
+        mFaceStarts = new int[store.size() + 1];
+        mNodeStarts = new int[store.size() + 1];
+        mSplitStarts = new int[store.size() + 1];
+        addNodes(store, 0, store.size(), pendingImages, geometry);
+
+        mFaceCount = geometry.flatFaces.size();
+        mRunStarts = Arrays.copyOf(geometry.runs.starts, geometry.runs.size);
+        mRunTextures = Arrays.copyOf(geometry.runs.textures, geometry.runs.size);
+        mFaces.upload(geometry.faces);
+
+        mSides = 0;
+        mBounds = mSides + geometry.sides.size();
+        mEdges = mBounds + geometry.bounds.size();
+        mSplitBounds = mEdges + geometry.edges.size();
+        mShapeCount = mSplitBounds + geometry.splitBounds.size();
+        mShapes.upload(geometry.shapes);
+    }
+
+    /**
+     * Writes the vertices of the ranges of nodes the store read again in place, after a node was shown
+     * or hidden. The context must be current.
+     *
+     * @param ranges The starts and the ends of the ranges in turn, as NodeStore.update() returns them.
+     * @return Whether the vertices were written, which they aren't if a node has other faces than
+     *         it was built with, as when it's shown again with its background.
+     */
+    boolean update(NodeStore store, int[] ranges, Set<String> pendingImages, TextureAtlas atlas) {
+        if (mFaceStarts.length != store.size() + 1) {
+            return false;
+        }
+
+        for (int range = 0; range < ranges.length; range += 2) {
+            final int start = ranges[range];
+            final int end = ranges[range + 1];
+
+            final Geometry counts = new Geometry(null, atlas);
+            addNodes(store, start, end, pendingImages, counts);
+
+            final int faces = mFaceStarts[end] - mFaceStarts[start];
+            final int nodes = mNodeStarts[end] - mNodeStarts[start];
+            final int splits = mSplitStarts[end] - mSplitStarts[start];
+            if (counts.flatFaces.size() != faces || counts.sides.size() != (nodes + splits) * SIDE_VERTICES ||
+                counts.bounds.size() != nodes * LINE_VERTICES || counts.splitBounds.size() != splits * LINE_VERTICES) {
+                return false;
+            }
+
+            // The faces before pick the texture the colors are drawn from.
+            final Geometry geometry = new Geometry(counts, atlas);
+            geometry.runs.add(0, getTextureBefore(mFaceStarts[start]));
+            addNodes(store, start, end, pendingImages, geometry);
+
+            mFaces.update(mFaceStarts[start], geometry.faces, 0, faces);
+            mFaces.update(mFaceCount + mFaceStarts[start], geometry.faces, faces, faces);
+
+            int from = 0;
+            final int nodeStart = mNodeStarts[start];
+            final int splitStart = mSplitStarts[start];
+            mShapes.update(mSides + (nodeStart + splitStart) * SIDE_VERTICES, geometry.shapes, from,
+                           counts.sides.size());
+            mShapes.update(mBounds + nodeStart * LINE_VERTICES, geometry.shapes, from += counts.sides.size(),
+                           counts.bounds.size());
+            mShapes.update(mEdges + nodeStart * LINE_VERTICES, geometry.shapes, from += counts.bounds.size(),
+                           counts.edges.size());
+            mShapes.update(mSplitBounds + splitStart * LINE_VERTICES, geometry.shapes, from += counts.edges.size(),
+                           counts.splitBounds.size());
+        }
+
+        return true;
+    }
+
+    // The texture of the run the face before is in, or 0 if there is none.
+    private int getTextureBefore(int face) {
+        int run = Arrays.binarySearch(mRunStarts, face - 1);
+        if (run < 0) {
+            run = -run - 2;
+        }
+        return (run >= 0 ? mRunTextures[run] : 0);
+    }
+
+    // Adds the nodes from start to end, and keeps where they start if the geometry is being written.
+    private void addNodes(NodeStore store, int start, int end, Set<String> pendingImages, Geometry geometry) {
+        final int boundsColor = toColor(ColorType.BOUNDS_NORMAL);
+        final int backgroundColor = toColor(ColorType.LAYER_BACKGROUND);
+        final int contentColor = toColor(ColorType.LAYER_CONTENT);
+        final int noneColor = toColor(ColorType.LAYER_NONE);
+
+        // The positions on the device are from the root.
+        final int rootX = (store.size() > 0 ? store.getX(0) : 0);
+        final int rootY = (store.size() > 0 ? store.getY(0) : 0);
+
+        final boolean isBuilding = (geometry.faces != null && start == 0 && end == store.size());
+        int i = start;
+        while (i < end) {
+            if (!store.isDrawable(i)) {
+                // Never drawn, nor is its subtree.
+                final int next = store.getSubtreeEnd(i);
+                while (isBuilding && i < next) {
+                    markStart(i++, geometry);
+                }
+                i = next;
+                continue;
+            }
+
+            if (isBuilding) {
+                markStart(i, geometry);
+            }
+
+            // Collapsed to a corner, if hidden.
+            final boolean isDrawn = store.isDrawn(i);
+            final float layerDepth = (isDrawn ? 1.0f : 0.0f);
+
+            final Node node = store.getNode(i);
+            final float left = rootX + store.getDeviceLeft(i);
+            final float top = -(rootY + store.getDeviceTop(i));
+            final float right = (isDrawn ? left + store.getWidth(i) : left);
+            final float bottom = (isDrawn ? top - store.getHeight(i) : top);
+            final float layer = store.getLayer(i);
+
+            final boolean hasBackground = node.isBackgroundShown() && node.hasBackground();
+            final boolean hasContent = node.isContentShown() && node.hasContent();
+
+            // Faces, the background split half a layer behind the content if both are there.
+            if (hasBackground) {
+                final float splitLayer = (hasContent ? layer - 0.5f * layerDepth : layer);
+                addFace(geometry, node.getBackground(), pendingImages, left, top, right, bottom, layer, splitLayer);
+            }
+
+            if (hasContent) {
+                addFace(geometry, node.getContent(), pendingImages, left, top, right, bottom, layer, layer);
+            }
+
+            // Sides, down to the layer below.
+            if (hasBackground && hasContent) {
+                final float split = layer - 0.5f * layerDepth;
+                addSides(geometry.sides, contentColor, left, top, right, bottom, layer, split);
+                addSides(geometry.sides, backgroundColor, left, top, right, bottom, split, layer - layerDepth);
+            } else {
+                final int color = (hasContent ? contentColor : (hasBackground ? backgroundColor : noneColor));
+                addSides(geometry.sides, color, left, top, right, bottom, layer, layer - layerDepth);
+            }
+
+            addBounds(geometry.bounds, boundsColor, left, top, right, bottom, layer);
+            addEdges(geometry.edges, boundsColor, left, top, right, bottom, layer,
+                     layer - store.getDepth(i) * layerDepth);
+            if (hasBackground && hasContent) {
+                addBounds(geometry.splitBounds, boundsColor, left, top, right, bottom, layer - 0.5f * layerDepth);
+            }
+
+            i++;
+        }
+
+        if (isBuilding) {
+            markStart(end, geometry);
+        }
+    }
+
+    private void markStart(int index, Geometry geometry) {
+        mFaceStarts[index] = geometry.flatFaces.size();
+        mNodeStarts[index] = geometry.bounds.size() / LINE_VERTICES;
+        mSplitStarts[index] = geometry.splitBounds.size() / LINE_VERTICES;
+    }
+
+    // Adds the face of a drawable to both copies, or nothing if there is nothing to draw for it yet.
+    private static void addFace(Geometry geometry, Drawable drawable, Set<String> pendingImages,
+                                float left, float top, float right, float bottom, float layer, float splitLayer) {
+        if (drawable.type == ContentType.IMAGE && drawable.texureId != -1) {
+            geometry.runs.add(geometry.flatFaces.size(), drawable.texureId);
+            final int color = toColor(ColorType.COLOR_WHITE);
+            addFace(geometry.flatFaces, color, left, top, right, bottom, layer, drawable);
+            addFace(geometry.splitFaces, color, left, top, right, bottom, splitLayer, drawable);
+            return;
+        }
+
+        final int color;
+        if (drawable.type == ContentType.COLOR) {
+            final Color drawableColor = drawable.color;
+            color = toColor(drawableColor.red, drawableColor.green, drawableColor.blue, drawableColor.alpha);
+        } else if (drawable.imageKey != null && pendingImages.contains(drawable.imageKey)) {
+            color = toColor(ColorType.LAYER_PLACEHOLDER);
+        } else {
+            return;
+        }
+
+        // From the white pixel of the page bound for the faces before, if there is one.
+        final float white = geometry.atlas.getWhiteTexel(geometry.runs.getLastTexture());
+        if (white >= 0.0f) {
+            addColorFace(geometry.flatFaces, color, left, top, right, bottom, layer, white);
+            addColorFace(geometry.splitFaces, color, left, top, right, bottom, splitLayer, white);
+        } else {
+            geometry.runs.add(geometry.flatFaces.size(), 0);
+            addColorFace(geometry.flatFaces, color, left, top, right, bottom, layer, 0.0f);
+            addColorFace(geometry.splitFaces, color, left, top, right, bottom, splitLayer, 0.0f);
+        }
+    }
+
+    private static void addFace(Vertices faces, int color, float left, float top, float right, float bottom, float z,
+                                Drawable drawable) {
+        faces.add(left, top, z, color, drawable.textureLeft, drawable.textureTop);
+        faces.add(right, top, z, color, drawable.textureRight, drawable.textureTop);
+        faces.add(right, bottom, z, color, drawable.textureRight, drawable.textureBottom);
+        faces.add(left, bottom, z, color, drawable.textureLeft, drawable.textureBottom);
+    }
+
+    private static void addColorFace(Vertices faces, int color, float left, float top, float right, float bottom,
+                                     float z, float texel) {
+        faces.add(left, top, z, color, texel, texel);
+        faces.add(right, top, z, color, texel, texel);
+        faces.add(right, bottom, z, color, texel, texel);
+        faces.add(left, bottom, z, color, texel, texel);
+    }
+
+    // The four sides between the layers, as quads.
+    private static void addSides(Vertices sides, int color, float left, float top, float right, float bottom,
+                                 float front, float back) {
+        addSide(sides, color, left, top, right, top, front, back);
+        addSide(sides, color, right, top, right, bottom, front, back);
+        addSide(sides, color, right, bottom, left, bottom, front, back);
+        addSide(sides, color, left, bottom, left, top, front, back);
+    }
+
+    private static void addSide(Vertices sides, int color, float x1, float y1, float x2, float y2,
+                                float front, float back) {
+        sides.add(x1, y1, front, color);
+        sides.add(x1, y1, back, color);
+        sides.add(x2, y2, back, color);
+        sides.add(x2, y2, front, color);
+    }
+
+    // The outline of the face at z, as lines.
+    private static void addBounds(Vertices bounds, int color, float left, float top, float right, float bottom, float z) {
+        addLine(bounds, color, left, top, z, right, top, z);
+        addLine(bounds, color, right, top, z, right, bottom, z);
+        addLine(bounds, color, right, bottom, z, left, bottom, z);
+        addLine(bounds, color, left, bottom, z, left, top, z);
+    }
+
+    // The corners of the depth, as lines.
+    private static void addEdges(Vertices edges, int color, float left, float top, float right, float bottom,
+                                 float front, float back) {
+        addLine(edges, color, left, top, front, left, top, back);
+        addLine(edges, color, right, top, front, right, top, back);
+        addLine(edges, color, right, bottom, front, right, bottom, back);
+        addLine(edges, color, left, bottom, front, left, bottom, back);
+    }
+
+    private static void addLine(Vertices lines, int color, float x1, float y1, float z1, float x2, float y2, float z2) {
+        lines.add(x1, y1, z1, color);
+        lines.add(x2, y2, z2, color);
+    }
+
+    /**
+     * Draws the hierarchy with the model view as it is, the layers depth apart.
+     */
+    void draw(float depth, boolean isOrtho, boolean showDepth, boolean showBounds, boolean splitContent) {
+        GL11.glPushMatrix();
+        GL11.glScalef(1.0f, 1.0f, depth);
+
+        GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, GL11.GL_FILL);
+        GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);
+        GL11.glEnableClientState(GL11.GL_COLOR_ARRAY);
+
+        // Faces.
+        GL11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+        mFaces.bind(true);
+
+        final int copy = (splitContent ? mFaceCount : 0);
+        for (int run = 0; run < mRunStarts.length; run++) {
+            final int start = mRunStarts[run];
+            final int end = (run + 1 < mRunStarts.length ? mRunStarts[run + 1] : mFaceCount);
+            if (mRunTextures[run] != 0) {
+                GL11.glEnable(GL11.GL_TEXTURE_2D);
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, mRunTextures[run]);
+            } else {
+                GL11.glDisable(GL11.GL_TEXTURE_2D);
+            }
+
+            GL11.glDrawArrays(GL11.GL_QUADS, copy + start, end - start);
+        }
+
+        GL11.glDisable(GL11.GL_TEXTURE_2D);
+        GL11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+
+        // Stencil shouldn't know about the sides or the bounds.
+        GL11.glPushAttrib(GL11.GL_STENCIL_BUFFER_BIT);
+        GL11.glStencilOp(GL11.GL_KEEP, GL11.GL_KEEP, GL11.GL_KEEP);
+        mShapes.bind(false);
+
+        if (!isOrtho && showDepth) {
+            GL11.glDrawArrays(GL11.GL_QUADS, mSides, mBounds - mSides);
+        }
+
+        if (!isOrtho || showBounds) {
+            GL11.glDrawArrays(GL11.GL_LINES, mBounds, mEdges - mBounds);
+        }
+
+        if (!isOrtho && showDepth) {
+            GL11.glDrawArrays(GL11.GL_LINES, mEdges, mSplitBounds - mEdges);
+        }
+
+        // Show a bounding box for split content in perspective mode.
+        if (!isOrtho && !showDepth && splitContent) {
+            GL11.glDrawArrays(GL11.GL_LINES, mSplitBounds, mShapeCount - mSplitBounds);
+        }
+
+        mShapes.unbind();
+        GL11.glPopAttrib();
+
+        GL11.glDisableClientState(GL11.GL_COLOR_ARRAY);
+        GL11.glDisableClientState(GL11.GL_VERTEX_ARRAY);
+        GL11.glPopMatrix();
+    }
+
+    private static int toColor(ColorType type) {
+        return toColor(type.red, type.green, type.blue, type.alpha);
+    }
+
+    // Packs the color as the bytes of its red, green, blue and alpha, in that order.
+    private static int toColor(float red, float green, float blue, float alpha) {
+        return (toByte(red) << 24) | (toByte(green) << 16) | (toByte(blue) << 8) | toByte(alpha);
+    }
+
+    private static int toByte(float value) {
+        return Math.max(0, Math.min(255, Math.round(value * 255)));
+    }
+
+    // Vertices uploaded once, to a buffer object if the context has them, or kept to be drawn from memory.
+    private static final class Batch {
+        private final int mStride;
+        private int mBufferId = 0;
+        private ByteBuffer mVertices = null;
+
+        Batch(int stride) {
+            mStride = stride;
+        }
+
+        void upload(ByteBuffer vertices) {
+            release();
+
+            if (GLContext.getCapabilities().OpenGL15) {
+                mBufferId = GL15.glGenBuffers();
+                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, mBufferId);
+                GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertices, GL15.GL_STATIC_DRAW);
+                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            } else {
+                mVertices = vertices;
+            }
+        }
+
+        void bind(boolean hasTexture) {
+            if (mBufferId != 0) {
+                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, mBufferId);
+                GL11.glVertexPointer(3, GL11.GL_FLOAT, mStride, 0L);
+                GL11.glColorPointer(4, GL11.GL_UNSIGNED_BYTE, mStride, COLOR_OFFSET);
+                if (hasTexture) {
+                    GL11.glTexCoordPointer(2, GL11.GL_FLOAT, mStride, TEXTURE_OFFSET);
+                }
+            } else if (mVertices != null) {
+                GL11.glVertexPointer(3, GL11.GL_FLOAT, mStride, getVertices(0));
+                GL11.glColorPointer(4, GL11.GL_UNSIGNED_BYTE, mStride, getVertices(COLOR_OFFSET));
+                if (hasTexture) {
+                    GL11.glTexCoordPointer(2, GL11.GL_FLOAT, mStride, getVertices(TEXTURE_OFFSET));
+                }
+            }
+        }
+
+        // Writes the count vertices from the one at from of the vertices over those from first.
+        void update(int first, ByteBuffer vertices, int from, int count) {
+            if (count == 0) {
+                return;
+            }
+
+            final ByteBuffer part = vertices.duplicate();
+            part.limit((from + count) * mStride).position(from * mStride);
+            if (mBufferId != 0) {
+                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, mBufferId);
+                GL15.glBufferSubData(GL15.GL_ARRAY_BUFFER, (long) first * mStride, part);
+                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            } else if (mVertices != null) {
+                final ByteBuffer target = mVertices.duplicate();
+                target.position(first * mStride);
+                target.put(part);
+            }
+        }
+
+        // The vertices from an offset into the first, which is where GL reads them from.
+        private ByteBuffer getVertices(int offset) {
+            ByteBuffer vertices = mVertices.duplicate();
+            vertices.position(offset);
+            return vertices;
+        }
+
+        void unbind() {
+            if (mBufferId != 0) {
+                GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+            }
+        }
+
+        void release() {
+            if (mBufferId != 0) {
+                GL15.glDeleteBuffers(mBufferId);
+                mBufferId = 0;
+            }
+            mVertices = null;
+        }
+    }
+
+    // The vertices of the faces and of the shapes, each in their parts one after the other.
+    private static final class Geometry {
+        final ByteBuffer faces;
+        final ByteBuffer shapes;
+
+        final Vertices flatFaces;
+        final Vertices splitFaces;
+        final Vertices sides;
+        final Vertices bounds;
+        final Vertices edges;
+        final Vertices splitBounds;
+        final Runs runs = new Runs();
+        final TextureAtlas atlas;
+
+        // Only counts the vertices if there are no counts, or else writes them where the counts put them.
+        Geometry(Geometry counts, TextureAtlas atlas) {
+            this.atlas = atlas;
+            if (counts == null) {
+                faces = shapes = null;
+                flatFaces = new Vertices(null, 0, 0);
+                splitFaces = new Vertices(null, 0, 0);
+                sides = new Vertices(null, 0, 0);
+                bounds = new Vertices(null, 0, 0);
+                edges = new Vertices(null, 0, 0);
+                splitBounds = new Vertices(null, 0, 0);
+                return;
+            }
+
+            faces = BufferUtils.createByteBuffer((counts.flatFaces.size() + counts.splitFaces.size()) * FACE_STRIDE);
+            flatFaces = new Vertices(faces, 0, FACE_STRIDE);
+            splitFaces = new Vertices(faces, counts.flatFaces.size(), FACE_STRIDE);
+
+            shapes = BufferUtils.createByteBuffer((counts.sides.size() + counts.bounds.size() +
+                                                   counts.edges.size() + counts.splitBounds.size()) * SHAPE_STRIDE);
+            int start = 0;
+            sides = new Vertices(shapes, start, SHAPE_STRIDE);
+            bounds = new Vertices(shapes, start += counts.sides.size(), SHAPE_STRIDE);
+            edges = new Vertices(shapes, start += counts.bounds.size(), SHAPE_STRIDE);
+            splitBounds = new Vertices(shapes, start += counts.edges.size(), SHAPE_STRIDE);
+        }
+    }
+
+    // Vertices written one after the other from a vertex of a buffer, or only counted if there is no buffer.
+    private static final class Vertices {
+        private final ByteBuffer mBuffer;
+        private int mSize = 0;
+
+        Vertices(ByteBuffer buffer, int start, int stride) {
+            if (buffer != null) {
+                // The floats in the order of the platform, as GL reads them.
+                mBuffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+                mBuffer.position(start * stride);
+            } else {
+                mBuffer = null;
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void add(float x, float y, float z, int color) {
+            if (mBuffer != null) {
+                mBuffer.putFloat(x).putFloat(y).putFloat(z);
+                putColor(color);
+            }
+            mSize++;
+        }
+
+        void add(float x, float y, float z, int color, float u, float v) {
+            if (mBuffer != null) {
+                mBuffer.putFloat(x).putFloat(y).putFloat(z);
+                putColor(color);
+                mBuffer.putFloat(u).putFloat(v);
+            }
+            mSize++;
+        }
+
+        // Red first, whatever the order of the platform.
+        private void putColor(int color) {
+            mBuffer.put((byte) (color >>> 24)).put((byte) (color >>> 16)).put((byte) (color >>> 8)).put((byte) color);
+        }
+    }
+
+    // The runs of faces, growing as they are added.
+    private static final class Runs {
+        int[] starts = new int[16];
+        int[] textures = new int[16];
+        int size = 0;
+
+        // The texture of the last run, or 0 if there are none.
+        int getLastTexture() {
+            return (size > 0 ? textures[size - 1] : 0);
+        }
+
+        void add(int start, int texture) {
+            if (size > 0 && textures[size - 1] == texture) {
+                return;
+            }
+
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                textures = Arrays.copyOf(textures, size * 2);
+            }
+            starts[size] = start;
+            textures[size] = texture;
+            size++;
+        }
+    }
+}
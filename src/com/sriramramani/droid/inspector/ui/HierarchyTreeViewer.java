@@ -25,6 +25,7 @@ import org.eclipse.swt.widgets.Widget;
 import org.eclipse.ui.dialogs.ContainerCheckedTreeViewer;
 
 import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.SymbolTable.ClassName;
 
 public class HierarchyTreeViewer extends ContainerCheckedTreeViewer {
 
@@ -111,7 +112,7 @@ public class HierarchyTreeViewer extends ContainerCheckedTreeViewer {
                 child.setChecked(childState);
 
                 // Child should be grayed if either background or content is not shown.
-                boolean childGray = !node.isBackgroundShown || !node.isContentShown;
+                boolean childGray = !node.isBackgroundShown() || !node.isContentShown();
 
                 // Will be true if any of its children was not visible.
                 childGray = childGray || updateChildrenItems(child);
@@ -176,7 +177,8 @@ public class HierarchyTreeViewer extends ContainerCheckedTreeViewer {
 
             // Show background and content back again.
             if (event.getChecked()) {
-                node.isBackgroundShown = node.isContentShown = true;
+                node.showBackground(true);
+                node.showContent(true);
             }
 
             if (mNodeCheckedStateChangedListener != null) {
@@ -190,7 +192,7 @@ public class HierarchyTreeViewer extends ContainerCheckedTreeViewer {
         public void selectionChanged(SelectionChangedEvent event) {
             if (event.getSelection().isEmpty()) {
                 if (mSelectedNode != null) {
-                    mSelectedNode.isSelected = false;
+                    mSelectedNode.setSelected(false);
                 }
                 mSelectedNode = null;
                 return;
@@ -198,9 +200,9 @@ public class HierarchyTreeViewer extends ContainerCheckedTreeViewer {
 
             Node node = (Node) (((IStructuredSelection) event.getSelection())).getFirstElement();
             if (mSelectedNode != null) {
-                mSelectedNode.isSelected = false;
+                mSelectedNode.setSelected(false);
             }
-            node.isSelected = true;
+            node.setSelected(true);
             mSelectedNode = node;
 
             if (mSelectedNodeChangedListener != null) {
@@ -212,7 +214,6 @@ public class HierarchyTreeViewer extends ContainerCheckedTreeViewer {
     private static class NodeLabelProvider extends LabelProvider
                                            implements IColorProvider {
 
-        private static final String ANDROID_WIDGET = "android.widget";
         private boolean mShowPackage = false;
         private boolean mShowId = false;
 
@@ -229,16 +230,9 @@ public class HierarchyTreeViewer extends ContainerCheckedTreeViewer {
             final Node node = (Node) element;
             final String id = mShowId ? node.id : "";
 
-            String name;
-            if (mShowPackage) {
-                if (node.name.startsWith(ANDROID_WIDGET)) {
-                    name = node.name.substring(node.name.lastIndexOf('.') + 1);
-                } else {
-                    name = node.name;
-                }
-            } else {
-                name = node.name.substring(node.name.lastIndexOf('.') + 1);
-            }
+            // The names are worked out once per class, not on every repaint.
+            final ClassName className = node.getClassName();
+            final String name = (mShowPackage ? className.longName : className.shortName);
 
             return name + " " + id;
         }
@@ -5,6 +5,7 @@
 package com.sriramramani.droid.inspector.ui;
 
 import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.events.SelectionListener;
@@ -20,9 +21,15 @@ import com.sriramramani.droid.inspector.ui.HierarchyTreeViewer.INodeCheckedState
 import com.sriramramani.droid.inspector.ui.HierarchyTreeViewer.ISelectedNodeChangedListener;
 
 public class HierarchyView extends Composite {
+    public static interface IRefreshSubtreeListener {
+        public void onRefreshSubtree(Node node);
+    }
+
     private HierarchyTreeViewer mTree;
 
     private INodeCheckedStateChangedListener mCheckedListener;
+    private IRefreshSubtreeListener mRefreshListener;
+
     public HierarchyView(Composite parent, int style) {
         super(parent, style);
 
@@ -104,6 +111,28 @@ public class HierarchyView extends Composite {
             }
         });
 
+        // Add a separator.
+        new ToolItem(toolbar, SWT.SEPARATOR);
+
+        ToolItem refresh = new ToolItem(toolbar, SWT.PUSH);
+        refresh.setText("Refresh");
+        refresh.setToolTipText("Capture the selected view again");
+        refresh.addSelectionListener(new SelectionListener() {
+            @Override
+            public void widgetSelected(SelectionEvent event) {
+                IStructuredSelection selection = (IStructuredSelection) mTree.getSelection();
+                if (selection == null || selection.isEmpty() || mRefreshListener == null) {
+                    return;
+                }
+
+                mRefreshListener.onRefreshSubtree((Node) selection.getFirstElement());
+            }
+
+            @Override
+            public void widgetDefaultSelected(SelectionEvent event) {
+            }
+        });
+
         mTree = new HierarchyTreeViewer(this, SWT.H_SCROLL | SWT.V_SCROLL);
         Tree tree = mTree.getTree();
         tree.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 1, 1));
@@ -129,6 +158,10 @@ public class HierarchyView extends Composite {
         mTree.addNodeCheckedStateChangedListener(listener);
     }
 
+    public void addRefreshSubtreeListener(IRefreshSubtreeListener listener) {
+        mRefreshListener = listener;
+    }
+
     public void setSelection(ISelection selection) {
         mTree.setSelection(selection);
     }
@@ -141,6 +174,19 @@ public class HierarchyView extends Composite {
         mTree.setChecked(node, current);
     }
 
+    /**
+     * Shows the subtree that took the place of the old one in the hierarchy.
+     */
+    public void replaceSubtree(Node old, Node fresh) {
+        mTree.refresh(fresh.parent);
+        mTree.expandToLevel(fresh, HierarchyTreeViewer.ALL_LEVELS);
+
+        // Let the checked and grayed states follow the new nodes.
+        final boolean isShowing = fresh.isShowing();
+        mTree.setChecked(fresh, !isShowing);
+        mTree.setChecked(fresh, isShowing);
+    }
+
     private void makeAllVisible(Node node) {
         int count = node.children.size();
         for (int i = 0; i < count; i++) {
@@ -4,13 +4,15 @@
 
 package com.sriramramani.droid.inspector.ui;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
-import org.apache.commons.codec.binary.Base64;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.MouseEvent;
 import org.eclipse.swt.events.MouseListener;
@@ -23,7 +25,6 @@ import org.eclipse.swt.opengl.GLData;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Listener;
-import org.lwjgl.BufferUtils;
 import org.lwjgl.LWJGLException;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GLContext;
@@ -34,14 +35,12 @@ import org.lwjgl.util.vector.Vector2f;
 import org.lwjgl.util.vector.Vector3f;
 
 import com.sriramramani.droid.inspector.model.Node;
-import com.sriramramani.droid.inspector.model.Node.Color;
 import com.sriramramani.droid.inspector.model.Node.ContentType;
 import com.sriramramani.droid.inspector.model.Node.Drawable;
+import com.sriramramani.droid.inspector.model.NodeStore;
+import com.sriramramani.droid.inspector.model.SpatialIndex;
 import com.sriramramani.droid.inspector.ui.CanvasView.ToolbarEvent;
 
-import de.matthiasmann.twl.utils.PNGDecoder;
-import de.matthiasmann.twl.utils.PNGDecoder.Format;
-
 public class InspectorCanvas extends GLCanvas
                             implements Listener,
                                        MouseListener,
@@ -60,18 +59,31 @@ public class InspectorCanvas extends GLCanvas
 
     private static final float[] CLEAR_COLOR = new float[] { 0.2f, 0.2f, 0.2f, 1.0f };
 
-    private static enum ColorType {
-        COLOR_WHITE,
-        COLOR_BLACK,
-        BOUNDS_SELECTION,
-        BOUNDS_NORMAL,
-        LAYER_BACKGROUND,
-        LAYER_CONTENT,
-        LAYER_NONE,
-        OVERDRAW_BLUE,
-        OVERDRAW_GREEN,
-        OVERDRAW_RED_LOW,
-        OVERDRAW_RED_HIGH
+    static enum ColorType {
+        COLOR_WHITE(1.0f, 1.0f, 1.0f, 1.0f),
+        COLOR_BLACK(0.0f, 0.0f, 0.0f, 1.0f),
+        BOUNDS_SELECTION(1.0f, 0.45f, 0.45f, 1.0f),
+        BOUNDS_NORMAL(0.33f, 0.33f, 0.33f, 1.0f),
+        LAYER_BACKGROUND(0.50f, 0.658f, 0.733f, 0.5f),
+        LAYER_CONTENT(0.976f, 0.823f, 0.592f, 0.5f),
+        LAYER_NONE(0.85f, 0.85f, 0.85f, 0.5f),
+        LAYER_PLACEHOLDER(0.6f, 0.6f, 0.6f, 0.25f),
+        OVERDRAW_BLUE(0.7f, 0.7f, 1.0f, 0.7f),
+        OVERDRAW_GREEN(0.7f, 1.0f, 0.7f, 0.7f),
+        OVERDRAW_RED_LOW(1.0f, 0.7f, 0.7f, 0.7f),
+        OVERDRAW_RED_HIGH(1.0f, 0.3f, 0.3f, 0.7f);
+
+        final float red;
+        final float green;
+        final float blue;
+        final float alpha;
+
+        private ColorType(float red, float green, float blue, float alpha) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+            this.alpha = alpha;
+        }
     };
 
     private INodeSelectionChangedListener mNodeSelectionChangedListener = null;
@@ -84,7 +96,6 @@ public class InspectorCanvas extends GLCanvas
     private boolean mSplitContent = true;
 
     private boolean mRotateNodes = true;
-    private boolean mIsPicking = false;
 
     private float mZNear = 1.0f;
     private float mZFar = 4000.0f;
@@ -113,10 +124,27 @@ public class InspectorCanvas extends GLCanvas
     // Root of the tree.
     private Node mNode = null;
 
+    // The tree as last laid out, flattened.
+    private NodeStore mStore = null;
+
+    // The nodes of the tree by where they are, for picking.
+    private SpatialIndex mIndex = null;
+
+    // Draws the tree as last laid out.
+    private final HierarchyRenderer mRenderer = new HierarchyRenderer();
+
+    // The textures of the images, packed into pages.
+    private final TextureAtlas mAtlas;
+
+    // Nodes with images that haven't arrived yet, by image key.
+    private final Map<String, List<Node>> mPendingImages = new HashMap<String, List<Node>>();
+
     public InspectorCanvas(Composite parent, int style, GLData data) {
         super(parent, style, data);
         setCurrent();
 
+        mAtlas = new TextureAtlas();
+
         // Clear the canvas.
         GL11.glClearColor(CLEAR_COLOR[0], CLEAR_COLOR[1], CLEAR_COLOR[2], CLEAR_COLOR[3]);
         GL11.glClearDepth(1.0f);
@@ -264,7 +292,7 @@ public class InspectorCanvas extends GLCanvas
                       0.0f, 0.0f, 0.0f,
                       0.0f, 1.0f, 0.0f);
 
-        // Transformations happen in the reverse.
+        // Transformations happen in the reverse. Picking works them out the same way.
         if (mIsOrtho) {
             // User's translation.
             GL11.glTranslatef(mOrthoTranslate.x, mOrthoTranslate.y, 0.0f);
@@ -274,8 +302,8 @@ public class InspectorCanvas extends GLCanvas
 
             // Center the nodes.
             final Rectangle bounds = getBounds();
-            final float scaledWidth = mNode.bounds.width * mOrthoScale;
-            final float scaledHeight = mNode.bounds.height * mOrthoScale;
+            final float scaledWidth = mNode.getWidth() * mOrthoScale;
+            final float scaledHeight = mNode.getHeight() * mOrthoScale;
             GL11.glTranslatef((bounds.width - scaledWidth)/2, 0.0f, 0.0f);
 
             // Scale based on viewport size.
@@ -292,26 +320,23 @@ public class InspectorCanvas extends GLCanvas
             GL11.glRotatef(mRotate.y, 0.0f, 1.0f, 0.0f);
 
             // Center the nodes.
-            GL11.glTranslatef(-mNode.bounds.width/2, mNode.bounds.height/2, 0.0f);
+            GL11.glTranslatef(-mNode.getWidth()/2, mNode.getHeight()/2, 0.0f);
         }
 
         final float absX = Math.abs(mRotate.x);
         final float absY = Math.abs(mRotate.y);
         mDepth = Math.max(absX, absY) * 5 / 9.0f;
 
-        drawHierarchy(mNode);
+        drawHierarchy();
 
-        if (!mIsPicking && mIsOrtho && mShowOverdraw) {
+        if (mIsOrtho && mShowOverdraw) {
             for (int i = 2; i <= 5; i++) {
                 drawOverdraw(i);
             }
         }
 
         GL11.glFlush();
-
-        if (!mIsPicking) {
-            swapBuffers();
-        }
+        swapBuffers();
     }
 
     private void drawOverdraw(int level) {
@@ -320,7 +345,7 @@ public class InspectorCanvas extends GLCanvas
         GL11.glStencilFunc(level == 5 ? GL11.GL_LEQUAL : GL11.GL_EQUAL, level, 0xf);
         GL11.glStencilOp(GL11.GL_KEEP, GL11.GL_KEEP, GL11.GL_KEEP);
 
-        GL11.glTranslatef(mNode.bounds.x, -mNode.bounds.y, 0.0f);
+        GL11.glTranslatef(mNode.getX(), -mNode.getY(), 0.0f);
 
         if (level == 2) {
             loadColor(ColorType.OVERDRAW_BLUE);
@@ -335,9 +360,9 @@ public class InspectorCanvas extends GLCanvas
         GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, GL11.GL_FILL);
         GL11.glBegin(GL11.GL_QUADS);
             GL11.glVertex3f(0.0f, 0.0f, 0.0f);
-            GL11.glVertex3f(mNode.bounds.width, 0.0f, 0.0f);
-            GL11.glVertex3f(mNode.bounds.width, -mNode.bounds.height, 0.0f);
-            GL11.glVertex3f(0.0f, -mNode.bounds.height, 0.0f);
+            GL11.glVertex3f(mNode.getWidth(), 0.0f, 0.0f);
+            GL11.glVertex3f(mNode.getWidth(), -mNode.getHeight(), 0.0f);
+            GL11.glVertex3f(0.0f, -mNode.getHeight(), 0.0f);
         GL11.glEnd();
 
         GL11.glPopAttrib();
@@ -358,6 +383,36 @@ public class InspectorCanvas extends GLCanvas
         }
     }
 
+    /**
+     * Paints the hierarchy again after the node was shown or hidden and the tree laid out again.
+     * Only the nodes the change moved are read and written again, unless the node has other faces now.
+     */
+    public void refreshLayout(Node node) {
+        if (mNode != null) {
+            setCurrent();
+            final int index = mStore.indexOf(node);
+            if (index < 0 ||
+                !mRenderer.update(mStore, mStore.update(index), mPendingImages.keySet(), mAtlas)) {
+                mStore = new NodeStore(mNode);
+                prepareGeometry();
+            }
+        }
+
+        refresh();
+    }
+
+    /**
+     * Paints the hierarchy again after the background or the content of a node was shown or hidden.
+     */
+    public void refreshDisplay() {
+        if (mNode != null) {
+            setCurrent();
+            prepareGeometry();
+        }
+
+        refresh();
+    }
+
     @Override
     public void setCurrent() {
         super.setCurrent();
@@ -370,127 +425,265 @@ public class InspectorCanvas extends GLCanvas
 
     public void initWithNode(Node node) {
         mNode = node;
+        mStore = new NodeStore(node);
+        mIndex = new SpatialIndex(mStore);
 
         // Prepare the textures.
         prepareTextures(mNode);
 
-        // Prepare the display lists.
-        prepareDisplayLists(mNode);
+        // Prepare the drawables, and the geometry of the hierarchy.
+        prepareDrawables(mNode);
+        prepareGeometry();
 
         // Paint it.
         doPaint();
     }
 
-    // Prepare textures for the node hierarchy.
-    private void prepareTextures(Node node) {
-        if (node == null || node.bounds.width == 0 || node.bounds.height == 0) {
+    /**
+     * Replaces the hierarchy in place, keeping the camera and the toolbar options.
+     */
+    public void updateWithNode(Node node) {
+        setCurrent();
+
+        // Release the textures of the old hierarchy.
+        releaseResources(mNode);
+        mPendingImages.clear();
+        mPickNode = null;
+
+        initWithNode(node);
+    }
+
+    /**
+     * Swaps a subtree for one captured again, once it is spliced into the hierarchy.
+     * Only the new nodes, and the ancestors whose bounds may have changed, are prepared again.
+     */
+    public void replaceSubtree(Node old, Node fresh) {
+        setCurrent();
+
+        releaseResources(old);
+        forgetPendingImages(old);
+        mPickNode = null;
+        mStore = new NodeStore(mNode);
+        mIndex = new SpatialIndex(mStore);
+
+        prepareTextures(fresh);
+        prepareDrawables(fresh);
+
+        // The ancestors may have been resized to or from nothing.
+        for (Node ancestor = fresh.parent; ancestor != null; ancestor = ancestor.parent) {
+            prepareNodeDrawables(ancestor);
+        }
+
+        prepareGeometry();
+        refresh();
+    }
+
+    private void forgetPendingImages(Node node) {
+        if (mPendingImages.isEmpty()) {
             return;
         }
 
-        final Drawable background = node.getBackground();
-        if (background.type == ContentType.IMAGE) {
-            background.texureId = bindTexture(node, background.image);
+        Iterator<List<Node>> iterator = mPendingImages.values().iterator();
+        while (iterator.hasNext()) {
+            final List<Node> nodes = iterator.next();
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                if (isInSubtree(nodes.get(i), node)) {
+                    nodes.remove(i);
+                }
+            }
+
+            if (nodes.isEmpty()) {
+                iterator.remove();
+            }
         }
+    }
 
-        final Drawable content = node.getContent();
-        if (content.type == ContentType.IMAGE) {
-            content.texureId = bindTexture(node, content.image);
+    private static boolean isInSubtree(Node node, Node root) {
+        for (Node current = node; current != null; current = current.parent) {
+            if (current == root) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void releaseResources(Node node) {
+        if (node == null) {
+            return;
+        }
+
+        releaseDrawable(node.getBackground());
+        releaseDrawable(node.getContent());
+
+        for (Node child : node.children) {
+            releaseResources(child);
+        }
+    }
+
+    private void releaseDrawable(Drawable drawable) {
+        if (drawable == null) {
+            return;
+        }
+
+        drawable.isPrepared = false;
+
+        if (drawable.texureId != -1) {
+            mAtlas.release(drawable);
+        }
+    }
+
+    // Prepare textures for the node hierarchy.
+    private void prepareTextures(Node node) {
+        if (node == null || node.getWidth() == 0 || node.getHeight() == 0) {
+            return;
         }
 
+        prepareTexture(node, node.getBackground());
+        prepareTexture(node, node.getContent());
+
         for (Node child : node.children) {
             prepareTextures(child);
         }
     }
 
-    private int bindTexture(Node node, String imageData) {
-        int textureId = GL11.glGenTextures();
-        byte[] bitmap = Base64.decodeBase64(imageData);
-        try {
-            PNGDecoder decoder = new PNGDecoder(new ByteArrayInputStream(bitmap));
-            int width = decoder.getWidth();
-            int height = decoder.getHeight();
-            ByteBuffer buffer = ByteBuffer.allocateDirect(4 * width * height);
-            decoder.decode(buffer, width * 4, Format.RGBA);
-            buffer.flip();
-
-            GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
-            GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
-            GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-            GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_CLAMP);
-            GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_CLAMP);
-            GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA,
-                              width, height, 0,
-                              GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void prepareTexture(Node node, Drawable drawable) {
+        if (drawable.type != ContentType.IMAGE) {
+            return;
         }
 
-        return textureId;
+        final byte[] bitmap = drawable.getBitmap();
+        if (bitmap != null) {
+            mAtlas.add(drawable, bitmap);
+        } else if (drawable.imageKey != null) {
+            // Not fetched yet, drawn as a placeholder till then.
+            List<Node> nodes = mPendingImages.get(drawable.imageKey);
+            if (nodes == null) {
+                nodes = new ArrayList<Node>(1);
+                mPendingImages.put(drawable.imageKey, nodes);
+            }
+            nodes.add(node);
+        }
     }
 
-    // Prepare display lists for the node hierarchy.
-    private void prepareDisplayLists(Node node) {
-        if (node == null || node.bounds.width == 0 || node.bounds.height == 0) {
+    // Prepare the drawables of the node hierarchy.
+    private void prepareDrawables(Node node) {
+        if (node == null || node.getWidth() == 0 || node.getHeight() == 0) {
             return;
         }
 
+        prepareNodeDrawables(node);
+
+        for (Node child : node.children) {
+            prepareDrawables(child);
+        }
+    }
+
+    private void prepareNodeDrawables(Node node) {
+        final boolean hasSize = (node.getWidth() != 0 && node.getHeight() != 0);
+
         // Background.
         final Drawable background = node.getBackground();
-        if (background.type != ContentType.NONE) {
-            // Begin list.
-            background.displayListId = GL11.glGenLists(1);
-            GL11.glNewList(background.displayListId, GL11.GL_COMPILE);
-
-            if (background.type == ContentType.COLOR) {
-                drawColor(node, background.color);
-            } else if (background.type == ContentType.IMAGE && background.texureId != -1) {
-                drawImage(node, background.texureId, true);
-            }
+        background.isPrepared = (hasSize && background.type != ContentType.NONE);
+
+        // Content, only if there is an image, or one on its way.
+        final Drawable content = node.getContent();
+        content.isPrepared = (hasSize && content.type != ContentType.NONE &&
+                              (content.texureId != -1 || isPending(content)));
+    }
 
-            // End list.
-            GL11.glEndList();
+    // Builds the geometry of the hierarchy again, from the store and the drawables as they are.
+    private void prepareGeometry() {
+        mRenderer.build(mStore, mPendingImages.keySet(), mAtlas);
+    }
+
+    private boolean isPending(Drawable drawable) {
+        return (drawable.imageKey != null && drawable.texureId == -1 && mPendingImages.containsKey(drawable.imageKey));
+    }
+
+    /**
+     * Binds the images that have arrived since the hierarchy was drawn, in place of their placeholders.
+     */
+    public void refreshImages(Collection<String> keys) {
+        if (isDisposed() || mNode == null) {
+            return;
         }
 
-        // Content.
-        final Drawable content = node.getContent();
-        if (content.type != ContentType.NONE && content.texureId != -1) {
-            // Begin list.
-            content.displayListId = GL11.glGenLists(1);
-            GL11.glNewList(content.displayListId, GL11.GL_COMPILE);
+        setCurrent();
 
-            drawImage(node, content.texureId, false);
+        boolean changed = false;
+        for (String key : keys) {
+            final List<Node> nodes = mPendingImages.remove(key);
+            if (nodes == null) {
+                continue;
+            }
 
-            // End list.
-            GL11.glEndList();
+            for (Node node : nodes) {
+                changed |= refreshImage(node.getBackground(), key, true);
+                changed |= refreshImage(node.getContent(), key, false);
+            }
         }
 
-        for (Node child : node.children) {
-            prepareDisplayLists(child);
+        if (changed) {
+            prepareGeometry();
+            refresh();
         }
     }
 
-    private void drawImage(Node node, int textureId, boolean isBackground) {
-        GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, GL11.GL_FILL);
-        loadColor(ColorType.COLOR_WHITE);
+    private boolean refreshImage(Drawable drawable, String key, boolean isBackground) {
+        if (drawable.type != ContentType.IMAGE || !key.equals(drawable.imageKey) || drawable.texureId != -1) {
+            return false;
+        }
 
-        GL11.glEnable(GL11.GL_TEXTURE_2D);
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
-        GL11.glBegin(GL11.GL_QUADS);
-            GL11.glTexCoord2f(0.0f, 0.0f);
-            GL11.glVertex3f(0.0f, 0.0f, 0.0f);
-            GL11.glTexCoord2f(1.0f, 0.0f);
-            GL11.glVertex3f(node.bounds.width, 0.0f, 0.0f);
-            GL11.glTexCoord2f(1.0f, 1.0f);
-            GL11.glVertex3f(node.bounds.width, -node.bounds.height, 0.0f);
-            GL11.glTexCoord2f(0.0f, 1.0f);
-            GL11.glVertex3f(0.0f, -node.bounds.height, 0.0f);
-        GL11.glEnd();
-        GL11.glDisable(GL11.GL_TEXTURE_2D);
+        final byte[] bitmap = drawable.getBitmap();
+        if (bitmap != null) {
+            mAtlas.add(drawable, bitmap);
+        }
+
+        // A content that never arrived isn't drawn, just as one without an image.
+        drawable.isPrepared = (isBackground || drawable.texureId != -1);
+        return true;
+    }
+
+    /**
+     * Returns the keys of the images yet to arrive for the nodes that are shown,
+     * the ones covering the most area first.
+     */
+    public List<String> getPendingImagesInView() {
+        List<Node> nodes = new ArrayList<Node>();
+        if (mNode != null && !mPendingImages.isEmpty()) {
+            collectShownNodes(nodes);
+        }
+
+        Collections.sort(nodes, new Comparator<Node>() {
+            @Override
+            public int compare(Node first, Node second) {
+                final long difference = (long) second.getWidth() * second.getHeight() -
+                                        (long) first.getWidth() * first.getHeight();
+                return (difference < 0 ? -1 : (difference > 0 ? 1 : 0));
+            }
+        });
+
+        List<String> keys = new ArrayList<String>();
+        for (Node node : nodes) {
+            if (isPending(node.getBackground())) {
+                keys.add(node.getBackground().imageKey);
+            }
+
+            if (isPending(node.getContent())) {
+                keys.add(node.getContent().imageKey);
+            }
+        }
+
+        return keys;
     }
 
-    private void drawColor(Node node, Color color) {
-        GL11.glColor4f(color.red, color.green, color.blue, color.alpha);
-        drawFrontFace(node, 0.0f, GL11.GL_FILL);
+    private void collectShownNodes(List<Node> nodes) {
+        for (int i = 0; i < mStore.size(); i++) {
+            if (mStore.isDrawn(i)) {
+                nodes.add(mStore.getNode(i));
+            }
+        }
     }
 
     private void drawDepth(Node node, float depth, int mode) {
@@ -502,16 +695,16 @@ public class InspectorCanvas extends GLCanvas
             GL11.glVertex3f(0.0f, 0.0f, depth);
 
             // Top-right.
-            GL11.glVertex3f(node.bounds.width, 0.0f, 0.0f);
-            GL11.glVertex3f(node.bounds.width, 0.0f, depth);
+            GL11.glVertex3f(node.getWidth(), 0.0f, 0.0f);
+            GL11.glVertex3f(node.getWidth(), 0.0f, depth);
 
             // Bottom-right.
-            GL11.glVertex3f(node.bounds.width, -node.bounds.height, 0.0f);
-            GL11.glVertex3f(node.bounds.width, -node.bounds.height, depth);
+            GL11.glVertex3f(node.getWidth(), -node.getHeight(), 0.0f);
+            GL11.glVertex3f(node.getWidth(), -node.getHeight(), depth);
 
             // Bottom-left.
-            GL11.glVertex3f(0.0f, -node.bounds.height, 0.0f);
-            GL11.glVertex3f(0.0f, -node.bounds.height, depth);
+            GL11.glVertex3f(0.0f, -node.getHeight(), 0.0f);
+            GL11.glVertex3f(0.0f, -node.getHeight(), depth);
 
             // Complete the quad strip.
             if (mode == GL11.GL_FILL) {
@@ -527,242 +720,113 @@ public class InspectorCanvas extends GLCanvas
         GL11.glPolygonMode(GL11.GL_FRONT_AND_BACK, mode);
         GL11.glBegin(GL11.GL_QUADS);
             GL11.glVertex3f(0.0f, 0.0f, depth);
-            GL11.glVertex3f(node.bounds.width, 0.0f, depth);
-            GL11.glVertex3f(node.bounds.width, -node.bounds.height, depth);
-            GL11.glVertex3f(0.0f, -node.bounds.height, depth);
+            GL11.glVertex3f(node.getWidth(), 0.0f, depth);
+            GL11.glVertex3f(node.getWidth(), -node.getHeight(), depth);
+            GL11.glVertex3f(0.0f, -node.getHeight(), depth);
         GL11.glEnd();
     }
 
-    private void drawDepthCube(Node node, float depth) {
-        if (node.isSelected) {
-            loadColor(ColorType.BOUNDS_SELECTION);
-            drawDepth(node, -mDepth, GL11.GL_FILL);
-            loadColor(ColorType.BOUNDS_NORMAL);
-            drawDepth(node, -depth, GL11.GL_LINE);
+    // Draws the hierarchy as laid out, then the selection over it, as it changes without the layout.
+    private void drawHierarchy() {
+        if (mStore == null) {
             return;
         }
 
-        final Drawable background = node.getBackground();
-        final Drawable content = node.getContent();
-        final boolean hasBackground = node.isBackgroundShown && (background.displayListId != -1);
-        final boolean hasContent = node.isContentShown && (content.displayListId != -1);
-
-        if (hasBackground && hasContent) {
-            // Draw both.
-            float halfDepth = mDepth / 2.0f;
-            GL11.glTranslatef(0.0f, 0.0f, -halfDepth);
-
-            loadColor(ColorType.LAYER_BACKGROUND);
-            drawDepth(node, -halfDepth, GL11.GL_FILL);
-
-            GL11.glTranslatef(0.0f, 0.0f, halfDepth);
-
-            loadColor(ColorType.LAYER_CONTENT);
-            drawDepth(node, -halfDepth, GL11.GL_FILL);
-        } else if (hasContent) {
-            loadColor(ColorType.LAYER_CONTENT);
-            drawDepth(node, -mDepth, GL11.GL_FILL);
-        } else if (hasBackground) {
-            loadColor(ColorType.LAYER_BACKGROUND);
-            drawDepth(node, -mDepth, GL11.GL_FILL);
-        } else {
-            loadColor(ColorType.LAYER_NONE);
-            drawDepth(node, -mDepth, GL11.GL_FILL);
-        }
+        mRenderer.draw(mDepth, mIsOrtho, mShowDepth, mShowBounds, mSplitContent);
 
-        // Draw a boundary.
-        loadColor(ColorType.BOUNDS_NORMAL);
-        drawDepth(node, -depth, GL11.GL_LINE);
-    }
-
-    // Given a node, draw it on the screen.
-    private void drawHierarchy(Node node) {
-        if (node == null ||
-            node.bounds.width == 0 ||
-            node.bounds.height == 0 ||
-            !node.isShowing() ||
-            !node.isVisible()) {
-            return;
-        }
-
-        // Give a 3d depth.
-        GL11.glPushMatrix();
-
-        final float depth = node.depth * mDepth;
-
-        // Node's translation.
-        GL11.glTranslatef(node.bounds.x, -node.bounds.y, depth);
-
-        final Drawable background = node.getBackground();
-        final Drawable content = node.getContent();
-        final boolean hasBackground = node.isBackgroundShown && (background.displayListId != -1);
-        final boolean hasContent = node.isContentShown && (content.displayListId != -1);
-
-        if (mIsPicking) {
-            GL11.glColor4f(node.pickColor[0],
-                           node.pickColor[1],
-                           node.pickColor[2],
-                           node.pickColor[3]);
-
-            drawFrontFace(node, 0.0f, GL11.GL_FILL);
-
-            // Draw the depth, only if we show in actual mode.
-            // If not, if we are splitting content, draw a layer for it.
-            if (mShowDepth) {
-                drawDepth(node, -mDepth, GL11.GL_FILL);
-            } else if (mSplitContent && hasBackground && hasContent) {
-                drawFrontFace(node, -mDepth/2.0f, GL11.GL_FILL);
+        int i = 0;
+        while (i < mStore.size()) {
+            if (!mStore.isDrawn(i)) {
+                i = mStore.getSubtreeEnd(i);
+                continue;
             }
-        } else {
-            if (!mIsOrtho && mShowDepth) {
-                GL11.glPushAttrib(GL11.GL_STENCIL_BUFFER_BIT);
-                GL11.glStencilOp(GL11.GL_KEEP, GL11.GL_KEEP, GL11.GL_KEEP);
-                drawDepthCube(node, depth);
-                GL11.glPopAttrib();
-            }
-
-            if (hasBackground && hasContent) {
-                // Both background and content are available.
-                // Draw background at a depth if needed.
-                if (mSplitContent)
-                    GL11.glTranslatef(0.0f, 0.0f, -mDepth/2.0f);
-
-                GL11.glCallList(background.displayListId);
 
-                if (mSplitContent)
-                    GL11.glTranslatef(0.0f, 0.0f, mDepth/2.0f);
-
-                GL11.glCallList(content.displayListId);
-            } else if (hasBackground) {
-                GL11.glCallList(background.displayListId);
-            } else if (hasContent) {
-                GL11.glCallList(content.displayListId);
+            if (mStore.getNode(i).isSelected()) {
+                drawSelection(i);
             }
+            i++;
+        }
+    }
 
-            // Stencil shouldn't know about bounds.
-            GL11.glPushAttrib(GL11.GL_STENCIL_BUFFER_BIT | GL11.GL_LINE_BIT);
-            GL11.glStencilOp(GL11.GL_KEEP, GL11.GL_KEEP, GL11.GL_KEEP);
-
-            // Show bounds.
-            if (!mIsOrtho && mShowDepth) {
-                loadColor(ColorType.BOUNDS_NORMAL);
-            } else {
-                if (node.isSelected) {
-                    GL11.glLineWidth(2.0f);
-                    loadColor(ColorType.BOUNDS_SELECTION);
-                } else {
-                    loadColor(ColorType.BOUNDS_NORMAL);
-                }
-            }
+    // Draws a selected node over its faces and sides, with the origin at its top-left.
+    private void drawSelection(int index) {
+        final Node node = mStore.getNode(index);
 
-            if (node.isSelected || !mIsOrtho || mShowBounds) {
-                drawFrontFace(node, 0.0f, GL11.GL_LINE);
-            }
-
-            // Show a bounding box for split content in perspective mode.
-            if (!mIsOrtho && !mShowDepth && mSplitContent && hasBackground && hasContent) {
-                drawFrontFace(node, -mDepth/2.0f, GL11.GL_LINE);
-            }
+        GL11.glPushMatrix();
+        GL11.glScalef(1.0f, 1.0f, mDepth);
+        GL11.glTranslatef(mStore.getX(0) + mStore.getDeviceLeft(index),
+                          -(mStore.getY(0) + mStore.getDeviceTop(index)),
+                          mStore.getLayer(index));
 
-            GL11.glPopAttrib();
-        }
+        // Stencil shouldn't know about the selection.
+        GL11.glPushAttrib(GL11.GL_STENCIL_BUFFER_BIT | GL11.GL_LINE_BIT);
+        GL11.glStencilOp(GL11.GL_KEEP, GL11.GL_KEEP, GL11.GL_KEEP);
+        loadColor(ColorType.BOUNDS_SELECTION);
 
-        for (Node child : node.children) {
-            drawHierarchy(child);
+        if (!mIsOrtho && mShowDepth) {
+            drawDepth(node, -1.0f, GL11.GL_FILL);
+        } else {
+            GL11.glLineWidth(2.0f);
+            drawFrontFace(node, 0.0f, GL11.GL_LINE);
         }
 
+        GL11.glPopAttrib();
         GL11.glPopMatrix();
     }
 
     private void loadColor(ColorType type) {
-        switch (type) {
-            case COLOR_WHITE:
-                GL11.glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
-                break;
-
-            case COLOR_BLACK:
-                GL11.glColor4f(0.0f, 0.0f, 0.0f, 1.0f);
-                break;
-
-            case BOUNDS_SELECTION:
-                GL11.glColor4f(1.0f, 0.45f, 0.45f, 1.0f);
-                break;
-
-            case BOUNDS_NORMAL:
-                GL11.glColor4f(0.33f, 0.33f, 0.33f, 1.0f);
-                break;
-
-            case LAYER_BACKGROUND:
-                GL11.glColor4f(0.50f, 0.658f, 0.733f, 0.5f);
-                break;
-
-            case LAYER_CONTENT:
-                GL11.glColor4f(0.976f, 0.823f, 0.592f, 0.5f);
-                break;
-
-            case LAYER_NONE:
-                GL11.glColor4f(0.85f, 0.85f, 0.85f, 0.5f);
-                break;
-
-            case OVERDRAW_BLUE:
-                GL11.glColor4f(0.7f, 0.7f, 1.0f, 0.7f);
-                break;
-
-            case OVERDRAW_GREEN:
-                GL11.glColor4f(0.7f, 1.0f, 0.7f, 0.7f);
-                break;
-
-            case OVERDRAW_RED_LOW:
-                GL11.glColor4f(1.0f, 0.7f, 0.7f, 0.7f);
-                break;
-
-            case OVERDRAW_RED_HIGH:
-                GL11.glColor4f(1.0f, 0.3f, 0.3f, 0.7f);
-                break;
-
-        }
+        GL11.glColor4f(type.red, type.green, type.blue, type.alpha);
     }
 
+    /**
+     * Finds the node drawn at the point, by casting the ray under it with the transformations
+     * the hierarchy is drawn with. Nothing is drawn.
+     */
     private Node pickNodeAt(Point point) {
-        if (point == null)
+        if (point == null || mStore == null)
             return null;
 
-        // Draw the hierarchy in picking mode.
-        mIsPicking = true;
-        doPaint();
-        mIsPicking = false;
+        final Rectangle bounds = getBounds();
+        RayPicker picker = new RayPicker(getProjection(bounds), getModelView(bounds),
+                                         bounds.width, bounds.height, point.getX(), point.getY());
+        final int picked = picker.pick(mStore, mIndex, mDepth, mShowDepth, mSplitContent);
+        return (picked >= 0 ? mStore.getNode(picked) : null);
+    }
 
-        // Find the pixel at the mouse down location.
-        // This frame buffer is not transferred to the display.
-        IntBuffer viewport = BufferUtils.createIntBuffer(16);
-        GL11.glGetInteger(GL11.GL_VIEWPORT, viewport);
-        FloatBuffer result = BufferUtils.createFloatBuffer(4);
-        GL11.glReadPixels(point.getX(), viewport.get(3) - point.getY(), 1, 1, GL11.GL_RGBA, GL11.GL_FLOAT, result);
+    // The projection doResize() sets up.
+    private double[] getProjection(Rectangle bounds) {
+        if (mIsOrtho) {
+            return RayPicker.ortho(0, bounds.width, bounds.height, 0, mZNear, mZFar);
+        }
 
-        // Find the node with this pixel color.
-        return findNodeWithPickColor(mNode, result.get(0), result.get(1), result.get(2));
+        return RayPicker.perspective(45.0f, (float) bounds.width / (float) bounds.height, mZNear, mZFar);
     }
 
-    private Node findNodeWithPickColor(Node node, float red, float green, float blue) {
-        if (isApprox(red, node.pickColor[0]) &&
-            isApprox(green, node.pickColor[1]) &&
-            isApprox(blue, node.pickColor[2])) {
-            return node;
-        }
+    // The model view doPaint() sets up for the hierarchy, call for call.
+    private double[] getModelView(Rectangle bounds) {
+        final double[] matrix = RayPicker.identity();
 
-        for (Node child : node.children) {
-            Node result = findNodeWithPickColor(child, red, green, blue);
-            if (result != null) {
-                return result;
-            }
-        }
+        // Looking at the origin from the camera.
+        RayPicker.translate(matrix, 0.0f, 0.0f, -mCamera.z);
 
-        return null;
-    }
+        if (mIsOrtho) {
+            RayPicker.translate(matrix, mOrthoTranslate.x, mOrthoTranslate.y, 0.0f);
+            RayPicker.rotate(matrix, 180.0f, 1.0f, 0.0f, 0.0f);
+
+            final float scaledWidth = mNode.getWidth() * mOrthoScale;
+            final float scaledHeight = mNode.getHeight() * mOrthoScale;
+            RayPicker.translate(matrix, (bounds.width - scaledWidth)/2, 0.0f, 0.0f);
+            RayPicker.translate(matrix, scaledWidth/2, -scaledHeight/2, 0.0f);
+            RayPicker.scale(matrix, mOrthoScale, mOrthoScale, 0.0f);
+            RayPicker.translate(matrix, -scaledWidth/2, scaledHeight/2, 0.0f);
+        } else {
+            RayPicker.translate(matrix, mTranslate.x, mTranslate.y, 0.0f);
+            RayPicker.rotate(matrix, mRotate.x, 1.0f, 0.0f, 0.0f);
+            RayPicker.rotate(matrix, mRotate.y, 0.0f, 1.0f, 0.0f);
+            RayPicker.translate(matrix, -mNode.getWidth()/2, mNode.getHeight()/2, 0.0f);
+        }
 
-    private boolean isApprox(float first, float original) {
-        // The float values could be off by 10%.
-        return (first > (original - 0.01f)) && (first < (original + 0.01f));
+        return matrix;
     }
 
     private void selectNode(Node node) {
@@ -798,8 +862,8 @@ public class InspectorCanvas extends GLCanvas
             mOrthoTranslate.y -= deltaY;
         } else {
             if (mRotateNodes) {
-                mRotate.x -= (deltaY * 2 * MAX_ROTATION / mNode.bounds.height);
-                mRotate.y -= (deltaX * 2 * MAX_ROTATION / mNode.bounds.width);
+                mRotate.x -= (deltaY * 2 * MAX_ROTATION / mNode.getHeight());
+                mRotate.y -= (deltaX * 2 * MAX_ROTATION / mNode.getWidth());
 
                 if (mRotate.x > MAX_ROTATION) {
                     mRotate.x = MAX_ROTATION;
@@ -843,8 +907,9 @@ public class InspectorCanvas extends GLCanvas
     public void mouseScrolled(MouseEvent e) {
         if (mIsOrtho) {
             Rectangle bounds = getBounds();
-            final float scaleX = (float) bounds.width / (float) mNode.maxBounds.width;
-            final float scaleY = (float) bounds.height / (float) mNode.maxBounds.height;
+            Rectangle maxBounds = mNode.getMaxBounds();
+            final float scaleX = (float) bounds.width / (float) maxBounds.width;
+            final float scaleY = (float) bounds.height / (float) maxBounds.height;
             final float minScale = Math.min(scaleX, scaleY) / 2.0f;
             mOrthoScale += (e.count * 0.01f);
             if (mOrthoScale < minScale) {
@@ -888,8 +953,4 @@ public class InspectorCanvas extends GLCanvas
     public void addNodeSelectionChangedListener(INodeSelectionChangedListener listener) {
         mNodeSelectionChangedListener = listener;
     }
-
-    public static float[] getClearColor() {
-        return CLEAR_COLOR;
-    }
 }
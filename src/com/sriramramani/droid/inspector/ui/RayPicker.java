@@ -0,0 +1,360 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.ui;
+
+import org.eclipse.swt.graphics.Rectangle;
+
+import com.sriramramani.droid.inspector.model.Node;
+import com.sriramramani.droid.inspector.model.NodeStore;
+import com.sriramramani.droid.inspector.model.SpatialIndex;
+
+/**
+ * Finds the node drawn at a point of the canvas without drawing, by casting the ray under the point
+ * through the faces and depths of the nodes the spatial index puts along it. The nearest hit wins,
+ * and of hits as near the one drawn last, as the depth test has it.
+ *
+ * The matrices are column-major, as GL keeps them, and are built with the same calls the canvas
+ * makes, in the same order.
+ */
+final class RayPicker {
+    // Length of the pieces the ray is looked up in the index by, and the most pieces.
+    private static final double PIECE_LENGTH = 32.0;
+    private static final int MAX_PIECES = 1024;
+
+    // Slack when matching the layers of a node to a piece of the ray.
+    private static final double EPSILON = 1e-3;
+
+    // Projection and model view of the scene, before the translations of the nodes.
+    private final double[] mMatrix;
+
+    // The point, in normalized device coordinates.
+    private final double mX;
+    private final double mY;
+
+    // The pick in progress.
+    private NodeStore mStore;
+    private float mDepth;
+    private boolean mShowDepth;
+    private boolean mSplitContent;
+    private boolean mLayersEdgeOn;
+    private int mPicked;
+    private double mPickedDepth;
+
+    /**
+     * @param x, y The pixel, from the top-left of a viewport of the given size.
+     */
+    RayPicker(double[] projection, double[] modelView, int width, int height, int x, int y) {
+        mMatrix = multiply(projection, modelView);
+
+        // The center of the pixel, as the rasterizer samples it.
+        mX = (x + 0.5) * 2.0 / width - 1.0;
+        mY = (height - y - 0.5) * 2.0 / height - 1.0;
+    }
+
+    /**
+     * Returns the index of the node drawn at the point, or -1 if none is.
+     *
+     * @param depth The depth between layers.
+     * @param showDepth Whether the sides of the nodes are drawn down to the layer below.
+     * @param splitContent Whether the background is drawn half a layer below the content.
+     */
+    int pick(NodeStore store, SpatialIndex index, float depth, boolean showDepth, boolean splitContent) {
+        mStore = store;
+        mDepth = depth;
+        mShowDepth = showDepth;
+        mSplitContent = splitContent;
+        mPicked = -1;
+        mPickedDepth = Double.POSITIVE_INFINITY;
+
+        final double[] segment = getVisibleSegment(store.getMaxLayer() * depth);
+        if (segment == null && !mLayersEdgeOn) {
+            // No layer is in view under the point.
+            return -1;
+        }
+
+        if (segment == null || index == null) {
+            for (int i = 0; i < store.size(); i++) {
+                tryNode(i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+            }
+            return mPicked;
+        }
+
+        // Across the layers, the ray moves over the device. Short pieces of it cover few nodes each.
+        final double length = Math.hypot(segment[4] - segment[2], segment[5] - segment[3]);
+        final int pieces = (int) Math.max(1, Math.min(MAX_PIECES, Math.ceil(length / PIECE_LENGTH)));
+        final int rootX = store.getX(0);
+        final int rootY = store.getY(0);
+
+        for (int piece = 0; piece < pieces; piece++) {
+            final double from = (double) piece / pieces;
+            final double to = (double) (piece + 1) / pieces;
+            final double x1 = segment[2] + (segment[4] - segment[2]) * from;
+            final double y1 = segment[3] + (segment[5] - segment[3]) * from;
+            final double x2 = segment[2] + (segment[4] - segment[2]) * to;
+            final double y2 = segment[3] + (segment[5] - segment[3]) * to;
+            final double z1 = segment[0] + (segment[1] - segment[0]) * from;
+            final double z2 = segment[0] + (segment[1] - segment[0]) * to;
+
+            // Back to device positions, where y grows down.
+            final int left = (int) Math.floor(Math.min(x1, x2)) - rootX - 1;
+            final int right = (int) Math.ceil(Math.max(x1, x2)) - rootX + 1;
+            final int top = (int) Math.floor(-Math.max(y1, y2)) - rootY - 1;
+            final int bottom = (int) Math.ceil(-Math.min(y1, y2)) - rootY + 1;
+
+            for (int node : index.findIn(new Rectangle(left, top, right - left, bottom - top))) {
+                tryNode(node, Math.min(z1, z2), Math.max(z1, z2));
+            }
+        }
+
+        return mPicked;
+    }
+
+    /**
+     * Casts the ray through the node, if it's drawn and reaches the given layers, and keeps it if it's
+     * hit nearer than the node kept, or as near and drawn later.
+     */
+    private void tryNode(int node, double minZ, double maxZ) {
+        final NodeStore store = mStore;
+        if (!store.isDrawn(node)) {
+            return;
+        }
+
+        final double z = store.getLayer(node) * mDepth;
+        if (z - mDepth > maxZ + EPSILON || z < minZ - EPSILON) {
+            return;
+        }
+
+        final double left = store.getX(0) + store.getDeviceLeft(node);
+        final double right = left + store.getWidth(node);
+        final double top = -(store.getY(0) + store.getDeviceTop(node));
+        final double bottom = top - store.getHeight(node);
+
+        final double minX = Math.min(left, right);
+        final double maxX = Math.max(left, right);
+        final double minY = Math.min(top, bottom);
+        final double maxY = Math.max(top, bottom);
+
+        // The front face.
+        double nearest = hit(2, z, minX, maxX, minY, maxY);
+
+        if (mShowDepth) {
+            // The sides, down to the layer below.
+            nearest = Math.min(nearest, hit(0, left, minY, maxY, z - mDepth, z));
+            nearest = Math.min(nearest, hit(0, right, minY, maxY, z - mDepth, z));
+            nearest = Math.min(nearest, hit(1, top, minX, maxX, z - mDepth, z));
+            nearest = Math.min(nearest, hit(1, bottom, minX, maxX, z - mDepth, z));
+        } else if (mSplitContent && hasBackgroundAndContent(store.getNode(node))) {
+            nearest = Math.min(nearest, hit(2, z - mDepth / 2.0, minX, maxX, minY, maxY));
+        }
+
+        if (nearest == Double.POSITIVE_INFINITY) {
+            return;
+        }
+
+        if (nearest < mPickedDepth || (nearest == mPickedDepth && node > mPicked)) {
+            mPicked = node;
+            mPickedDepth = nearest;
+        }
+    }
+
+    private static boolean hasBackgroundAndContent(Node node) {
+        return (node.isBackgroundShown() && node.hasBackground() &&
+                node.isContentShown() && node.hasContent());
+    }
+
+    /**
+     * Returns the part of the ray in view between the layers at 0 and maxZ, as the z, x and y of its
+     * ends: { z1, z2, x1, y1, x2, y2 }. Returns null if no part is in view, or if the layers are seen
+     * edge on, which sets mLayersEdgeOn, and then any node may be hit.
+     */
+    private double[] getVisibleSegment(double maxZ) {
+        // Where the ray meets the layers is affine in their z, and so are the clip coordinates there.
+        final double[] at0 = solve(2, 0);
+        final double[] at1 = solve(2, 1);
+        mLayersEdgeOn = (at0 == null || at1 == null);
+        if (mLayersEdgeOn) {
+            return null;
+        }
+
+        // In front of the eye, and between the near and far planes: w > 0, w + z >= 0, w - z >= 0.
+        final double[] range = { 0, maxZ };
+        if (!clamp(range, at0[3], at1[3] - at0[3], true) ||
+            !clamp(range, at0[3] + at0[2], (at1[3] + at1[2]) - (at0[3] + at0[2]), false) ||
+            !clamp(range, at0[3] - at0[2], (at1[3] - at1[2]) - (at0[3] - at0[2]), false)) {
+            return null;
+        }
+
+        return new double[] {
+            range[0], range[1],
+            at0[0] + (at1[0] - at0[0]) * range[0], at0[1] + (at1[1] - at0[1]) * range[0],
+            at0[0] + (at1[0] - at0[0]) * range[1], at0[1] + (at1[1] - at0[1]) * range[1]
+        };
+    }
+
+    // Narrows the range of z to where offset + slope * z is positive, or not negative. Returns whether any is left.
+    private static boolean clamp(double[] range, double offset, double slope, boolean isStrict) {
+        if (slope == 0) {
+            return (isStrict ? offset > 0 : offset >= 0);
+        }
+
+        final double bound = -offset / slope;
+        if (slope > 0) {
+            range[0] = Math.max(range[0], bound);
+        } else {
+            range[1] = Math.min(range[1], bound);
+        }
+
+        return (range[0] <= range[1]);
+    }
+
+    /**
+     * Returns the depth at which the ray hits the rectangle on the plane where the given axis is at
+     * the given value, spanning [min1, max1) and [min2, max2) on the other two axes in order,
+     * or infinity if it misses.
+     */
+    private double hit(int axis, double value, double min1, double max1, double min2, double max2) {
+        final double[] point = intersect(axis, value);
+        if (point == null || point[0] < min1 || point[0] >= max1 || point[1] < min2 || point[1] >= max2) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return point[2];
+    }
+
+    /**
+     * Returns where the ray meets the plane where the given axis is at the given value, as the other
+     * two coordinates in order and the depth there, or null if it's outside the view or the plane is
+     * seen edge on.
+     */
+    private double[] intersect(int axis, double value) {
+        final double[] point = solve(axis, value);
+
+        // Clipped by the near and far planes, and by being behind the eye.
+        if (point == null || point[3] <= 0 || point[2] < -point[3] || point[2] > point[3]) {
+            return null;
+        }
+
+        return new double[] { point[0], point[1], point[2] / point[3] };
+    }
+
+    /**
+     * Returns where the ray meets the plane where the given axis is at the given value, as the other
+     * two coordinates in order and the z and w clip coordinates there, or null if the plane is seen
+     * edge on.
+     */
+    private double[] solve(int axis, double value) {
+        final int first = (axis == 0 ? 1 : 0);
+        final int second = (axis == 2 ? 1 : 2);
+
+        // The clip coordinates of a point of the plane are origin + u * along + v * across.
+        final double[] m = mMatrix;
+        final double[] origin = new double[4];
+        for (int row = 0; row < 4; row++) {
+            origin[row] = value * m[axis * 4 + row] + m[12 + row];
+        }
+
+        // Solve x / w = mX and y / w = mY for u and v.
+        final double a = m[first * 4] - mX * m[first * 4 + 3];
+        final double b = m[second * 4] - mX * m[second * 4 + 3];
+        final double c = m[first * 4 + 1] - mY * m[first * 4 + 3];
+        final double d = m[second * 4 + 1] - mY * m[second * 4 + 3];
+        final double e = -(origin[0] - mX * origin[3]);
+        final double f = -(origin[1] - mY * origin[3]);
+
+        final double determinant = a * d - b * c;
+        if (Math.abs(determinant) <= 1e-12 * (Math.abs(a * d) + Math.abs(b * c))) {
+            return null;
+        }
+
+        final double u = (e * d - b * f) / determinant;
+        final double v = (a * f - e * c) / determinant;
+        return new double[] {
+            u, v,
+            origin[2] + u * m[first * 4 + 2] + v * m[second * 4 + 2],
+            origin[3] + u * m[first * 4 + 3] + v * m[second * 4 + 3]
+        };
+    }
+
+    static double[] identity() {
+        final double[] m = new double[16];
+        m[0] = m[5] = m[10] = m[15] = 1.0;
+        return m;
+    }
+
+    // As glOrtho().
+    static double[] ortho(double left, double right, double bottom, double top, double near, double far) {
+        final double[] m = identity();
+        m[0] = 2.0 / (right - left);
+        m[5] = 2.0 / (top - bottom);
+        m[10] = -2.0 / (far - near);
+        m[12] = -(right + left) / (right - left);
+        m[13] = -(top + bottom) / (top - bottom);
+        m[14] = -(far + near) / (far - near);
+        return m;
+    }
+
+    // As gluPerspective().
+    static double[] perspective(double fovy, double aspect, double near, double far) {
+        final double f = 1.0 / Math.tan(Math.toRadians(fovy) / 2.0);
+        final double[] m = new double[16];
+        m[0] = f / aspect;
+        m[5] = f;
+        m[10] = (far + near) / (near - far);
+        m[11] = -1.0;
+        m[14] = 2.0 * far * near / (near - far);
+        return m;
+    }
+
+    // As glTranslatef(), on the matrix.
+    static void translate(double[] m, double x, double y, double z) {
+        for (int row = 0; row < 4; row++) {
+            m[12 + row] += m[row] * x + m[4 + row] * y + m[8 + row] * z;
+        }
+    }
+
+    // As glScalef(), on the matrix.
+    static void scale(double[] m, double x, double y, double z) {
+        for (int row = 0; row < 4; row++) {
+            m[row] *= x;
+            m[4 + row] *= y;
+            m[8 + row] *= z;
+        }
+    }
+
+    // As glRotatef() about a unit axis, on the matrix.
+    static void rotate(double[] m, double angle, double x, double y, double z) {
+        final double radians = Math.toRadians(angle);
+        final double c = Math.cos(radians);
+        final double s = Math.sin(radians);
+        final double t = 1.0 - c;
+
+        final double[] r = identity();
+        r[0] = x * x * t + c;
+        r[1] = y * x * t + z * s;
+        r[2] = x * z * t - y * s;
+        r[4] = x * y * t - z * s;
+        r[5] = y * y * t + c;
+        r[6] = y * z * t + x * s;
+        r[8] = x * z * t + y * s;
+        r[9] = y * z * t - x * s;
+        r[10] = z * z * t + c;
+
+        System.arraycopy(multiply(m, r), 0, m, 0, 16);
+    }
+
+    static double[] multiply(double[] a, double[] b) {
+        final double[] m = new double[16];
+        for (int col = 0; col < 4; col++) {
+            for (int row = 0; row < 4; row++) {
+                double sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += a[k * 4 + row] * b[col * 4 + k];
+                }
+                m[col * 4 + row] = sum;
+            }
+        }
+        return m;
+    }
+}
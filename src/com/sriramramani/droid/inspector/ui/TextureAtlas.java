@@ -0,0 +1,193 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package com.sriramramani.droid.inspector.ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+
+import com.sriramramani.droid.inspector.DroidInspectorPlugin;
+import com.sriramramani.droid.inspector.model.AtlasLayout;
+import com.sriramramani.droid.inspector.model.DecodedImage;
+import com.sriramramani.droid.inspector.model.ImageStore;
+import com.sriramramani.droid.inspector.model.Node.Drawable;
+
+/**
+ * The textures of the images of the drawables: a few pages shared by the images that fit in one,
+ * and a texture of its own for any other. An image is uploaded once for all the drawables showing it,
+ * and its texture is deleted after the last of them lets it go, or with its page after the last image
+ * on the page does.
+ *
+ * The context must be current for all of it.
+ */
+final class TextureAtlas {
+    // An uploaded image, and the drawables showing it.
+    private static final class Entry {
+        final String key;
+        final int texture;
+
+        // The page, or -1 if it has a texture of its own.
+        final int page;
+
+        final float left;
+        final float top;
+        final float right;
+        final float bottom;
+
+        int references = 0;
+
+        Entry(String key, int texture, int page, float left, float top, float right, float bottom) {
+            this.key = key;
+            this.texture = texture;
+            this.page = page;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+    }
+
+    private final AtlasLayout mLayout;
+
+    // The texture and the number of images of each page, or 0 if it has none yet.
+    private int[] mPageTextures = new int[0];
+    private int[] mPageImages = new int[0];
+
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final Map<Drawable, Entry> mDrawables = new IdentityHashMap<Drawable, Entry>();
+
+    TextureAtlas() {
+        final int maxSize = GL11.glGetInteger(GL11.GL_MAX_TEXTURE_SIZE);
+        mLayout = new AtlasLayout(Math.min(AtlasLayout.PAGE_SIZE, maxSize), AtlasLayout.MAX_PACKED_SIZE);
+    }
+
+    /**
+     * Puts the image of the drawable in a texture, or finds the one it is already in, and points
+     * the drawable at where it is. An image that can't be decoded gets a blank texture of its own.
+     */
+    void add(Drawable drawable, byte[] bitmap) {
+        final String key = (drawable.imageKey != null ? drawable.imageKey : ImageStore.keyOf(bitmap));
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            try {
+                entry = upload(key, DecodedImage.decode(bitmap));
+            } catch (IOException e) {
+                DroidInspectorPlugin.getDefault().getLog().log(
+                        new Status(IStatus.ERROR, DroidInspectorPlugin.PLUGIN_ID, "Unable to decode image " + key, e));
+                entry = new Entry(key, createTexture(1, 1, createWhitePixel()), -1, 0.0f, 0.0f, 1.0f, 1.0f);
+            }
+            mEntries.put(key, entry);
+        }
+
+        entry.references++;
+        mDrawables.put(drawable, entry);
+
+        drawable.texureId = entry.texture;
+        drawable.textureLeft = entry.left;
+        drawable.textureTop = entry.top;
+        drawable.textureRight = entry.right;
+        drawable.textureBottom = entry.bottom;
+    }
+
+    private Entry upload(String key, DecodedImage image) {
+        final int[] place = mLayout.place(image.width, image.height);
+        if (place == null) {
+            final int texture = createTexture(image.width, image.height, image.pixels);
+            return new Entry(key, texture, -1, 0.0f, 0.0f, 1.0f, 1.0f);
+        }
+
+        final int page = place[0];
+        if (page == mPageTextures.length) {
+            mPageTextures = Arrays.copyOf(mPageTextures, page + 1);
+            mPageImages = Arrays.copyOf(mPageImages, page + 1);
+        }
+
+        if (mPageTextures[page] == 0) {
+            mPageTextures[page] = createPage(mLayout.getPageSize());
+        }
+        mPageImages[page]++;
+
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, mPageTextures[page]);
+        GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, place[1], place[2], image.width, image.height,
+                             GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, image.pixels);
+
+        final float size = mLayout.getPageSize();
+        return new Entry(key, mPageTextures[page], page,
+                         place[1] / size, place[2] / size,
+                         (place[1] + image.width) / size, (place[2] + image.height) / size);
+    }
+
+    // An empty page, but for its white pixel.
+    private static int createPage(int size) {
+        final int texture = createTexture(size, size, null);
+        GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, 1, 1, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE,
+                             createWhitePixel());
+        return texture;
+    }
+
+    private static ByteBuffer createWhitePixel() {
+        final ByteBuffer white = BufferUtils.createByteBuffer(4);
+        white.put((byte) 0xff).put((byte) 0xff).put((byte) 0xff).put((byte) 0xff).flip();
+        return white;
+    }
+
+    // A texture of the size, left bound.
+    private static int createTexture(int width, int height, ByteBuffer pixels) {
+        final int texture = GL11.glGenTextures();
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture);
+        GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+        GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, GL11.GL_CLAMP);
+        GL11.glTexParameterf(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, GL11.GL_CLAMP);
+        GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA, width, height, 0,
+                          GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, pixels);
+        return texture;
+    }
+
+    /**
+     * Lets go of the texture of the drawable, deleting it if no other drawable shows its image.
+     */
+    void release(Drawable drawable) {
+        final Entry entry = mDrawables.remove(drawable);
+        drawable.texureId = -1;
+        if (entry == null || --entry.references > 0) {
+            return;
+        }
+
+        mEntries.remove(entry.key);
+        if (entry.page < 0) {
+            GL11.glDeleteTextures(entry.texture);
+        } else if (--mPageImages[entry.page] == 0) {
+            GL11.glDeleteTextures(entry.texture);
+            mPageTextures[entry.page] = 0;
+            mLayout.clear(entry.page);
+        }
+    }
+
+    /**
+     * Returns the u and the v of the middle of the white pixel of the texture, to draw colors from,
+     * or -1 if the texture isn't a page and has none.
+     */
+    float getWhiteTexel(int texture) {
+        if (texture == 0) {
+            return -1.0f;
+        }
+
+        for (int pageTexture : mPageTextures) {
+            if (pageTexture == texture) {
+                return 0.5f / mLayout.getPageSize();
+            }
+        }
+        return -1.0f;
+    }
+}